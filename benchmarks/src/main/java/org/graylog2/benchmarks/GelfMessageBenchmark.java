@@ -0,0 +1,81 @@
+package org.graylog2.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.graylog2.GelfCompressor;
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfMessageFactory;
+import org.graylog2.ReusableGelfMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building and encoding single messages, without any I/O. UDP and AMQP payloads are
+ * gzip compressed at the default level.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GelfMessageBenchmark {
+
+    @Param({"SHORT", "MDC", "STACKTRACE"})
+    private MessageShape shape;
+
+    private LogEvent event;
+    private GelfMessage message;
+    private ReusableGelfMessage reusableMessage;
+
+    @Setup
+    public void setUp() {
+        event = shape.event();
+        message = shape.message();
+        reusableMessage = new ReusableGelfMessage();
+    }
+
+    @Benchmark
+    public GelfMessage makeMessage() {
+        return GelfMessageFactory.makeMessage(null, event, MessageShape.PROVIDER, MessageShape.ENVELOPE);
+    }
+
+    @Benchmark
+    public GelfMessage makeReusableMessage() {
+        return GelfMessageFactory.makeReusableMessage(reusableMessage, null, event, MessageShape.PROVIDER, MessageShape.ENVELOPE);
+    }
+
+    @Benchmark
+    public String toJson() {
+        return message.toJson();
+    }
+
+    @Benchmark
+    public void toUDPBuffers(Blackhole blackhole) {
+        for (ByteBuffer buffer : message.toUDPBuffers(GelfCompressor.DEFAULT)) {
+            blackhole.consume(buffer);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer toTCPBuffer() {
+        return message.toTCPBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer toAMQPBuffer() {
+        return message.toAMQPBuffer(GelfCompressor.DEFAULT);
+    }
+}
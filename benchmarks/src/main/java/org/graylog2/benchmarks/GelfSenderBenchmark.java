@@ -0,0 +1,117 @@
+package org.graylog2.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfSenderResult;
+import org.graylog2.GelfTCPSender;
+import org.graylog2.GelfUDPSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending messages to sinks on the loopback interface that read and discard everything,
+ * so the numbers cover encoding, compression and the system calls but no real network.
+ * AMQP is left out as it needs a running broker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GelfSenderBenchmark {
+
+    @Param({"SHORT", "MDC", "STACKTRACE"})
+    private MessageShape shape;
+
+    private GelfMessage message;
+    private DatagramSocket udpSink;
+    private ServerSocket tcpSink;
+    private GelfUDPSender udpSender;
+    private GelfTCPSender tcpSender;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        message = shape.message();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        udpSink = new DatagramSocket(new InetSocketAddress(loopback, 0));
+        udpSink.setReceiveBufferSize(4 * 1024 * 1024);
+        startDrain(new Runnable() {
+            public void run() {
+                DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+                try {
+                    while (true) {
+                        udpSink.receive(packet);
+                    }
+                } catch (IOException e) {
+                    // sink closed
+                }
+            }
+        }, "gelf-udp-sink");
+
+        tcpSink = new ServerSocket(0, 50, loopback);
+        startDrain(new Runnable() {
+            public void run() {
+                byte[] buffer = new byte[65536];
+                try {
+                    Socket socket = tcpSink.accept();
+                    InputStream in = socket.getInputStream();
+                    while (in.read(buffer) != -1) {
+                        // discard
+                    }
+                    socket.close();
+                } catch (IOException e) {
+                    // sink closed
+                }
+            }
+        }, "gelf-tcp-sink");
+
+        udpSender = new GelfUDPSender("127.0.0.1", udpSink.getLocalPort());
+        tcpSender = new GelfTCPSender("127.0.0.1", tcpSink.getLocalPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        udpSender.close();
+        tcpSender.close();
+        udpSink.close();
+        tcpSink.close();
+    }
+
+    @Benchmark
+    public GelfSenderResult sendUDP() {
+        return udpSender.sendMessage(message);
+    }
+
+    @Benchmark
+    public GelfSenderResult sendTCP() {
+        return tcpSender.sendMessage(message);
+    }
+
+    private static void startDrain(Runnable drain, String name) {
+        Thread thread = new Thread(drain, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
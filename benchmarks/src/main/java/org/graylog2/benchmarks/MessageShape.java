@@ -0,0 +1,133 @@
+package org.graylog2.benchmarks;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.graylog2.GelfEnvelope;
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfMessageFactory;
+import org.graylog2.GelfMessageProvider;
+import org.graylog2.GelfStackTraceRenderer;
+
+/**
+ * The kinds of log events the benchmarks are run with.
+ */
+public enum MessageShape {
+    /**
+     * A one line message without context.
+     */
+    SHORT {
+        @Override
+        LogEvent event() {
+            return logEvent("User 4711 logged in from 10.1.2.3", null, Collections.<String, String>emptyMap());
+        }
+    },
+    /**
+     * A typical request log line carrying a dozen context values.
+     */
+    MDC {
+        @Override
+        LogEvent event() {
+            Map<String, String> mdc = new HashMap<String, String>();
+            mdc.put("requestId", "9f8e7d6c-5b4a-3f2e-1d0c-ba9876543210");
+            mdc.put("sessionId", "A1B2C3D4E5F6");
+            mdc.put("userId", "4711");
+            mdc.put("tenant", "acme-corporation");
+            mdc.put("remoteAddress", "10.1.2.3");
+            mdc.put("method", "POST");
+            mdc.put("path", "/api/v2/orders/1234567/items");
+            mdc.put("userAgent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)");
+            mdc.put("traceId", "4bf92f3577b34da6a3ce929d0e0e4736");
+            mdc.put("spanId", "00f067aa0ba902b7");
+            mdc.put("durationMs", "127");
+            mdc.put("status", "201");
+            return logEvent("Order item \"SKU-88812\" added, quantity 3, price 19.99 EUR", null, mdc);
+        }
+    },
+    /**
+     * An error with a deep, chained stack trace as thrown through a web framework.
+     */
+    STACKTRACE {
+        @Override
+        LogEvent event() {
+            return logEvent("Could not process order 1234567", nestedException(3, 60), Collections.<String, String>emptyMap());
+        }
+    };
+
+    static final GelfMessageProvider PROVIDER = new GelfMessageProvider() {
+        public boolean isExtractStacktrace() {
+            return true;
+        }
+
+        public GelfStackTraceRenderer getStackTraceRenderer() {
+            return GelfStackTraceRenderer.DEFAULT;
+        }
+
+        public String getOriginHost() {
+            return "app-server-01.example.com";
+        }
+
+        public String getFacility() {
+            return "orders";
+        }
+
+        public Map<String, String> getFields() {
+            Map<String, String> fields = new HashMap<String, String>();
+            fields.put("environment", "production");
+            fields.put("application", "order-service");
+            fields.put("version", "2.14.1");
+            return fields;
+        }
+
+        public boolean isAddExtendedInformation() {
+            return true;
+        }
+
+        public boolean isIncludeLocation() {
+            return false;
+        }
+
+        public boolean isMicrosecondPrecision() {
+            return false;
+        }
+
+        public Object transformExtendedField(String field, Object object) {
+            return object != null ? object.toString() : null;
+        }
+    };
+
+    static final GelfEnvelope ENVELOPE = GelfMessageFactory.makeEnvelope(PROVIDER);
+
+    abstract LogEvent event();
+
+    GelfMessage message() {
+        return GelfMessageFactory.makeMessage(null, event(), PROVIDER, ENVELOPE);
+    }
+
+    private static LogEvent logEvent(String text, Throwable thrown, Map<String, String> mdc) {
+        return new Log4jLogEvent("org.example.orders.OrderController", null, "org.apache.logging.log4j.spi.AbstractLogger",
+                thrown != null ? Level.ERROR : Level.INFO, new SimpleMessage(text), thrown, mdc,
+                ThreadContext.EMPTY_STACK, "http-nio-8080-exec-7", null, 1500000000123L);
+    }
+
+    private static Throwable nestedException(int causes, int frames) {
+        Throwable throwable = null;
+        for (int i = causes; i >= 0; i--) {
+            Throwable next = new IllegalStateException("Failure in layer " + i, throwable);
+            StackTraceElement[] trace = new StackTraceElement[frames];
+            for (int frame = 0; frame < frames; frame++) {
+                trace[frame] = new StackTraceElement("org.springframework.web.servlet.Layer" + i + "Handler" + frame,
+                        "handle", "Layer" + i + "Handler" + frame + ".java", 100 + frame);
+            }
+            next.setStackTrace(trace);
+            throwable = next;
+        }
+        return throwable;
+    }
+}
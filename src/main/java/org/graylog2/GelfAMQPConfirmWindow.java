@@ -0,0 +1,159 @@
+package org.graylog2;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the messages published on one channel until the broker confirms them. Nacked
+ * and timed out messages, and all unconfirmed ones of a channel that failed, are handed
+ * back to be published again.
+ * <p>
+ * The window is guarded by a {@link ReentrantLock} rather than a monitor, as publishing
+ * under it writes to the socket, which would pin the carrier of a virtual thread.
+ */
+class GelfAMQPConfirmWindow implements ConfirmListener {
+
+    private final Channel channel;
+    // one permit per message published but not yet confirmed, shared by all windows of a sender
+    private final Semaphore permits;
+    private final Queue<Publication> retries;
+    private final SortedMap<Long, Publication> outstanding = new TreeMap<Long, Publication>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    GelfAMQPConfirmWindow(Channel channel, Semaphore permits, Queue<Publication> retries) {
+        this.channel = channel;
+        this.permits = permits;
+        this.retries = retries;
+        channel.addConfirmListener(this);
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Publishes the message; the delivery tag is taken and the message sent under the
+     * window's lock, so that tags and messages stay in step. If publishing fails, for example
+     * with an AlreadyClosedException, the message is not tracked and the caller keeps it.
+     */
+    void publish(Publication publication, String exchangeName, String routingKey) throws IOException {
+        lock.lock();
+        try {
+            long deliveryTag = channel.getNextPublishSeqNo();
+            publication.publishedNanos = System.nanoTime();
+            outstanding.put(deliveryTag, publication);
+            boolean published = false;
+            try {
+                channel.basicPublish(exchangeName, routingKey, publication.properties, publication.body);
+                published = true;
+            } finally {
+                if (!published) {
+                    outstanding.remove(deliveryTag);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void handleAck(long deliveryTag, boolean multiple) {
+        lock.lock();
+        try {
+            for (Publication ignored : confirmed(deliveryTag, multiple)) {
+                permits.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void handleNack(long deliveryTag, boolean multiple) {
+        lock.lock();
+        try {
+            retries.addAll(confirmed(deliveryTag, multiple));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<Publication> confirmed(long deliveryTag, boolean multiple) {
+        if (!multiple) {
+            Publication publication = outstanding.remove(deliveryTag);
+            return publication == null ? Collections.<Publication>emptyList() : Collections.singletonList(publication);
+        }
+        SortedMap<Long, Publication> upTo = outstanding.headMap(deliveryTag + 1);
+        List<Publication> publications = new ArrayList<Publication>(upTo.values());
+        upTo.clear();
+        return publications;
+    }
+
+    /**
+     * Hands back the messages that waited longer than the timeout for their confirm.
+     */
+    void expire(long timeoutNanos) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            for (Iterator<Map.Entry<Long, Publication>> it = outstanding.entrySet().iterator(); it.hasNext(); ) {
+                Publication publication = it.next().getValue();
+                if (now - publication.publishedNanos >= timeoutNanos) {
+                    it.remove();
+                    retries.add(publication);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands back every unconfirmed message, as the channel will not confirm them any more.
+     */
+    void abandon() {
+        lock.lock();
+        try {
+            channel.removeConfirmListener(this);
+            retries.addAll(outstanding.values());
+            outstanding.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return outstanding.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An encoded message with what is needed to publish it again.
+     */
+    static class Publication {
+        final BasicProperties properties;
+        final byte[] body;
+        int attempts;
+        long publishedNanos;
+
+        Publication(BasicProperties properties, byte[] body) {
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
 
+import org.graylog2.GelfAMQPConfirmWindow.Publication;
+
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -12,28 +14,109 @@ import java.net.*;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Date;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Publishes messages to an AMQP exchange with publisher confirms.
+ * <p>
+ * Messages are published on a pool of channels sharing one connection. Each thread sticks
+ * to the channel it was assigned round-robin on first use, so threads spread evenly over
+ * the pool and the messages of one thread keep their order. A failed channel is replaced
+ * by the next thread using it, and the connection when it was lost.
+ * <p>
+ * By default every publish waits for its confirm. With a confirm window, messages are
+ * published without waiting and confirmed asynchronously; only nacked messages and those
+ * not confirmed within the timeout are published again, so the broker may see them twice
+ * and in a different order. Once the window is full, publishing waits for a confirm.
+ * <p>
+ * Connecting and waiting for confirms hold a {@link ReentrantLock} rather than a monitor,
+ * so that virtual threads publishing with this sender do not pin their carrier threads
+ * here; the AMQP client still writes each frame inside a monitor of its own.
+ */
 public class GelfAMQPSender implements GelfSender {
-    
+
+    public static final long DEFAULT_CONFIRM_TIMEOUT_MILLIS = 10000L;
+
     private volatile boolean shutdown = false;
 
     private final ConnectionFactory factory;
+    private final ReentrantLock connectionLock = new ReentrantLock();
     private Connection connection;
-    private Channel channel;
+    private final ChannelSlot[] slots;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final ThreadLocal<ChannelSlot> slotOfThread = new ThreadLocal<ChannelSlot>() {
+        @Override
+        protected ChannelSlot initialValue() {
+            return slots[(nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length];
+        }
+    };
 
     private final String exchangeName;
     private final String routingKey;
     private final int maxRetries;
-    private final String channelMutex = "channelMutex";
+    private final GelfCompressor compressor;
+
+    private final int maxInFlight;
+    private final long confirmTimeoutNanos;
+    private final Semaphore inFlight;
+    private final Queue<Publication> retries = new ConcurrentLinkedQueue<Publication>();
+    private Thread confirmTracker;
 
     public GelfAMQPSender(String host, String exchangeName, String routingKey, int maxRetries) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+        this(host, exchangeName, routingKey, maxRetries, GelfCompressor.DEFAULT);
+    }
+
+    public GelfAMQPSender(String host, String exchangeName, String routingKey, int maxRetries, GelfCompressor compressor) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+        this(host, exchangeName, routingKey, maxRetries, compressor, 0, DEFAULT_CONFIRM_TIMEOUT_MILLIS);
+    }
+
+    public GelfAMQPSender(String host, String exchangeName, String routingKey, int maxRetries, GelfCompressor compressor,
+                          int maxInFlight, long confirmTimeoutMillis) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+        this(host, exchangeName, routingKey, maxRetries, compressor, maxInFlight, confirmTimeoutMillis, 1);
+    }
+
+    /**
+     * @param maxInFlight          messages that may be published without being confirmed yet,
+     *                             0 to wait for the confirm of every message
+     * @param confirmTimeoutMillis how long a confirm may take before the message is published
+     *                             again
+     * @param channels             number of channels messages are published on
+     */
+    public GelfAMQPSender(String host, String exchangeName, String routingKey, int maxRetries, GelfCompressor compressor,
+                          int maxInFlight, long confirmTimeoutMillis, int channels) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+        if (maxInFlight < 0 || confirmTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Invalid confirm window " + maxInFlight + " or timeout " + confirmTimeoutMillis);
+        }
+        if (channels < 1) {
+            throw new IllegalArgumentException("Invalid number of AMQP channels: " + channels);
+        }
         factory = new ConnectionFactory();
         factory.setUri(host);
 
         this.exchangeName = exchangeName;
         this.routingKey = routingKey;
         this.maxRetries = maxRetries;
+        this.compressor = compressor;
+        this.maxInFlight = maxInFlight;
+        this.confirmTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(confirmTimeoutMillis);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.slots = new ChannelSlot[channels];
+        for (int i = 0; i < channels; i++) {
+            slots[i] = new ChannelSlot();
+        }
+        if (maxInFlight > 0) {
+            confirmTracker = new Thread(new ConfirmTracker(), "gelf-amqp-confirms");
+            confirmTracker.setDaemon(true);
+            confirmTracker.start();
+        }
     }
 
     public GelfSenderResult sendMessage(GelfMessage message) {
@@ -45,34 +128,40 @@ public class GelfAMQPSender implements GelfSender {
         String uuid = UUID.randomUUID().toString();
         String messageid = "gelf" + message.getHost() + message.getFacility() + message.getTimestamp() + uuid;
 
+        BasicProperties.Builder propertiesBuilder = new BasicProperties.Builder();
+        propertiesBuilder.contentType("application/json; charset=utf-8");
+        propertiesBuilder.contentEncoding(compressor.getCompression().getContentEncoding());
+        propertiesBuilder.messageId(messageid);
+        propertiesBuilder.timestamp(new Date(message.getJavaTimestamp()));
+        Publication publication = new Publication(propertiesBuilder.build(), message.toAMQPBuffer(compressor).array());
+
+        if (maxInFlight > 0) {
+            try {
+                if (!inFlight.tryAcquire(confirmTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                    return new GelfSenderResult(GelfSenderResult.ERROR_CODE,
+                            new IOException("No room in the confirm window of " + maxInFlight + " messages"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+            }
+        }
+        GelfSenderResult result = publish(publication);
+        if (maxInFlight > 0 && !GelfSenderResult.OK.equals(result)) {
+            inFlight.release();
+        }
+        return result;
+    }
+
+    private GelfSenderResult publish(Publication publication) {
+        ChannelSlot slot = slotOfThread.get();
         int tries = 0;
         Exception lastException = null;
         do {
             try {
-                // establish the connection the first time
-                if (channel == null) {
-                    synchronized(channelMutex) {
-                        if (channel == null) {
-                            connection = factory.newConnection();
-                            channel = connection.createChannel();
-                            channel.confirmSelect();
-                        }
-                    }
-                }
-
-                BasicProperties.Builder propertiesBuilder = new BasicProperties.Builder();
-                propertiesBuilder.contentType("application/json; charset=utf-8");
-                propertiesBuilder.contentEncoding("gzip");
-                propertiesBuilder.messageId(messageid);
-                propertiesBuilder.timestamp(new Date(message.getJavaTimestamp()));
-                BasicProperties properties = propertiesBuilder.build();
-
-                channel.basicPublish(exchangeName, routingKey, properties, message.toAMQPBuffer().array());
-                channel.waitForConfirms();
-
+                slot.publish(publication);
                 return GelfSenderResult.OK;
             } catch (Exception e) {
-                channel = null;
                 tries++;
                 lastException = e;
             }
@@ -81,15 +170,240 @@ public class GelfAMQPSender implements GelfSender {
         return new GelfSenderResult(GelfSenderResult.ERROR_CODE, lastException);
     }
 
+    /**
+     * The shared connection, established again if it was lost.
+     */
+    private Connection connection() throws IOException {
+        connectionLock.lock();
+        try {
+            if (connection == null || !connection.isOpen()) {
+                closeQuietly(connection);
+                connection = null;
+                try {
+                    connection = newConnection();
+                } catch (TimeoutException e) {
+                    throw new IOException("Timed out connecting to the AMQP broker: " + e.getMessage());
+                }
+            }
+            return connection;
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the broker accepts connections; connects if there is no open connection.
+     */
+    public boolean isReachable() {
+        try {
+            return connection().isOpen();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    protected Connection newConnection() throws IOException, TimeoutException {
+        return factory.newConnection();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Called on the confirm tracking thread when a message published with a confirm window
+     * was not confirmed within the configured number of retries.
+     */
+    protected void onSendFailure(String messageId, GelfSenderResult result) {
+    }
+
+    /**
+     * Number of messages published but not confirmed yet.
+     */
+    public int getInFlightCount() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public int getChannelCount() {
+        return slots.length;
+    }
+
+    /**
+     * Waits up to the confirm timeout for outstanding confirms, then closes the channels and
+     * the connection.
+     */
     public void close() {
         shutdown = true;
-        try {
-            channel.close();
-        } catch (Exception e) {
+        if (confirmTracker != null) {
+            long deadline = System.nanoTime() + confirmTimeoutNanos;
+            while (getInFlightCount() > 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            confirmTracker.interrupt();
+        }
+        for (ChannelSlot slot : slots) {
+            slot.close();
         }
+        connectionLock.lock();
         try {
-            connection.close();
-        } catch (Exception e) {
+            closeQuietly(connection);
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * One channel of the pool, created on first use and again after it failed.
+     */
+    private class ChannelSlot {
+        private final ReentrantLock lock = new ReentrantLock();
+        private Channel channel;
+        private GelfAMQPConfirmWindow window;
+
+        void publish(Publication publication) throws IOException, InterruptedException {
+            if (maxInFlight > 0) {
+                GelfAMQPConfirmWindow current;
+                lock.lock();
+                try {
+                    open();
+                    current = window;
+                } finally {
+                    lock.unlock();
+                }
+                try {
+                    current.publish(publication, exchangeName, routingKey);
+                } catch (IOException e) {
+                    reset(current.getChannel());
+                    throw e;
+                } catch (RuntimeException e) {
+                    // a closed channel fails with a ShutdownSignalException
+                    reset(current.getChannel());
+                    throw e;
+                }
+            } else {
+                // publish and confirm in one go, so a nack is not taken for another thread's message
+                lock.lock();
+                try {
+                    Channel current = open();
+                    try {
+                        current.basicPublish(exchangeName, routingKey, publication.properties, publication.body);
+                        if (!current.waitForConfirms()) {
+                            throw new IOException("Message was nacked by the broker");
+                        }
+                    } catch (IOException e) {
+                        reset(current);
+                        throw e;
+                    } catch (RuntimeException e) {
+                        reset(current);
+                        throw e;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        // called with the lock held
+        private Channel open() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                if (channel != null) {
+                    reset(channel);
+                }
+                Channel created = connection().createChannel();
+                created.confirmSelect();
+                if (maxInFlight > 0) {
+                    window = new GelfAMQPConfirmWindow(created, inFlight, retries);
+                }
+                channel = created;
+            }
+            return channel;
+        }
+
+        /**
+         * Drops the failed channel, unless another thread has replaced it already.
+         */
+        void reset(Channel failed) {
+            lock.lock();
+            try {
+                if (channel != failed) {
+                    return;
+                }
+                if (window != null) {
+                    window.abandon();
+                    window = null;
+                }
+                try {
+                    channel.abort();
+                } catch (Exception e) {
+                    // already closed
+                }
+                channel = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void expire() {
+            lock.lock();
+            try {
+                if (window != null) {
+                    window.expire(confirmTimeoutNanos);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (Exception e) {
+                        // the connection is closed next anyway
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Publishes nacked and timed out messages again, or gives up on them after the
+     * configured number of retries.
+     */
+    private class ConfirmTracker implements Runnable {
+        public void run() {
+            long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(1), Math.min(confirmTimeoutNanos / 4, TimeUnit.MILLISECONDS.toNanos(100)));
+            while (!Thread.currentThread().isInterrupted()) {
+                for (ChannelSlot slot : slots) {
+                    slot.expire();
+                }
+                Publication publication;
+                while ((publication = retries.poll()) != null) {
+                    publication.attempts++;
+                    GelfSenderResult result = maxRetries >= 0 && publication.attempts > maxRetries
+                            ? new GelfSenderResult(GelfSenderResult.ERROR_CODE, new IOException("Message was not confirmed by the broker"))
+                            : publish(publication);
+                    if (!GelfSenderResult.OK.equals(result)) {
+                        inFlight.release();
+                        try {
+                            onSendFailure(publication.properties.getMessageId(), result);
+                        } catch (RuntimeException e) {
+                            // keep tracking confirms
+                        }
+                    }
+                }
+                LockSupport.parkNanos(interval);
+            }
         }
     }
 }
@@ -0,0 +1,246 @@
+package org.graylog2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands messages to a bounded queue and sends them with another sender on dedicated
+ * threads, so that slow or stalled transports do not hold up the logging threads.
+ * <p>
+ * Queued messages are sent as they are, so they must not be changed after being passed to
+ * {@link #sendMessage}. With more than one sender thread the wrapped sender is called
+ * concurrently and has to be thread safe.
+ * <p>
+ * On Java 21 and later the sender threads can be virtual threads, so that many of them can
+ * wait on blocking sockets or broker confirms without tying up a platform thread each; give
+ * each endpoint of a {@link GelfBalancingSender} or {@link GelfFailoverSender} an async
+ * sender of its own for one virtual thread per endpoint. Virtual threads only wait with
+ * {@link GelfWaitStrategy#PARK}, the spinning strategies would keep their carrier threads
+ * busy. Earlier runtimes use platform threads, with any wait strategy.
+ */
+public class GelfAsyncSender implements GelfSender {
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 5000L;
+    public static final GelfSenderResult MESSAGE_DROPPED = GelfSenderResult.MESSAGE_DROPPED;
+
+    private final GelfSender sender;
+    private final GelfRingBuffer<GelfMessage> queue;
+    private final GelfWaitStrategy waitStrategy;
+    private final GelfOverflowPolicy overflowPolicy;
+    private final long shutdownTimeoutMillis;
+    private final Thread[] threads;
+    private final boolean virtualThreads;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public GelfAsyncSender(GelfSender sender) {
+        this(sender, DEFAULT_CAPACITY, 1, GelfWaitStrategy.PARK, GelfOverflowPolicy.BLOCK);
+    }
+
+    public GelfAsyncSender(GelfSender sender, int capacity, int threadCount, GelfWaitStrategy waitStrategy,
+                           GelfOverflowPolicy overflowPolicy) {
+        this(sender, capacity, threadCount, waitStrategy, overflowPolicy, DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param capacity              queued messages, rounded up to the next power of two
+     * @param threadCount           number of threads sending queued messages
+     * @param shutdownTimeoutMillis how long {@link #close()} waits for the queue to drain
+     */
+    public GelfAsyncSender(GelfSender sender, int capacity, int threadCount, GelfWaitStrategy waitStrategy,
+                           GelfOverflowPolicy overflowPolicy, long shutdownTimeoutMillis) {
+        this(sender, capacity, threadCount, waitStrategy, overflowPolicy, shutdownTimeoutMillis, false);
+    }
+
+    /**
+     * @param virtualThreads send on virtual threads where the runtime has them
+     */
+    public GelfAsyncSender(GelfSender sender, int capacity, int threadCount, GelfWaitStrategy waitStrategy,
+                           GelfOverflowPolicy overflowPolicy, long shutdownTimeoutMillis, boolean virtualThreads) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid number of sender threads: " + threadCount);
+        }
+        if (virtualThreads && GelfThreads.isVirtualSupported() && waitStrategy != GelfWaitStrategy.PARK) {
+            throw new IllegalArgumentException("Virtual sender threads cannot wait with " + waitStrategy + ", only with PARK");
+        }
+        this.sender = sender;
+        this.queue = new GelfRingBuffer<GelfMessage>(capacity);
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+        this.virtualThreads = virtualThreads && GelfThreads.isVirtualSupported();
+        this.threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = GelfThreads.newThread(new Dispatcher(), "gelf-async-sender-" + i, this.virtualThreads);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Queues the message. Returns {@link #MESSAGE_DROPPED} when the queue is full and the
+     * overflow policy drops new messages; failures of the wrapped sender are reported to
+     * {@link #onSendFailure} on the sender threads instead.
+     */
+    public GelfSenderResult sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+        }
+        if (queue.offer(message)) {
+            return GelfSenderResult.OK;
+        }
+
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                droppedCount.incrementAndGet();
+                return MESSAGE_DROPPED;
+            case DROP_OLDEST:
+                do {
+                    if (queue.poll() != null) {
+                        droppedCount.incrementAndGet();
+                    }
+                } while (!queue.offer(message));
+                return GelfSenderResult.OK;
+            default:
+                int round = 0;
+                while (!queue.offer(message)) {
+                    if (shutdown) {
+                        return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+                    }
+                    round = waitStrategy.idle(round);
+                }
+                return GelfSenderResult.OK;
+        }
+    }
+
+    /**
+     * Stops accepting messages, waits up to the shutdown timeout for the queued ones to be
+     * sent and closes the wrapped sender.
+     */
+    public void close() {
+        shutdown = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownTimeoutMillis);
+        try {
+            for (Thread thread : threads) {
+                LockSupport.unpark(thread);
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining > 0) {
+                    thread.join(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender.close();
+    }
+
+    /**
+     * Called on a sender thread when the wrapped sender did not send a message.
+     */
+    protected void onSendFailure(GelfMessage message, GelfSenderResult result) {
+    }
+
+    public GelfSender getSender() {
+        return sender;
+    }
+
+    /**
+     * Whether the runtime has virtual threads, Java 21 and later.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return GelfThreads.isVirtualSupported();
+    }
+
+    /**
+     * Whether the messages are sent on virtual threads; false when they were asked for on a
+     * runtime before Java 21.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getCapacity() {
+        return queue.capacity();
+    }
+
+    /**
+     * Number of messages currently waiting to be sent.
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Number of messages discarded by the overflow policy.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GelfAsyncSender{" +
+                "sender=" + sender +
+                ", capacity=" + queue.capacity() +
+                ", threads=" + threads.length +
+                ", virtualThreads=" + virtualThreads +
+                ", waitStrategy=" + waitStrategy +
+                ", overflowPolicy=" + overflowPolicy +
+                ", sent=" + sentCount +
+                ", failed=" + failedCount +
+                ", dropped=" + droppedCount +
+                '}';
+    }
+
+    private class Dispatcher implements Runnable {
+        public void run() {
+            int round = 0;
+            while (true) {
+                GelfMessage message = queue.poll();
+                if (message != null) {
+                    round = 0;
+                    send(message);
+                } else if (shutdown) {
+                    // a producer may still have been adding while the flag was set
+                    while ((message = queue.poll()) != null) {
+                        send(message);
+                    }
+                    return;
+                } else {
+                    round = waitStrategy.idle(round);
+                }
+            }
+        }
+
+        private void send(GelfMessage message) {
+            GelfSenderResult result;
+            try {
+                result = sender.sendMessage(message);
+            } catch (RuntimeException e) {
+                result = new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+            }
+            if (GelfSenderResult.OK.equals(result)) {
+                sentCount.incrementAndGet();
+            } else {
+                failedCount.incrementAndGet();
+                try {
+                    onSendFailure(message, result);
+                } catch (RuntimeException e) {
+                    // keep the sender thread alive
+                }
+            }
+        }
+    }
+}
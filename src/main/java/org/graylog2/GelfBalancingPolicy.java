@@ -0,0 +1,26 @@
+package org.graylog2;
+
+/**
+ * How a {@link GelfBalancingSender} picks the endpoint for a message.
+ */
+public enum GelfBalancingPolicy {
+    /**
+     * Take the available endpoints in turn.
+     */
+    ROUND_ROBIN,
+    /**
+     * Take the available endpoint with the fewest bytes being sent at the moment, so that a
+     * slow endpoint gets less of the traffic.
+     */
+    LEAST_OUTSTANDING_BYTES;
+
+    /**
+     * Parses a configuration value (case insensitive), defaulting to ROUND_ROBIN when the value is empty.
+     */
+    public static GelfBalancingPolicy fromString(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return ROUND_ROBIN;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,335 @@
+package org.graylog2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spreads messages over the senders of several Graylog inputs.
+ * <p>
+ * A message that one endpoint fails to send is tried on the next available one. An endpoint
+ * that fails a number of times in a row is ejected; a background thread probes it and puts
+ * it back once it can be reached again. TCP endpoints are probed by waiting for their own
+ * reconnect and AMQP endpoints by connecting to the broker, while UDP endpoints, which
+ * cannot be probed, come back after one probe interval.
+ * <p>
+ * TCP and HTTP endpoints keep messages while they reconnect, so they accept them rather than
+ * fail; a disconnected one is ejected instead of being sent to, unless it is the last
+ * endpoint left to try.
+ * <p>
+ * An endpoint may have a {@link GelfAsyncSender} of its own, so that one that blocks does
+ * not hold up the others; it is probed through the sender it wraps, and its queue fills
+ * up and drops messages, which counts as failing, while that is stalled. A message it
+ * fails after queueing it is reported with {@link #reportFailure}, and should be sent again.
+ */
+public class GelfBalancingSender implements GelfSender {
+
+    public static final int DEFAULT_MAX_FAILURES = 3;
+    public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 5000L;
+
+    private final Endpoint[] endpoints;
+    private final GelfBalancingPolicy policy;
+    private final int maxFailures;
+    private final long probeIntervalNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Thread prober;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong failoverCount = new AtomicLong();
+    private final AtomicLong ejectedCount = new AtomicLong();
+
+    public GelfBalancingSender(List<? extends GelfSender> senders) {
+        this(senders, GelfBalancingPolicy.ROUND_ROBIN, DEFAULT_MAX_FAILURES, DEFAULT_PROBE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param maxFailures         failures in a row after which an endpoint is ejected
+     * @param probeIntervalMillis how often ejected endpoints are probed
+     */
+    public GelfBalancingSender(List<? extends GelfSender> senders, GelfBalancingPolicy policy, int maxFailures,
+                               long probeIntervalMillis) {
+        if (senders.isEmpty() || maxFailures < 1 || probeIntervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid number of endpoints " + senders.size() + ", maximum failures "
+                    + maxFailures + " or probe interval " + probeIntervalMillis);
+        }
+        this.endpoints = new Endpoint[senders.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(senders.get(i));
+        }
+        this.policy = policy;
+        this.maxFailures = maxFailures;
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+        this.prober = new Thread(new Prober(), "gelf-balancer-probe");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    /**
+     * Sends the message with the endpoint chosen by the policy, or with the following ones if
+     * that fails. Returns the result of the last endpoint tried, or an error if all endpoints
+     * are ejected.
+     */
+    public GelfSenderResult sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+        }
+        int size = message.getSizeEstimate();
+        int first = choose();
+        GelfSenderResult result = null;
+        for (int i = 0; i < endpoints.length; i++) {
+            Endpoint endpoint = endpoints[(first + i) % endpoints.length];
+            if (!endpoint.available) {
+                continue;
+            }
+            if (isDisconnected(endpoint.sender) && isAnyAvailable(first, i + 1)) {
+                eject(endpoint);
+                continue;
+            }
+            if (result != null) {
+                failoverCount.incrementAndGet();
+            }
+            result = endpoint.send(message, size);
+            if (GelfSenderResult.OK.equals(result)) {
+                endpoint.failures.set(0);
+                return result;
+            }
+            if (GelfSenderResult.MESSAGE_NOT_VALID.equals(result)
+                    || GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN.equals(result)) {
+                // no other endpoint would take it either
+                return result;
+            }
+            if (endpoint.failures.incrementAndGet() >= maxFailures) {
+                eject(endpoint);
+            }
+        }
+        if (result == null) {
+            return new GelfSenderResult(GelfSenderResult.ERROR_CODE,
+                    new IOException("All " + endpoints.length + " endpoints are ejected"));
+        }
+        return result;
+    }
+
+    /**
+     * Index of the endpoint to try first.
+     */
+    private int choose() {
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+        if (policy == GelfBalancingPolicy.ROUND_ROBIN) {
+            return start;
+        }
+        // ties are broken by the round robin position, so idle endpoints share the traffic
+        int best = start;
+        long fewest = Long.MAX_VALUE;
+        for (int i = 0; i < endpoints.length; i++) {
+            int index = (start + i) % endpoints.length;
+            Endpoint endpoint = endpoints[index];
+            long outstanding = outstanding(endpoint);
+            if (endpoint.available && outstanding < fewest) {
+                best = index;
+                fewest = outstanding;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Bytes being sent by the endpoint, or, for one with its own {@link GelfAsyncSender},
+     * the messages queued for it.
+     */
+    private static long outstanding(Endpoint endpoint) {
+        if (endpoint.sender instanceof GelfAsyncSender) {
+            return ((GelfAsyncSender) endpoint.sender).getQueueSize();
+        }
+        return endpoint.outstandingBytes.get();
+    }
+
+    private void eject(Endpoint endpoint) {
+        synchronized (endpoint) {
+            if (!endpoint.available) {
+                return;
+            }
+            endpoint.available = false;
+            endpoint.ejectedNanos = System.nanoTime();
+        }
+        ejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Whether an endpoint from the given position of the round on can take messages.
+     */
+    private boolean isAnyAvailable(int first, int from) {
+        for (int i = from; i < endpoints.length; i++) {
+            if (endpoints[(first + i) % endpoints.length].available) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDisconnected(GelfSender sender) {
+        if (sender instanceof GelfAsyncSender) {
+            return isDisconnected(((GelfAsyncSender) sender).getSender());
+        }
+        if (sender instanceof GelfTCPSender) {
+            return !((GelfTCPSender) sender).isConnected();
+        }
+        if (sender instanceof GelfHTTPSender) {
+            // connections closed while idle are made again when needed
+            return !((GelfHTTPSender) sender).isReachable();
+        }
+        return false;
+    }
+
+    /**
+     * Whether an ejected endpoint can take messages again.
+     */
+    protected boolean probe(GelfSender sender) {
+        if (sender instanceof GelfAsyncSender) {
+            return probe(((GelfAsyncSender) sender).getSender());
+        }
+        if (sender instanceof GelfTCPSender) {
+            return ((GelfTCPSender) sender).isConnected();
+        }
+        if (sender instanceof GelfAMQPSender) {
+            return ((GelfAMQPSender) sender).isReachable();
+        }
+        if (sender instanceof GelfHTTPSender) {
+            return ((GelfHTTPSender) sender).isReachable();
+        }
+        return true;
+    }
+
+    /**
+     * Stops probing and closes the senders of all endpoints.
+     */
+    public void close() {
+        shutdown = true;
+        LockSupport.unpark(prober);
+        try {
+            prober.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Endpoint endpoint : endpoints) {
+            endpoint.sender.close();
+        }
+    }
+
+    public List<GelfSender> getSenders() {
+        List<GelfSender> senders = new ArrayList<GelfSender>(endpoints.length);
+        for (Endpoint endpoint : endpoints) {
+            senders.add(endpoint.sender);
+        }
+        return senders;
+    }
+
+    /**
+     * Number of endpoints that are not ejected.
+     */
+    public int getAvailableCount() {
+        int count = 0;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.available) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public GelfBalancingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Ejects the endpoint of the sender, a {@link GelfAsyncSender} of its own that failed a
+     * message after accepting it; the messages queued behind it would likely fail as well.
+     */
+    public void reportFailure(GelfSender sender) {
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.sender == sender) {
+                eject(endpoint);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Number of times a message was passed on to another endpoint after one failed.
+     */
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    /**
+     * Number of times an endpoint was ejected.
+     */
+    public long getEjectedCount() {
+        return ejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GelfBalancingSender{" +
+                "endpoints=" + endpoints.length +
+                ", available=" + getAvailableCount() +
+                ", policy=" + policy +
+                ", failovers=" + failoverCount +
+                ", ejected=" + ejectedCount +
+                '}';
+    }
+
+    private static class Endpoint {
+        private final GelfSender sender;
+        private final AtomicInteger failures = new AtomicInteger();
+        // estimated bytes of the messages this endpoint is sending right now
+        private final AtomicLong outstandingBytes = new AtomicLong();
+        private volatile boolean available = true;
+        private long ejectedNanos;
+
+        Endpoint(GelfSender sender) {
+            this.sender = sender;
+        }
+
+        GelfSenderResult send(GelfMessage message, int size) {
+            outstandingBytes.addAndGet(size);
+            try {
+                return sender.sendMessage(message);
+            } catch (RuntimeException e) {
+                return new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+            } finally {
+                outstandingBytes.addAndGet(-size);
+            }
+        }
+    }
+
+    private class Prober implements Runnable {
+        public void run() {
+            while (!shutdown) {
+                LockSupport.parkNanos(probeIntervalNanos);
+                for (Endpoint endpoint : endpoints) {
+                    if (shutdown) {
+                        return;
+                    }
+                    boolean due;
+                    synchronized (endpoint) {
+                        due = !endpoint.available && System.nanoTime() - endpoint.ejectedNanos >= probeIntervalNanos;
+                    }
+                    boolean reachable;
+                    try {
+                        reachable = due && probe(endpoint.sender);
+                    } catch (RuntimeException e) {
+                        reachable = false;
+                    }
+                    if (reachable) {
+                        endpoint.failures.set(0);
+                        endpoint.available = true;
+                    }
+                }
+            }
+        }
+    }
+}
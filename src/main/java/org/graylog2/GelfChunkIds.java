@@ -0,0 +1,51 @@
+package org.graylog2;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message ids for chunked GELF messages.
+ * <p>
+ * Every thread takes blocks of sequence numbers from a shared counter and numbers its
+ * messages from its current block, so only one in {@link #BLOCK_SIZE} ids touches shared
+ * state. The sequence number plus a random salt chosen once per process is scrambled by a
+ * bijective mix: ids never repeat within a process, and look random enough that other
+ * processes sending to the same server are unlikely to pick the same ones.
+ */
+final class GelfChunkIds {
+
+    static final int BLOCK_SIZE = 1 << 16;
+
+    private static final AtomicLong NEXT_BLOCK = new AtomicLong();
+    private static final long SALT = new Random().nextLong();
+
+    // next sequence number and end of the thread's block
+    private static final ThreadLocal<long[]> BLOCKS = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    private GelfChunkIds() {
+    }
+
+    static long next() {
+        long[] block = BLOCKS.get();
+        if (block[0] == block[1]) {
+            block[0] = NEXT_BLOCK.getAndAdd(BLOCK_SIZE);
+            block[1] = block[0] + BLOCK_SIZE;
+        }
+        return mix(block[0]++ + SALT);
+    }
+
+    /**
+     * The finalizer of SplitMix64; every step is invertible, so distinct inputs give
+     * distinct outputs.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
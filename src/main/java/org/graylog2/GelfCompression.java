@@ -0,0 +1,33 @@
+package org.graylog2;
+
+/**
+ * Payload compression formats accepted by the GELF UDP and AMQP inputs.
+ */
+public enum GelfCompression {
+    GZIP("gzip"),
+    ZLIB("deflate"),
+    NONE(null);
+
+    private final String contentEncoding;
+
+    GelfCompression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * The AMQP content encoding announced for payloads in this format, null when uncompressed.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * Parses a configuration value (case insensitive), defaulting to GZIP when the value is empty.
+     */
+    public static GelfCompression fromString(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return GZIP;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
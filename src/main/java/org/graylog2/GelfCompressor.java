@@ -0,0 +1,211 @@
+package org.graylog2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses encoded GELF documents with one reusable {@link Deflater} per thread, instead
+ * of allocating and freeing a native deflater for every message.
+ */
+public class GelfCompressor {
+
+    public static final GelfCompressor DEFAULT = new GelfCompressor(GelfCompression.GZIP, Deflater.DEFAULT_COMPRESSION);
+    public static final double DEFAULT_ADAPTIVE_RATIO = 0.75;
+
+    private static final byte[] GZIP_HEADER = new byte[]{0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    private final GelfCompression compression;
+    private final int level;
+    private final boolean adaptive;
+    private final double adaptiveRatio;
+
+    private final AtomicLong compressedCount = new AtomicLong();
+    private final AtomicLong smallUncompressedCount = new AtomicLong();
+    private final AtomicLong ineffectiveCompressionCount = new AtomicLong();
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State(new Deflater(level, compression == GelfCompression.GZIP));
+        }
+    };
+
+    public GelfCompressor(GelfCompression compression, int level) {
+        this(compression, level, false, DEFAULT_ADAPTIVE_RATIO);
+    }
+
+    /**
+     * @param adaptive      send datagram payloads uncompressed unless compressing pays off
+     * @param adaptiveRatio compressed to uncompressed size ratio at or below which compression
+     *                      is used even if it does not save a datagram
+     */
+    public GelfCompressor(GelfCompression compression, int level, boolean adaptive, double adaptiveRatio) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.compression = compression;
+        this.level = level;
+        this.adaptive = adaptive && compression != GelfCompression.NONE;
+        this.adaptiveRatio = adaptiveRatio;
+    }
+
+    public GelfCompression getCompression() {
+        return compression;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public double getAdaptiveRatio() {
+        return adaptiveRatio;
+    }
+
+    /**
+     * Number of datagram payloads the adaptive mode sent compressed.
+     */
+    public long getCompressedCount() {
+        return compressedCount.get();
+    }
+
+    /**
+     * Number of datagram payloads sent uncompressed because they fit into a single chunk.
+     */
+    public long getSmallUncompressedCount() {
+        return smallUncompressedCount.get();
+    }
+
+    /**
+     * Number of datagram payloads sent uncompressed because compression neither saved a
+     * chunk nor reached the adaptive ratio.
+     */
+    public long getIneffectiveCompressionCount() {
+        return ineffectiveCompressionCount.get();
+    }
+
+    public byte[] compress(GelfJsonEncoder encoder) {
+        return compress(encoder.buffer(), 0, encoder.size());
+    }
+
+    /**
+     * Prepares the payload of a UDP message. In adaptive mode, payloads that fit into one
+     * chunk are sent as they are, and larger ones are only compressed when that saves a chunk
+     * or shrinks them to the adaptive ratio.
+     */
+    public byte[] compressDatagramPayload(GelfJsonEncoder encoder, int chunkSize) {
+        int length = encoder.size();
+        if (!adaptive) {
+            return compress(encoder);
+        }
+        if (length <= chunkSize) {
+            smallUncompressedCount.incrementAndGet();
+            return encoder.toByteArray();
+        }
+        byte[] compressed = compress(encoder);
+        int rawChunks = (length + chunkSize - 1) / chunkSize;
+        int compressedChunks = (compressed.length + chunkSize - 1) / chunkSize;
+        if (compressedChunks < rawChunks || compressed.length <= length * adaptiveRatio) {
+            compressedCount.incrementAndGet();
+            return compressed;
+        }
+        ineffectiveCompressionCount.incrementAndGet();
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Returns the compressed payload in a new array of exactly the compressed size.
+     */
+    public byte[] compress(byte[] data, int offset, int length) {
+        if (compression == GelfCompression.NONE) {
+            byte[] copy = new byte[length];
+            System.arraycopy(data, offset, copy, 0, length);
+            return copy;
+        }
+
+        State state = states.get();
+        Deflater deflater = state.deflater;
+        byte[] out = state.output(length / 2 + GZIP_HEADER.length + GZIP_TRAILER_LENGTH + 64);
+        int position = 0;
+
+        if (compression == GelfCompression.GZIP) {
+            System.arraycopy(GZIP_HEADER, 0, out, 0, GZIP_HEADER.length);
+            position = GZIP_HEADER.length;
+            state.crc.reset();
+            state.crc.update(data, offset, length);
+        }
+
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (position == out.length) {
+                out = state.grow(position);
+            }
+            position += deflater.deflate(out, position, out.length - position);
+        }
+
+        if (compression == GelfCompression.GZIP) {
+            if (out.length - position < GZIP_TRAILER_LENGTH) {
+                out = state.grow(position);
+            }
+            position = writeIntLE(out, position, (int) state.crc.getValue());
+            position = writeIntLE(out, position, length);
+        }
+
+        byte[] result = new byte[position];
+        System.arraycopy(out, 0, result, 0, position);
+        return result;
+    }
+
+    private static int writeIntLE(byte[] out, int position, int value) {
+        out[position++] = (byte) value;
+        out[position++] = (byte) (value >> 8);
+        out[position++] = (byte) (value >> 16);
+        out[position++] = (byte) (value >> 24);
+        return position;
+    }
+
+    @Override
+    public String toString() {
+        return "GelfCompressor{" +
+                "compression=" + compression +
+                ", level=" + level +
+                ", adaptive=" + adaptive +
+                ", compressed=" + compressedCount +
+                ", smallUncompressed=" + smallUncompressedCount +
+                ", ineffectiveCompression=" + ineffectiveCompressionCount +
+                '}';
+    }
+
+    private static class State {
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private byte[] output = new byte[GelfJsonEncoder.DEFAULT_CAPACITY];
+
+        State(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        byte[] output(int expected) {
+            if (output.length < expected) {
+                output = new byte[expected];
+            } else if (output.length > GelfJsonEncoder.MAX_RETAINED_CAPACITY && output.length > expected << 2) {
+                output = new byte[expected];
+            }
+            return output;
+        }
+
+        byte[] grow(int used) {
+            byte[] grown = new byte[output.length << 1];
+            System.arraycopy(output, 0, grown, 0, used);
+            output = grown;
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.graylog2;
+
+/**
+ * A message sent as the JSON document it was encoded to before, such as one read back from
+ * a {@link GelfSpool} or one passed on to a fallback sender.
+ */
+class GelfEncodedMessage extends GelfMessage {
+
+    private final byte[] json;
+
+    GelfEncodedMessage(long timestamp, byte[] json) {
+        this.json = json;
+        setJavaTimestamp(timestamp);
+    }
+
+    /**
+     * Encodes the message once, keeping the fields senders use besides the document.
+     */
+    static GelfEncodedMessage encode(GelfMessage message) {
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
+        try {
+            GelfEncodedMessage encoded = new GelfEncodedMessage(message.getJavaTimestamp(), encoder.encode(message).toByteArray());
+            encoded.setMicrosOfMillisecond(message.getMicrosOfMillisecond());
+            encoded.setHost(message.getHost());
+            encoded.setFacility(message.getFacility());
+            return encoded;
+        } finally {
+            encoder.release();
+        }
+    }
+
+    @Override
+    byte[] getEncoded() {
+        return json;
+    }
+
+    @Override
+    public boolean isValid() {
+        return true;
+    }
+}
@@ -0,0 +1,175 @@
+package org.graylog2;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The addresses of a Graylog host name, resolved again in the background whenever the time
+ * to live has passed, so that nodes added to or removed from the DNS records are picked up
+ * while running.
+ * <p>
+ * Senders only read the last result, which never blocks. A failed lookup keeps the previous
+ * addresses. Lookups go through the JVM's own DNS cache, so a time to live below
+ * <code>networkaddress.cache.ttl</code> does not make changes show up sooner.
+ */
+public class GelfEndpointResolver {
+
+    public static final long DEFAULT_TTL_MILLIS = 30000L;
+
+    private final String host;
+    private final int port;
+    private final long ttlNanos;
+    // replaced as a whole, only when the set of addresses changed
+    private volatile InetSocketAddress[] addresses;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Thread refresher;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+
+    /**
+     * Resolves the host right away.
+     *
+     * @param ttlMillis how often the host is resolved again, 0 to keep the first result
+     */
+    public GelfEndpointResolver(String host, int port, long ttlMillis) throws UnknownHostException {
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("Invalid DNS refresh interval: " + ttlMillis);
+        }
+        this.host = host;
+        this.port = port;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.addresses = resolve();
+        if (ttlMillis > 0) {
+            refresher = new Thread(new Refresher(), "gelf-dns-refresh");
+            refresher.setDaemon(true);
+            refresher.start();
+        } else {
+            refresher = null;
+        }
+    }
+
+    /**
+     * The addresses in turn, to spread connections or messages over them.
+     */
+    public InetSocketAddress next() {
+        InetSocketAddress[] current = addresses;
+        if (current.length == 1) {
+            return current[0];
+        }
+        return current[(next.getAndIncrement() & Integer.MAX_VALUE) % current.length];
+    }
+
+    /**
+     * The last result; the same array is returned until the addresses change, and it must
+     * not be modified.
+     */
+    InetSocketAddress[] current() {
+        return addresses;
+    }
+
+    public List<InetSocketAddress> getAddresses() {
+        return new ArrayList<InetSocketAddress>(Arrays.asList(addresses));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * Number of lookups that failed after the first one.
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * Resolves the host again; the addresses are only replaced if they changed.
+     */
+    public void refresh() {
+        InetSocketAddress[] resolved;
+        try {
+            resolved = resolve();
+        } catch (UnknownHostException e) {
+            failureCount.incrementAndGet();
+            return;
+        } catch (RuntimeException e) {
+            failureCount.incrementAndGet();
+            return;
+        }
+        refreshCount.incrementAndGet();
+        // DNS servers rotate the order of the records, which is no change
+        if (!new HashSet<InetSocketAddress>(Arrays.asList(resolved)).equals(new HashSet<InetSocketAddress>(Arrays.asList(addresses)))) {
+            addresses = resolved;
+        }
+    }
+
+    public void close() {
+        shutdown = true;
+        if (refresher != null) {
+            LockSupport.unpark(refresher);
+        }
+    }
+
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private InetSocketAddress[] resolve() throws UnknownHostException {
+        InetAddress[] found = lookup(host);
+        if (found == null || found.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        Set<InetAddress> seen = new HashSet<InetAddress>();
+        List<InetSocketAddress> resolved = new ArrayList<InetSocketAddress>(found.length);
+        for (InetAddress address : found) {
+            if (seen.add(address)) {
+                resolved.add(new InetSocketAddress(address, port));
+            }
+        }
+        return resolved.toArray(new InetSocketAddress[resolved.size()]);
+    }
+
+    @Override
+    public String toString() {
+        return "GelfEndpointResolver{" +
+                "host=" + host +
+                ", port=" + port +
+                ", addresses=" + Arrays.toString(addresses) +
+                '}';
+    }
+
+    private class Refresher implements Runnable {
+        public void run() {
+            while (!shutdown) {
+                long deadline = System.nanoTime() + ttlNanos;
+                long remaining;
+                while (!shutdown && (remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                }
+                if (!shutdown) {
+                    refresh();
+                }
+            }
+        }
+    }
+}
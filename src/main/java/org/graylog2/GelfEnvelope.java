@@ -0,0 +1,83 @@
+package org.graylog2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The constant part of every GELF document sent by one appender or handler: version, host,
+ * facility and the statically configured additional fields, encoded once up front.
+ * Messages carrying an envelope have its bytes spliced into their JSON document, so only
+ * the per event fields are encoded for each message.
+ */
+public class GelfEnvelope {
+
+    private static final String ID_NAME = "id";
+
+    private final String version;
+    private final String host;
+    private final String facility;
+    private final Map<String, Object> fields;
+    private final String[] fieldNames;
+    private final byte[] encoded;
+
+    /**
+     * Envelope with the current GELF version; a null facility falls back to the default one.
+     */
+    public GelfEnvelope(String host, String facility, Map<String, ?> fields) {
+        this(GelfMessage.GELF_VERSION, host, facility != null ? facility : GelfMessage.DEFAULT_FACILITY, fields);
+    }
+
+    public GelfEnvelope(String version, String host, String facility, Map<String, ?> fields) {
+        this.version = version;
+        this.host = host;
+        this.facility = facility;
+        this.fields = fields == null
+                ? Collections.<String, Object>emptyMap()
+                : Collections.unmodifiableMap(new HashMap<String, Object>(fields));
+
+        List<String> names = new ArrayList<String>(this.fields.size());
+        GelfJsonEncoder encoder = new GelfJsonEncoder();
+        encoder.writeHeader(version, host, facility);
+        for (Map.Entry<String, Object> field : this.fields.entrySet()) {
+            if (!ID_NAME.equals(field.getKey())) {
+                names.add(field.getKey());
+                encoder.writeField(field.getKey(), field.getValue());
+            }
+        }
+        this.fieldNames = names.toArray(new String[names.size()]);
+        this.encoded = encoder.toByteArray();
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getFacility() {
+        return facility;
+    }
+
+    public Map<String, Object> getFields() {
+        return fields;
+    }
+
+    /**
+     * The names of the static fields in the encoded bytes, in the same order.
+     */
+    String[] getFieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * The opening of the JSON document up to and including the last static field.
+     */
+    byte[] getEncoded() {
+        return encoded;
+    }
+}
@@ -0,0 +1,185 @@
+package org.graylog2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends messages with the first of an ordered list of senders that works, for example TCP
+ * with UDP or AMQP to fall back on.
+ * <p>
+ * Messages go to the active sender, which is the primary at first. When it fails, or takes
+ * longer than the latency threshold, the next sender in the list becomes active, and a
+ * failed message is passed on to it right away. After the failback interval the next
+ * message is tried on the senders before the active one again, and the first of them that
+ * sends it in time becomes active. A message passed on is encoded only once, however many
+ * senders it is tried on.
+ * <p>
+ * Only a message a sender did not accept is passed on. A TCP or HTTP sender that keeps
+ * messages while it reconnects accepts them, so while it is disconnected it is passed over
+ * instead, as if it had failed, and what it holds is sent once it is connected again.
+ * A sender wrapped in a {@link GelfAsyncSender} of its own is checked the same way, and
+ * fails once its queue is full; it never exceeds the latency threshold.
+ */
+public class GelfFailoverSender implements GelfSender {
+
+    public static final long DEFAULT_FAILBACK_INTERVAL_MILLIS = 30000L;
+
+    private final GelfSender[] senders;
+    private final long latencyThresholdNanos;
+    private final long failbackIntervalNanos;
+    private final AtomicInteger active = new AtomicInteger();
+    // when the senders before the active one are to be tried again
+    private final AtomicLong failbackNanos = new AtomicLong();
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong failoverCount = new AtomicLong();
+    private final AtomicLong slowCount = new AtomicLong();
+
+    public GelfFailoverSender(List<? extends GelfSender> senders) {
+        this(senders, 0L, DEFAULT_FAILBACK_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param latencyThresholdMillis how long a send may take before the next sender is
+     *                               preferred, 0 to switch on errors only
+     * @param failbackIntervalMillis how long to keep to a fallback before trying the senders
+     *                               before it again
+     */
+    public GelfFailoverSender(List<? extends GelfSender> senders, long latencyThresholdMillis, long failbackIntervalMillis) {
+        if (senders.isEmpty() || latencyThresholdMillis < 0 || failbackIntervalMillis < 1) {
+            throw new IllegalArgumentException("Invalid number of senders " + senders.size() + ", latency threshold "
+                    + latencyThresholdMillis + " or failback interval " + failbackIntervalMillis);
+        }
+        this.senders = senders.toArray(new GelfSender[senders.size()]);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.failbackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(failbackIntervalMillis);
+    }
+
+    /**
+     * Sends the message with the active sender, or with the following ones if that fails.
+     * Returns the result of the last sender tried.
+     */
+    public GelfSenderResult sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+        }
+        int current = active.get();
+        int first = current;
+        if (current > 0) {
+            long due = failbackNanos.get();
+            // one thread at a time gets to try the senders before the active one
+            if (System.nanoTime() - due >= 0 && failbackNanos.compareAndSet(due, System.nanoTime() + failbackIntervalNanos)) {
+                first = 0;
+            }
+        }
+
+        GelfMessage attempt = message;
+        GelfSenderResult result = null;
+        for (int i = first; i < senders.length; i++) {
+            if (i + 1 < senders.length && isDisconnected(senders[i])) {
+                fallBack(i);
+                continue;
+            }
+            long started = System.nanoTime();
+            try {
+                result = senders[i].sendMessage(attempt);
+            } catch (RuntimeException e) {
+                result = new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+            }
+            boolean slow = latencyThresholdNanos > 0 && System.nanoTime() - started > latencyThresholdNanos;
+            if (GelfSenderResult.OK.equals(result)) {
+                if (slow) {
+                    slowCount.incrementAndGet();
+                    fallBack(i);
+                } else if (i < current) {
+                    active.set(i);
+                }
+                return result;
+            }
+            if (GelfSenderResult.MESSAGE_NOT_VALID.equals(result)
+                    || GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN.equals(result)) {
+                return result;
+            }
+            fallBack(i);
+            if (i + 1 < senders.length) {
+                failoverCount.incrementAndGet();
+                if (attempt == message) {
+                    attempt = GelfEncodedMessage.encode(message);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isDisconnected(GelfSender sender) {
+        if (sender instanceof GelfAsyncSender) {
+            return isDisconnected(((GelfAsyncSender) sender).getSender());
+        }
+        if (sender instanceof GelfTCPSender) {
+            return !((GelfTCPSender) sender).isConnected();
+        }
+        if (sender instanceof GelfHTTPSender) {
+            // connections closed while idle are made again when needed
+            return !((GelfHTTPSender) sender).isReachable();
+        }
+        return false;
+    }
+
+    /**
+     * Makes the sender after the given one active, if the given one is active.
+     */
+    private void fallBack(int index) {
+        if (index + 1 < senders.length && active.compareAndSet(index, index + 1)) {
+            failbackNanos.set(System.nanoTime() + failbackIntervalNanos);
+        }
+    }
+
+    public void close() {
+        shutdown = true;
+        for (GelfSender sender : senders) {
+            sender.close();
+        }
+    }
+
+    public List<GelfSender> getSenders() {
+        List<GelfSender> list = new ArrayList<GelfSender>(senders.length);
+        for (GelfSender sender : senders) {
+            list.add(sender);
+        }
+        return list;
+    }
+
+    /**
+     * Position of the sender messages currently go to, 0 for the primary.
+     */
+    public int getActiveIndex() {
+        return active.get();
+    }
+
+    /**
+     * Number of times a message was passed on to the next sender after one failed.
+     */
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    /**
+     * Number of sends that took longer than the latency threshold.
+     */
+    public long getSlowCount() {
+        return slowCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GelfFailoverSender{" +
+                "senders=" + senders.length +
+                ", active=" + active +
+                ", failovers=" + failoverCount +
+                ", slow=" + slowCount +
+                '}';
+    }
+}
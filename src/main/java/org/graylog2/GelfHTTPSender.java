@@ -0,0 +1,821 @@
+package org.graylog2;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Posts messages to a GELF HTTP input in batches, over a persistent HTTP/1.1 connection.
+ * <p>
+ * Messages are collected into a batch of newline separated JSON documents, which is posted
+ * once it reaches the batch size in bytes or its first message has waited for the linger
+ * interval. Without a linger interval, the default, every message is posted on its own, which
+ * is all a GELF HTTP input takes by default; batching needs an input that splits a body at
+ * newlines, in Graylog a GELF HTTP input with "Enable Bulk Receiving" turned on. A batch is
+ * compressed once, as a whole. Up to the maximum in flight requests are pipelined on the
+ * connection before posting waits for a response.
+ * <p>
+ * Responses are read by a background thread. Sending has reported the messages of a batch
+ * as accepted by the time it is answered, so a batch the server rejects is not sent
+ * elsewhere; it is counted, see {@link #getRejectedCount()}, and reported to
+ * {@link #onSendFailure(int, GelfSenderResult)}.
+ * <p>
+ * Connections are made by a background thread, the first one right away, so an input that
+ * is down does not keep the sender from being created. Requests still unanswered when the
+ * connection is lost, and batches posted meanwhile, are kept and posted in order once
+ * connected again, so a message may arrive twice but is not lost; sending reports them as
+ * accepted. Once as many requests as may be in flight are waiting, posting waits for an
+ * attempt to connect, for at most the timeout, and further batches are dropped while the
+ * input stays down.
+ * <p>
+ * Posting and waiting for responses hold a {@link ReentrantLock} rather than a monitor, so
+ * that a virtual thread sending with this sender does not pin its carrier thread.
+ */
+public class GelfHTTPSender implements GelfSender {
+
+    public static final int DEFAULT_BATCH_SIZE = 65536;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000L;
+
+    private static final long CONNECT_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final String url;
+    private final String host;
+    private final int port;
+    // the request up to the value of the Content-Length header
+    private final byte[] requestHead;
+    private final GelfCompressor compressor;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final int maxInFlight;
+    private final int timeoutMillis;
+
+    private byte[] batch;
+    private int batchLength;
+    private int batchMessages;
+    private long firstMessageNanos;
+    private final Queue<Request> unanswered = new LinkedList<Request>();
+    private Connection connection;
+    private boolean connecting;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled on responses, lost connections, the first message of a batch and shutdown
+    private final Condition changed = lock.newCondition();
+    // whether the last attempt to connect failed
+    private boolean connectFailed;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public GelfHTTPSender(String url) throws IOException {
+        this(url, GelfCompressor.DEFAULT, DEFAULT_BATCH_SIZE, 0, DEFAULT_MAX_IN_FLIGHT, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Connects in the background; messages sent meanwhile are posted once connected.
+     *
+     * @param url           the input, <code>/gelf</code> if the URL has no path
+     * @param batchSize     bytes of JSON after which a batch is posted
+     * @param lingerMillis  how long a message may wait for more to be posted with it, 0 to
+     *                      post every message on its own
+     * @param maxInFlight   requests posted before the first response has to arrive
+     * @param timeoutMillis how long to wait for a connection or a response
+     */
+    public GelfHTTPSender(String url, GelfCompressor compressor, int batchSize, long lingerMillis, int maxInFlight,
+                          long timeoutMillis) throws IOException {
+        if (batchSize < 1 || lingerMillis < 0 || maxInFlight < 1 || timeoutMillis < 1 || timeoutMillis > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize + ", linger " + lingerMillis
+                    + ", requests in flight " + maxInFlight + " or timeout " + timeoutMillis);
+        }
+        URL parsed = new URL(url);
+        if (!"http".equals(parsed.getProtocol())) {
+            throw new IllegalArgumentException("Unsupported protocol, only http is: " + url);
+        }
+        this.url = url;
+        this.host = parsed.getHost();
+        this.port = parsed.getPort() < 0 ? 80 : parsed.getPort();
+        this.compressor = compressor;
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = (int) timeoutMillis;
+        this.batch = new byte[Math.min(batchSize, DEFAULT_BATCH_SIZE) + 1];
+
+        StringBuilder head = new StringBuilder();
+        head.append("POST ").append(parsed.getFile().length() == 0 ? "/gelf" : parsed.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(host).append(parsed.getPort() < 0 ? "" : ":" + port).append("\r\n");
+        head.append("Content-Type: application/json\r\n");
+        if (compressor.getCompression() == GelfCompression.GZIP) {
+            head.append("Content-Encoding: gzip\r\n");
+        } else if (compressor.getCompression() == GelfCompression.ZLIB) {
+            head.append("Content-Encoding: deflate\r\n");
+        }
+        head.append("Content-Length: ");
+        this.requestHead = head.toString().getBytes("US-ASCII");
+
+        // an input that is down at startup is waited for like a lost connection
+        lock.lock();
+        try {
+            reconnect();
+        } finally {
+            lock.unlock();
+        }
+        if (lingerNanos > 0) {
+            Thread flusher = new Thread(new Flusher(), "gelf-http-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    /**
+     * Adds the message to the batch, posting it if it is due. The batch of the message is
+     * dropped, and {@link GelfSenderResult#MESSAGE_DROPPED} returned, if as many requests as
+     * may be in flight are waiting for a connection or a response already.
+     */
+    public GelfSenderResult sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+        }
+
+        // the message is encoded by the calling thread, only the batch is shared
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
+        try {
+            encoder.encode(message);
+            lock.lock();
+            try {
+                if (batchLength > 0 && batchLength + 1 + encoder.size() > batchSize) {
+                    // earlier messages, should they be dropped they are counted
+                    post();
+                }
+                append(encoder.buffer(), encoder.size());
+                if (lingerNanos == 0 || batchLength >= batchSize) {
+                    return post();
+                }
+                return GelfSenderResult.OK;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private void append(byte[] json, int length) {
+        int needed = batchLength + 1 + length;
+        if (needed > batch.length) {
+            byte[] grown = new byte[Math.max(needed, batch.length * 2)];
+            System.arraycopy(batch, 0, grown, 0, batchLength);
+            batch = grown;
+        }
+        if (batchLength == 0) {
+            firstMessageNanos = System.nanoTime();
+            if (lingerNanos > 0) {
+                changed.signalAll();
+            }
+        } else {
+            batch[batchLength++] = '\n';
+        }
+        System.arraycopy(json, 0, batch, batchLength, length);
+        batchLength += length;
+        batchMessages++;
+    }
+
+    /**
+     * Posts the batch, or keeps it to be posted once connected again; returns
+     * {@link GelfSenderResult#MESSAGE_DROPPED} if there is no room for another request.
+     */
+    private GelfSenderResult post() {
+        byte[] body = compressor.compress(batch, 0, batchLength);
+        Request request = new Request(head(body.length), body, batchMessages);
+        batchLength = 0;
+        batchMessages = 0;
+        requestCount.incrementAndGet();
+
+        if (connection != null || connecting && !connectFailed) {
+            try {
+                awaitRoom();
+            } catch (IOException e) {
+                // no response in time, or interrupted
+            }
+        }
+        if (unanswered.size() >= maxInFlight) {
+            droppedCount.addAndGet(request.messages);
+            return GelfSenderResult.MESSAGE_DROPPED;
+        }
+        unanswered.add(request);
+        if (connection == null) {
+            // posted once connected again
+            reconnect();
+            return GelfSenderResult.OK;
+        }
+        try {
+            connection.write(request);
+        } catch (IOException e) {
+            connectionLost(connection);
+        }
+        return GelfSenderResult.OK;
+    }
+
+    private byte[] head(int contentLength) {
+        byte[] length;
+        try {
+            length = (contentLength + "\r\n\r\n").getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] head = new byte[requestHead.length + length.length];
+        System.arraycopy(requestHead, 0, head, 0, requestHead.length);
+        System.arraycopy(length, 0, head, requestHead.length, length.length);
+        return head;
+    }
+
+    /**
+     * Waits until fewer than the maximum requests are in flight, or there is no connection
+     * and an attempt to make one failed.
+     */
+    private void awaitRoom() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            if (connection == null && (connectFailed || !connecting) || unanswered.size() < maxInFlight) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (connection != null) {
+                    connectionLost(connection);
+                }
+                throw new SocketTimeoutException("No response from " + url + " within " + timeoutMillis + " ms");
+            }
+            try {
+                changed.awaitNanos(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a response from " + url);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection, waiting for at most the timeout; called without the lock held.
+     */
+    private SocketChannel open() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            // requests are written whole, there is nothing to wait for
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(new InetSocketAddress(host, port), timeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Takes the new connection into use and posts the requests still unanswered again.
+     */
+    private void connected(SocketChannel channel) throws IOException {
+        Connection opened = new Connection(channel);
+        connection = opened;
+        connectFailed = false;
+        changed.signalAll();
+        Thread reader = new Thread(opened, "gelf-http-reader");
+        reader.setDaemon(true);
+        reader.start();
+        try {
+            for (Request request : unanswered) {
+                opened.write(request);
+                retriedCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            connectionLost(opened);
+            throw e;
+        }
+    }
+
+    private void connectionLost(Connection lost) {
+        if (connection == lost) {
+            connection = null;
+            if (!unanswered.isEmpty()) {
+                reconnect();
+            }
+        }
+        lost.close();
+        changed.signalAll();
+    }
+
+    private void reconnect() {
+        if (!connecting && !shutdown) {
+            connecting = true;
+            Thread connector = new Thread(new Connector(), "gelf-http-connect");
+            connector.setDaemon(true);
+            connector.start();
+        }
+    }
+
+    /**
+     * Posts what is batched and waits for the outstanding responses, for at most the
+     * timeout; a first connection still being made is waited for too.
+     */
+    public void close() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long remaining;
+        lock.lock();
+        try {
+            while (connection == null && connecting && !connectFailed && (remaining = deadline - System.nanoTime()) > 0) {
+                changed.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        shutdown = true;
+        lock.lock();
+        try {
+            changed.signalAll();
+            if (batchLength > 0) {
+                post();
+            }
+            try {
+                while (connection != null && !unanswered.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    changed.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (connection != null) {
+                connectionLost(connection);
+            }
+            for (Request request : unanswered) {
+                droppedCount.addAndGet(request.messages);
+            }
+            unanswered.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called on the reading thread when the input rejected a batch, which sending had
+     * reported as accepted already; the result holds the status of the response.
+     *
+     * @param messages the number of messages in the batch
+     */
+    protected void onSendFailure(int messages, GelfSenderResult result) {
+    }
+
+    private void rejected(Request request, int status) {
+        IOException e = new IOException("HTTP status " + status + " from " + url + " for a batch of "
+                + request.messages + " messages");
+        try {
+            onSendFailure(request.messages, new GelfSenderResult(GelfSenderResult.ERROR_CODE, e));
+        } catch (RuntimeException ignored) {
+            // keep reading responses
+        }
+    }
+
+    /**
+     * Called on the connecting thread when an attempt to connect failed; tried again later.
+     */
+    protected void onConnectFailure(IOException e) {
+    }
+
+    public boolean isConnected() {
+        lock.lock();
+        try {
+            return connection != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether the input accepts connections: true while connected, or until an attempt to
+     * connect fails. Without a connection one is made in the background.
+     */
+    public boolean isReachable() {
+        lock.lock();
+        try {
+            if (connection == null) {
+                reconnect();
+            }
+            return connection != null || !connectFailed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Number of requests posted or waiting to be posted again, without a response yet.
+     */
+    public int getUnansweredCount() {
+        lock.lock();
+        try {
+            return unanswered.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of batches posted, not counting those posted again.
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Number of requests posted again after the connection was lost before their response.
+     */
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * Number of messages in batches the server answered with an error status.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Number of messages dropped because no connection could be made.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GelfHTTPSender{" +
+                "url=" + url +
+                ", batchSize=" + batchSize +
+                ", maxInFlight=" + maxInFlight +
+                ", requests=" + requestCount +
+                ", retried=" + retriedCount +
+                ", rejected=" + rejectedCount +
+                ", dropped=" + droppedCount +
+                '}';
+    }
+
+    private static class Request {
+        final byte[] head;
+        final byte[] body;
+        final int messages;
+
+        Request(byte[] head, byte[] body, int messages) {
+            this.head = head;
+            this.body = body;
+            this.messages = messages;
+        }
+    }
+
+    /**
+     * Writes the requests of one connection and reads their responses, in the order the
+     * requests were posted. The channel does not block, so that writing waits for the
+     * socket for at most the timeout; a socket timeout does not apply to channels.
+     */
+    private class Connection implements Runnable {
+        final SocketChannel channel;
+        private final Selector writeSelector;
+        private final Selector readSelector;
+        private final ByteBuffer in = ByteBuffer.allocate(4096);
+        private boolean closing;
+
+        Connection(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            Selector writing = null;
+            Selector reading = null;
+            try {
+                channel.configureBlocking(false);
+                writing = Selector.open();
+                channel.register(writing, SelectionKey.OP_WRITE);
+                reading = Selector.open();
+                channel.register(reading, SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeQuietly(writing);
+                closeQuietly(reading);
+                closeQuietly(channel);
+                throw e;
+            }
+            this.writeSelector = writing;
+            this.readSelector = reading;
+            in.flip();
+        }
+
+        /**
+         * Writes the request, waiting for the socket for at most the timeout; called with
+         * the lock held.
+         */
+        void write(Request request) throws IOException {
+            ByteBuffer[] buffers = {ByteBuffer.wrap(request.head), ByteBuffer.wrap(request.body)};
+            while (buffers[1].hasRemaining()) {
+                if (channel.write(buffers) == 0) {
+                    if (writeSelector.select(timeoutMillis) == 0) {
+                        throw new SocketTimeoutException("Cannot post to " + url + " within " + timeoutMillis + " ms");
+                    }
+                    writeSelector.selectedKeys().clear();
+                }
+            }
+        }
+
+        /**
+         * Closes the channel and wakes the reader, which closes its own selector; called
+         * with the lock held.
+         */
+        void close() {
+            closeQuietly(channel);
+            closeQuietly(writeSelector);
+            readSelector.wakeup();
+        }
+
+        public void run() {
+            try {
+                read();
+            } finally {
+                closeQuietly(readSelector);
+            }
+        }
+
+        private void read() {
+            try {
+                while (true) {
+                    int status = readResponse();
+                    Request request;
+                    lock.lock();
+                    try {
+                        if (connection != this) {
+                            return;
+                        }
+                        request = unanswered.poll();
+                        if (request == null) {
+                            throw new IOException("Response without a request from " + url);
+                        }
+                        if (status < 200 || status > 299) {
+                            rejectedCount.addAndGet(request.messages);
+                        }
+                        changed.signalAll();
+                        if (closing) {
+                            connectionLost(this);
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (status < 200 || status > 299) {
+                        rejected(request, status);
+                    }
+                    if (closing) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    if (connection == this) {
+                        // requests still unanswered are posted again
+                        connectionLost(this);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Reads a response and skips its body; returns the status code.
+         */
+        private int readResponse() throws IOException {
+            int status;
+            do {
+                String statusLine = readLine();
+                int space = statusLine.indexOf(' ');
+                if (!statusLine.startsWith("HTTP/") || space < 0 || statusLine.length() < space + 4) {
+                    throw new IOException("Invalid HTTP status line: " + statusLine);
+                }
+                try {
+                    status = Integer.parseInt(statusLine.substring(space + 1, space + 4));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid HTTP status line: " + statusLine);
+                }
+                closing = statusLine.startsWith("HTTP/1.0");
+                long length = -1;
+                boolean chunked = false;
+                String line;
+                while ((line = readLine()).length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon < 0) {
+                        continue;
+                    }
+                    String name = line.substring(0, colon).trim();
+                    String value = line.substring(colon + 1).trim();
+                    if ("Content-Length".equalsIgnoreCase(name)) {
+                        try {
+                            length = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Invalid Content-Length: " + value);
+                        }
+                    } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                        chunked = value.toLowerCase().indexOf("chunked") >= 0;
+                    } else if ("Connection".equalsIgnoreCase(name)) {
+                        closing = "close".equalsIgnoreCase(value);
+                    }
+                }
+                if (status / 100 == 1 || status == 204 || status == 304) {
+                    continue;
+                }
+                if (chunked) {
+                    skipChunks();
+                } else if (length >= 0) {
+                    skip(length);
+                } else {
+                    // the body ends with the connection, which cannot take another request
+                    closing = true;
+                }
+            } while (status / 100 == 1);
+            return status;
+        }
+
+        private void skipChunks() throws IOException {
+            while (true) {
+                String line = readLine();
+                int extension = line.indexOf(';');
+                long size;
+                try {
+                    size = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + line);
+                }
+                if (size == 0) {
+                    // trailers
+                    while (readLine().length() > 0) {
+                        // skipped
+                    }
+                    return;
+                }
+                skip(size);
+                readLine();
+            }
+        }
+
+        private void skip(long length) throws IOException {
+            while (length > 0) {
+                if (!in.hasRemaining()) {
+                    fill();
+                }
+                int step = (int) Math.min(in.remaining(), length);
+                in.position(in.position() + step);
+                length -= step;
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (!in.hasRemaining()) {
+                    fill();
+                }
+                int b = in.get() & 0xff;
+                if (b == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        line.setLength(end - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() == MAX_LINE_LENGTH) {
+                    throw new IOException("HTTP response line too long from " + url);
+                }
+                line.append((char) b);
+            }
+        }
+
+        private void fill() throws IOException {
+            in.clear();
+            int read;
+            try {
+                while ((read = channel.read(in)) == 0) {
+                    readSelector.select();
+                    readSelector.selectedKeys().clear();
+                }
+            } finally {
+                in.flip();
+            }
+            if (read < 0) {
+                throw new EOFException("Connection closed by " + url);
+            }
+        }
+    }
+
+    /**
+     * Connects in the background until connected, then posts the unanswered requests again.
+     */
+    private class Connector implements Runnable {
+        public void run() {
+            while (!shutdown) {
+                SocketChannel channel = null;
+                try {
+                    channel = open();
+                } catch (IOException e) {
+                    // tried again after a pause
+                    try {
+                        onConnectFailure(e);
+                    } catch (RuntimeException ignored) {
+                        // keep connecting
+                    }
+                }
+                lock.lock();
+                try {
+                    if (channel != null && !shutdown) {
+                        try {
+                            connected(channel);
+                            connecting = false;
+                            return;
+                        } catch (IOException e) {
+                            // lost again right away
+                        }
+                    } else if (channel != null) {
+                        closeQuietly(channel);
+                    }
+                    connectFailed = true;
+                    changed.signalAll();
+                    if (!shutdown) {
+                        changed.awaitNanos(CONNECT_RETRY_NANOS);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            lock.lock();
+            try {
+                connecting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // broken already, nothing left to do with it
+        }
+    }
+
+    /**
+     * Posts the batch once its first message has waited for the linger interval.
+     */
+    private class Flusher implements Runnable {
+        public void run() {
+            lock.lock();
+            try {
+                while (!shutdown) {
+                    try {
+                        if (batchLength == 0) {
+                            changed.await();
+                            continue;
+                        }
+                        long remaining = firstMessageNanos + lingerNanos - System.nanoTime();
+                        if (remaining > 0) {
+                            changed.awaitNanos(remaining);
+                            continue;
+                        }
+                        post();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package org.graylog2;
+
+import org.json.simple.JSONAware;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes GELF JSON documents as UTF-8 straight into a reusable byte buffer.
+ * <p>
+ * The output follows the escaping and value rendering rules of json-simple's
+ * {@code JSONValue.toJSONString}, so documents produced here decode to the same
+ * values as the ones produced by the former map based encoder.
+ */
+public class GelfJsonEncoder {
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private static final String ID_NAME = "id";
+
+    private static final byte[] VERSION_KEY = ascii("{\"version\":");
+    private static final byte[] HOST_KEY = ascii(",\"host\":");
+    private static final byte[] SHORT_MESSAGE_KEY = ascii(",\"short_message\":");
+    private static final byte[] FULL_MESSAGE_KEY = ascii(",\"full_message\":");
+    private static final byte[] TIMESTAMP_KEY = ascii(",\"timestamp\":");
+    private static final byte[] FACILITY_KEY = ascii(",\"facility\":");
+    private static final byte[] LEVEL_KEY = ascii(",\"level\":");
+    private static final byte[] FILE_KEY = ascii(",\"file\":");
+    private static final byte[] LINE_KEY = ascii(",\"line\":");
+    private static final byte[] EMPTY_SHORT_MESSAGE = ascii("\"<empty>\"");
+    private static final byte[] NULL = ascii("null");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+    private static final byte[] MIN_LONG = ascii(String.valueOf(Long.MIN_VALUE));
+    private static final byte[] HEX = ascii("0123456789ABCDEF");
+
+    /**
+     * Escape table for the ASCII range: 0 means the character is copied as is,
+     * 'u' means it is written as a \\uXXXX sequence and anything else is the
+     * character written after the backslash.
+     */
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = 'u';
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['/'] = '/';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\r'] = 'r';
+        ESCAPES['\t'] = 't';
+        ESCAPES[0x7F] = 'u';
+    }
+
+    private static final ThreadLocal<GelfJsonEncoder> ENCODERS = new ThreadLocal<GelfJsonEncoder>() {
+        @Override
+        protected GelfJsonEncoder initialValue() {
+            return new GelfJsonEncoder();
+        }
+    };
+
+    private byte[] buffer;
+    private int position;
+    private boolean acquired;
+    // running average of recent document sizes, used to size the buffer up front
+    private int estimatedSize;
+
+    public GelfJsonEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GelfJsonEncoder(int initialCapacity) {
+        this.buffer = new byte[Math.max(initialCapacity, 16)];
+        this.estimatedSize = Math.min(buffer.length, DEFAULT_CAPACITY) / 2;
+    }
+
+    /**
+     * Returns the encoder cached for the calling thread, or a fresh one if the cached
+     * encoder is already in use further up the stack. Hand it back with {@link #release()}.
+     */
+    public static GelfJsonEncoder acquire() {
+        GelfJsonEncoder encoder = ENCODERS.get();
+        if (encoder.acquired) {
+            encoder = new GelfJsonEncoder();
+        }
+        encoder.acquired = true;
+        encoder.reset();
+        return encoder;
+    }
+
+    public void release() {
+        acquired = false;
+        reset();
+    }
+
+    /**
+     * Clears the buffer for the next document. The size of the previous document feeds
+     * a running estimate: the buffer is grown to fit a typical recent document up front,
+     * and only given back when it is much larger than that and than MAX_RETAINED_CAPACITY.
+     */
+    public GelfJsonEncoder reset() {
+        if (position > 0) {
+            estimatedSize += (position - estimatedSize) >> 3;
+            position = 0;
+        }
+        int target = estimatedSize + (estimatedSize >> 1);
+        if (buffer.length < target) {
+            buffer = new byte[target];
+        } else if (buffer.length > MAX_RETAINED_CAPACITY && buffer.length > target << 1) {
+            buffer = new byte[Math.max(target, DEFAULT_CAPACITY)];
+        }
+        return this;
+    }
+
+    public int getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    /**
+     * Appends the JSON document of the given message to the buffer.
+     */
+    public GelfJsonEncoder encode(GelfMessage message) {
+        byte[] encoded = message.getEncoded();
+        if (encoded != null) {
+            writeBytes(encoded);
+            return this;
+        }
+        GelfEnvelope envelope = message.getEnvelope();
+        if (envelope != null && !overridesStaticField(message, envelope)) {
+            writeBytes(envelope.getEncoded());
+        } else if (envelope != null) {
+            // an event field of the same name replaces the static one, rather than repeating the key
+            writeHeader(envelope.getVersion(), envelope.getHost(), envelope.getFacility());
+            for (String name : envelope.getFieldNames()) {
+                if (!isEventField(message, name)) {
+                    writeField(name, envelope.getFields().get(name));
+                }
+            }
+        } else {
+            writeHeader(message.getVersion(), message.getHost(), message.getFacility());
+        }
+        CharSequence text = message.getMessageText();
+        if (text != null) {
+            int shortLength = message.getShortMessageLength();
+            writeBytes(SHORT_MESSAGE_KEY);
+            if (GelfMessage.isBlank(text, 0, shortLength)) {
+                writeBytes(EMPTY_SHORT_MESSAGE);
+            } else {
+                writeString(text, 0, shortLength);
+            }
+            writeBytes(FULL_MESSAGE_KEY);
+            writeString(text, 0, text.length());
+        } else {
+            writeBytes(SHORT_MESSAGE_KEY);
+            writeString(message.getShortMessage());
+            writeBytes(FULL_MESSAGE_KEY);
+            writeString(message.getFullMessage());
+        }
+        writeBytes(TIMESTAMP_KEY);
+        writeByte('"');
+        writeTimestamp(message.getTimestampMillis(), message.getMicrosOfMillisecond());
+        writeByte('"');
+
+        writeBytes(LEVEL_KEY);
+        try {
+            writeLong(Long.parseLong(message.getLevel()));
+        } catch (NumberFormatException e) {
+            writeLong(6L); // fallback to info
+        }
+
+        if (null != message.getFile()) {
+            writeBytes(FILE_KEY);
+            writeString(message.getFile());
+        }
+        if (null != message.getLine()) {
+            writeBytes(LINE_KEY);
+            try {
+                writeLong(Long.parseLong(message.getLine()));
+            } catch (NumberFormatException e) {
+                writeLong(-1L);
+            }
+        }
+
+        Map<String, Object> ownFields = message.getOwnFields();
+        if (!ownFields.isEmpty()) {
+            for (Map.Entry<String, Object> additionalField : ownFields.entrySet()) {
+                if (!ID_NAME.equals(additionalField.getKey())) {
+                    writeField(additionalField.getKey(), additionalField.getValue());
+                }
+            }
+        }
+        for (int i = 0; i < message.getReusableFieldCount(); i++) {
+            if (!ID_NAME.equals(message.getReusableFieldName(i))) {
+                writeField(message.getReusableFieldName(i), message.getReusableFieldValue(i));
+            }
+        }
+        Map<String, ?> contextFields = message.getContextFields();
+        if (contextFields != null && !contextFields.isEmpty()) {
+            for (Map.Entry<String, ?> additionalField : contextFields.entrySet()) {
+                if (!ID_NAME.equals(additionalField.getKey())) {
+                    writeField(additionalField.getKey(), additionalField.getValue());
+                }
+            }
+        }
+
+        writeByte('}');
+        return this;
+    }
+
+    private static boolean overridesStaticField(GelfMessage message, GelfEnvelope envelope) {
+        for (String name : envelope.getFieldNames()) {
+            if (isEventField(message, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isEventField(GelfMessage message, String name) {
+        if (message.getOwnFields().containsKey(name)) {
+            return true;
+        }
+        for (int i = 0; i < message.getReusableFieldCount(); i++) {
+            if (name.equals(message.getReusableFieldName(i))) {
+                return true;
+            }
+        }
+        Map<String, ?> contextFields = message.getContextFields();
+        return contextFields != null && contextFields.containsKey(name);
+    }
+
+    /**
+     * Opens the document with the fields shared by all messages of a sender.
+     */
+    void writeHeader(String version, String host, String facility) {
+        writeBytes(VERSION_KEY);
+        writeString(version);
+        writeBytes(HOST_KEY);
+        writeString(host);
+        writeBytes(FACILITY_KEY);
+        writeString(facility);
+    }
+
+    void writeField(String key, Object value) {
+        writeByte(',');
+        writeByte('"');
+        writeByte('_');
+        writeEscaped(key);
+        writeByte('"');
+        writeByte(':');
+        writeValue(value);
+    }
+
+    public int size() {
+        return position;
+    }
+
+    /**
+     * The backing array; only the first {@link #size()} bytes are valid.
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[position];
+        System.arraycopy(buffer, 0, bytes, 0, position);
+        return bytes;
+    }
+
+    /**
+     * Wraps the encoded bytes without copying them. The view is only valid until the
+     * encoder is reset or written to again.
+     */
+    public ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buffer, 0, position);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return new String(buffer, 0, position, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("No UTF-8 support available.", e);
+        }
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) b;
+    }
+
+    void writeBytes(byte[] bytes) {
+        writeBytes(bytes, 0, bytes.length);
+    }
+
+    void writeBytes(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeBytes(MIN_LONG);
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+    }
+
+    /**
+     * Renders epoch millis (plus microseconds within the millisecond when known, -1 otherwise)
+     * as decimal seconds without trailing zeros, the same text as
+     * {@code new BigDecimal(millis).divide(new BigDecimal(1000)).toPlainString()}.
+     */
+    void writeTimestamp(long millis, int microsOfMillisecond) {
+        long units = millis;
+        long divisor = 1000L;
+        int scale = 3;
+        if (microsOfMillisecond >= 0) {
+            units = millis * 1000L + microsOfMillisecond;
+            divisor = 1000000L;
+            scale = 6;
+        }
+        long fraction = units % divisor;
+        if (units < 0) {
+            writeByte('-');
+            fraction = -fraction;
+        }
+        writeLong(Math.abs(units / divisor));
+        if (fraction == 0) {
+            return;
+        }
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            scale--;
+        }
+        ensureCapacity(scale + 1);
+        buffer[position++] = '.';
+        for (int i = position + scale - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+        }
+        position += scale;
+    }
+
+    static String formatTimestamp(long millis, int microsOfMillisecond) {
+        GelfJsonEncoder encoder = new GelfJsonEncoder(32);
+        encoder.writeTimestamp(millis, microsOfMillisecond);
+        return encoder.toString();
+    }
+
+    void writeString(String value) {
+        if (value == null) {
+            writeBytes(NULL);
+            return;
+        }
+        writeByte('"');
+        writeEscaped(value);
+        writeByte('"');
+    }
+
+    void writeString(CharSequence value, int start, int end) {
+        writeByte('"');
+        writeEscaped(value, start, end);
+        writeByte('"');
+    }
+
+    /**
+     * Writes the value the way {@code JSONValue.toJSONString} renders it. Character sequences
+     * other than strings, which json-simple would write unquoted, are written as JSON strings.
+     */
+    @SuppressWarnings("unchecked")
+    void writeValue(Object value) {
+        if (value == null) {
+            writeBytes(NULL);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof CharSequence) {
+            CharSequence sequence = (CharSequence) value;
+            writeString(sequence, 0, sequence.length());
+        } else if (value instanceof Double) {
+            Double d = (Double) value;
+            if (d.isInfinite() || d.isNaN()) {
+                writeBytes(NULL);
+            } else {
+                writeRaw(d.toString());
+            }
+        } else if (value instanceof Float) {
+            Float f = (Float) value;
+            if (f.isInfinite() || f.isNaN()) {
+                writeBytes(NULL);
+            } else {
+                writeRaw(f.toString());
+            }
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            writeRaw(value.toString());
+        } else if (value instanceof Boolean) {
+            writeBytes(((Boolean) value) ? TRUE : FALSE);
+        } else if (value instanceof JSONAware) {
+            writeRaw(((JSONAware) value).toJSONString());
+        } else if (value instanceof Map) {
+            writeMap((Map<Object, Object>) value);
+        } else if (value instanceof List) {
+            writeList((List<Object>) value);
+        } else {
+            writeRaw(value.toString());
+        }
+    }
+
+    private void writeMap(Map<Object, Object> map) {
+        writeByte('{');
+        boolean first = true;
+        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(String.valueOf(entry.getKey()));
+            writeByte(':');
+            writeValue(entry.getValue());
+        }
+        writeByte('}');
+    }
+
+    private void writeList(List<Object> list) {
+        writeByte('[');
+        for (Iterator<Object> it = list.iterator(); it.hasNext(); ) {
+            writeValue(it.next());
+            if (it.hasNext()) {
+                writeByte(',');
+            }
+        }
+        writeByte(']');
+    }
+
+    /**
+     * Escapes and UTF-8 encodes the characters of the value. The buffer always keeps
+     * room for one byte per remaining character, so plain ASCII runs need no checks.
+     */
+    void writeEscaped(CharSequence value) {
+        writeEscaped(value, 0, value.length());
+    }
+
+    void writeEscaped(CharSequence value, int start, int end) {
+        ensureCapacity(end - start);
+        byte[] buf = buffer;
+        int pos = position;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80 && ESCAPES[c] == 0) {
+                buf[pos++] = (byte) c;
+                continue;
+            }
+            position = pos;
+            ensureCapacity(12 + end - i);
+            buf = buffer;
+            if (c < 0x80) {
+                byte escape = ESCAPES[c];
+                buf[position++] = '\\';
+                if (escape == 'u') {
+                    writeUnicodeEscape(c);
+                } else {
+                    buf[position++] = escape;
+                }
+            } else if (c <= 0x9F || (c >= 0x2000 && c <= 0x20FF)) {
+                buf[position++] = '\\';
+                writeUnicodeEscape(c);
+            } else {
+                i = writeUtf8(value, i, c, end);
+            }
+            pos = position;
+        }
+        position = pos;
+    }
+
+    /**
+     * Writes the string UTF-8 encoded without any JSON escaping.
+     */
+    void writeRaw(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[position++] = (byte) c;
+            } else {
+                ensureCapacity(4 + length - i);
+                i = writeUtf8(value, i, c, length);
+            }
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        buffer[position++] = 'u';
+        buffer[position++] = HEX[(c >> 12) & 0xF];
+        buffer[position++] = HEX[(c >> 8) & 0xF];
+        buffer[position++] = HEX[(c >> 4) & 0xF];
+        buffer[position++] = HEX[c & 0xF];
+    }
+
+    /**
+     * Encodes one non-ASCII character (or surrogate pair) and returns the index of the
+     * last character consumed. Unpaired surrogates become '?' like String.getBytes does.
+     */
+    private int writeUtf8(CharSequence value, int index, char c, int length) {
+        if (c < 0x800) {
+            buffer[position++] = (byte) (0xC0 | (c >> 6));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && index + 1 < length && Character.isLowSurrogate(value.charAt(index + 1))) {
+            int codePoint = Character.toCodePoint(c, value.charAt(index + 1));
+            buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            return index + 1;
+        } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+            buffer[position++] = '?';
+        } else {
+            buffer[position++] = (byte) (0xE0 | (c >> 12));
+            buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[position++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    void ensureCapacity(int additional) {
+        int required = position + additional;
+        if (required > buffer.length) {
+            int newCapacity = Math.max(buffer.length << 1, required);
+            byte[] grown = new byte[newCapacity];
+            System.arraycopy(buffer, 0, grown, 0, position);
+            buffer = grown;
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        try {
+            return value.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("JVM without ascii support?", e);
+        }
+    }
+}
@@ -1,36 +1,38 @@
 package org.graylog2;
 
-import org.json.simple.JSONValue;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.math.BigDecimal;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
 public class GelfMessage {
 
-    private static final String ID_NAME = "id";
-    private static final String GELF_VERSION = "1.1";
+    static final String GELF_VERSION = "1.1";
+    static final String DEFAULT_FACILITY = "gelf-java";
+    static final int MAX_SHORT_MESSAGE_LENGTH = 250;
     private static final byte[] GELF_CHUNKED_ID = new byte[]{0x1e, 0x0f};
     private static final int MAXIMUM_CHUNK_SIZE = 1420;
-    private static final BigDecimal TIME_DIVISOR = new BigDecimal(1000);
+    private static final int CHUNK_HEADER_SIZE = 12;
 
     private String version = GELF_VERSION;
     private String host;
-    private byte[] hostBytes = lastFourAsciiBytes("none");
     private String shortMessage;
     private String fullMessage;
     private long javaTimestamp;
+    private int microsOfMillisecond = -1;
     private String level;
-    private String facility = "gelf-java";
+    private String facility = DEFAULT_FACILITY;
     private String line;
     private String file;
     private Map<String, Object> additonalFields = new HashMap<String, Object>();
+    private GelfEnvelope envelope;
+    // set by reusable messages instead of the short and full message strings
+    private CharSequence messageText;
+    // the short message is taken from no more than this prefix of the message text
+    private int messageTextShortLength = Integer.MAX_VALUE;
+    private Map<String, ?> contextFields;
+    private String[] reusableFieldNames = new String[0];
+    private Object[] reusableFieldValues = new Object[0];
+    private int reusableFieldCount;
 
     public GelfMessage() {
     }
@@ -49,154 +51,135 @@ public class GelfMessage {
     }
 
     public String toJson() {
-        Map<String, Object> map = new HashMap<String, Object>();
-
-        map.put("version", getVersion());
-        map.put("host", getHost());
-        map.put("short_message", getShortMessage());
-        map.put("full_message", getFullMessage());
-        map.put("timestamp", getTimestamp());
-
-        map.put("facility", getFacility());
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
         try {
-            map.put("level", Long.parseLong(getLevel()));
-        } catch (NumberFormatException e) {
-            map.put("level", 6L); // fallback to info
-        }
-
-        if (null != getFile()) {
-            map.put("file", getFile());
-        }
-        if (null != getLine()) {
-            try {
-                map.put("line", Long.parseLong(getLine()));
-            } catch (NumberFormatException e) {
-                map.put("line", -1L);
-            }
+            return encoder.encode(this).toString();
+        } finally {
+            encoder.release();
         }
+    }
 
-        for (Map.Entry<String, Object> additionalField : additonalFields.entrySet()) {
-            if (!ID_NAME.equals(additionalField.getKey())) {
-                map.put("_" + additionalField.getKey(), additionalField.getValue());
-            }
-        }
+    public ByteBuffer[] toUDPBuffers() {
+        return toUDPBuffers(GelfCompressor.DEFAULT);
+    }
 
-        return JSONValue.toJSONString(map);
+    public ByteBuffer[][] toUDPChunks() {
+        return toUDPChunks(GelfCompressor.DEFAULT);
     }
 
-    public ByteBuffer[] toUDPBuffers() {
-        byte[] messageBytes = gzipMessage(toJson());
-        // calculate the length of the datagrams array
-        int diagrams_length = messageBytes.length / MAXIMUM_CHUNK_SIZE;
-        // In case of a remainder, due to the integer division, add a extra datagram
-        if (messageBytes.length % MAXIMUM_CHUNK_SIZE != 0) {
-            diagrams_length++;
-        }
-        ByteBuffer[] datagrams = new ByteBuffer[diagrams_length];
-        if (messageBytes.length > MAXIMUM_CHUNK_SIZE) {
-            sliceDatagrams(messageBytes, datagrams);
-        } else {
-            datagrams[0] = ByteBuffer.allocate(messageBytes.length);
-            datagrams[0].put(messageBytes);
-            datagrams[0].flip();
+    public ByteBuffer[] toUDPBuffers(GelfCompressor compressor) {
+        ByteBuffer[][] chunks = toUDPChunks(compressor);
+        ByteBuffer[] datagrams = new ByteBuffer[chunks.length];
+        for (int idx = 0; idx < chunks.length; idx++) {
+            if (chunks[idx].length == 1) {
+                datagrams[idx] = chunks[idx][0];
+            } else {
+                ByteBuffer header = chunks[idx][0];
+                ByteBuffer payload = chunks[idx][1];
+                datagrams[idx] = ByteBuffer.allocate(header.remaining() + payload.remaining());
+                datagrams[idx].put(header).put(payload);
+                datagrams[idx].flip();
+            }
         }
         return datagrams;
     }
 
-    public ByteBuffer toTCPBuffer() {
+    /**
+     * Compresses the message and splits it into datagrams, each given as the buffers to hand
+     * to a gathering write: either just the payload, or a 12 byte chunk header followed by a
+     * slice of the compressed payload. No part of the payload is copied.
+     */
+    public ByteBuffer[][] toUDPChunks(GelfCompressor compressor) {
         byte[] messageBytes;
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
         try {
-            // Do not use GZIP, as the headers will contain \0 bytes
-            // graylog2-server uses \0 as a delimiter for TCP frames
-            // see: https://github.com/Graylog2/graylog2-server/issues/127
-            String json = toJson() ;
-            json += '\0';
-            messageBytes = json.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("No UTF-8 support available.", e);
+            messageBytes = compressor.compressDatagramPayload(encoder.encode(this), MAXIMUM_CHUNK_SIZE);
+        } finally {
+            encoder.release();
         }
 
-        ByteBuffer buffer = ByteBuffer.allocate(messageBytes.length);
-        buffer.put(messageBytes);
-        buffer.flip();
-        return buffer;
-    }
-
-    public ByteBuffer toAMQPBuffer() {
-        byte[] messageBytes = gzipMessage(toJson());
-        ByteBuffer buffer = ByteBuffer.allocate(messageBytes.length);
-        buffer.put(messageBytes);
-        buffer.flip();
-        return buffer;
-    }
-
-    private void sliceDatagrams(byte[] messageBytes, ByteBuffer[] datagrams) {
         int messageLength = messageBytes.length;
-        byte[] messageId = ByteBuffer.allocate(8)
-                .putInt(getCurrentMillis())       // 4 least-significant-bytes of the time in millis
-                .put(hostBytes)                                // 4 least-significant-bytes of the host
-                .array();
+        if (messageLength <= MAXIMUM_CHUNK_SIZE) {
+            return new ByteBuffer[][]{{ByteBuffer.wrap(messageBytes)}};
+        }
 
-        // Reuse length of datagrams array since this is supposed to be the correct number of datagrams
-        int num = datagrams.length;
+        // calculate the number of datagrams, adding one for the remainder of the integer division
+        int num = (messageLength + MAXIMUM_CHUNK_SIZE - 1) / MAXIMUM_CHUNK_SIZE;
+        byte[] headers = new byte[num * CHUNK_HEADER_SIZE];
+        writeChunkHeader(headers, 0, 0, num);
+        ByteBuffer[][] chunks = new ByteBuffer[num][];
         for (int idx = 0; idx < num; idx++) {
-            byte[] header = concatByteArray(GELF_CHUNKED_ID, concatByteArray(messageId, new byte[]{(byte) idx, (byte) num}));
-            int from = idx * MAXIMUM_CHUNK_SIZE;
-            int to = from + MAXIMUM_CHUNK_SIZE;
-            if (to >= messageLength) {
-                to = messageLength;
+            int offset = idx * CHUNK_HEADER_SIZE;
+            if (idx > 0) {
+                // every chunk carries the message id of the first header
+                System.arraycopy(headers, 0, headers, offset, CHUNK_HEADER_SIZE - 2);
+                headers[offset + CHUNK_HEADER_SIZE - 2] = (byte) idx;
+                headers[offset + CHUNK_HEADER_SIZE - 1] = (byte) num;
             }
-
-            byte[] range = new byte[to - from];
-            System.arraycopy(messageBytes, from, range, 0, range.length);
-            
-            byte[] datagram = concatByteArray(header, range);
-            datagrams[idx] = ByteBuffer.allocate(datagram.length);
-            datagrams[idx].put(datagram);
-            datagrams[idx].flip();
+            int from = idx * MAXIMUM_CHUNK_SIZE;
+            int length = Math.min(MAXIMUM_CHUNK_SIZE, messageLength - from);
+            chunks[idx] = new ByteBuffer[]{
+                    ByteBuffer.wrap(headers, offset, CHUNK_HEADER_SIZE),
+                    ByteBuffer.wrap(messageBytes, from, length)};
         }
+        return chunks;
     }
 
-    public int getCurrentMillis() {
-        return (int) System.currentTimeMillis();
+    private void writeChunkHeader(byte[] headers, int offset, int idx, int num) {
+        long id = GelfChunkIds.next();
+        headers[offset] = GELF_CHUNKED_ID[0];
+        headers[offset + 1] = GELF_CHUNKED_ID[1];
+        for (int i = 0; i < 8; i++) {
+            headers[offset + 2 + i] = (byte) (id >>> (56 - 8 * i));
+        }
+        headers[offset + 10] = (byte) idx;
+        headers[offset + 11] = (byte) num;
     }
 
-    private byte[] gzipMessage(String message) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
+    public ByteBuffer toTCPBuffer() {
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
         try {
-            GZIPOutputStream stream = new GZIPOutputStream(bos);
-            byte[] bytes;
-            try {
-                bytes = message.getBytes("UTF-8");
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException("No UTF-8 support available.", e);
-            }
-            stream.write(bytes);
-            stream.finish();
-            stream.close();
-            byte[] zipped = bos.toByteArray();
-            bos.close();
-            return zipped;
-        } catch (IOException e) {
-            return null;
+            return ByteBuffer.wrap(writeTCPFrame(encoder).toByteArray());
+        } finally {
+            encoder.release();
         }
     }
 
-    private byte[] lastFourAsciiBytes(String host) {
-        final String shortHost = host.length() >= 4 ? host.substring(host.length() - 4) : host;
+    /**
+     * Appends the null delimited TCP frame of this message to the encoder's buffer, so
+     * senders can write it straight from {@link GelfJsonEncoder#buffer()} without copying.
+     */
+    public GelfJsonEncoder writeTCPFrame(GelfJsonEncoder encoder) {
+        // Do not use GZIP, as the headers will contain \0 bytes
+        // graylog2-server uses \0 as a delimiter for TCP frames
+        // see: https://github.com/Graylog2/graylog2-server/issues/127
+        encoder.encode(this).writeByte('\0');
+        return encoder;
+    }
+
+    public ByteBuffer toAMQPBuffer() {
+        return toAMQPBuffer(GelfCompressor.DEFAULT);
+    }
+
+    public ByteBuffer toAMQPBuffer(GelfCompressor compressor) {
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
         try {
-            return shortHost.getBytes("ASCII");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("JVM without ascii support?", e);
+            return ByteBuffer.wrap(compressor.compress(encoder.encode(this)));
+        } finally {
+            encoder.release();
         }
     }
 
+    public int getCurrentMillis() {
+        return (int) System.currentTimeMillis();
+    }
+
     public String getVersion() {
         return version;
     }
 
     public void setVersion(String version) {
+        detachEnvelope();
         this.version = version;
     }
 
@@ -205,38 +188,106 @@ public class GelfMessage {
     }
 
     public void setHost(String host) {
+        detachEnvelope();
         this.host = host;
-        this.hostBytes = lastFourAsciiBytes(host);
     }
 
     public String getShortMessage() {
+        if (messageText != null) {
+            return !isBlank(messageText, 0, getShortMessageLength()) ? messageText.subSequence(0, getShortMessageLength()).toString() : "<empty>";
+        }
         return !isEmpty(shortMessage) ? shortMessage : "<empty>";
     }
 
     public void setShortMessage(String shortMessage) {
+        detachMessageText();
         this.shortMessage = shortMessage;
     }
 
     public String getFullMessage() {
+        if (messageText != null) {
+            return messageText.toString();
+        }
         return fullMessage;
     }
 
     public void setFullMessage(String fullMessage) {
+        detachMessageText();
         this.fullMessage = fullMessage;
     }
 
+    public CharSequence getMessageText() {
+        return messageText;
+    }
+
+    /**
+     * Sets the full message from a (possibly reused) character sequence and derives the
+     * short message from its first characters, without creating any strings. The sequence
+     * must not change until the message has been sent.
+     */
+    public void setMessageText(CharSequence messageText) {
+        setMessageText(messageText, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #setMessageText(CharSequence)}, with the short message derived from no more
+     * than the first characters given, so that what is appended after them, such as a stack
+     * trace, only shows in the full message.
+     */
+    public void setMessageText(CharSequence messageText, int shortLength) {
+        this.messageText = messageText;
+        this.messageTextShortLength = shortLength;
+        this.shortMessage = null;
+        this.fullMessage = null;
+    }
+
+    /**
+     * Length of the prefix of the message text used as short message.
+     */
+    int getShortMessageLength() {
+        int length = Math.min(messageText.length(), messageTextShortLength);
+        return length > MAX_SHORT_MESSAGE_LENGTH ? MAX_SHORT_MESSAGE_LENGTH - 1 : length;
+    }
+
+    private void detachMessageText() {
+        if (messageText != null) {
+            shortMessage = messageText.subSequence(0, getShortMessageLength()).toString();
+            fullMessage = messageText.toString();
+            messageText = null;
+        }
+    }
+
     public String getTimestamp() {
-        return new BigDecimal(javaTimestamp).divide(TIME_DIVISOR).toPlainString();
+        return GelfJsonEncoder.formatTimestamp(javaTimestamp, microsOfMillisecond);
     }
 
     public Long getJavaTimestamp() {
         return javaTimestamp;
     }
 
+    long getTimestampMillis() {
+        return javaTimestamp;
+    }
+
     public void setJavaTimestamp(long javaTimestamp) {
         this.javaTimestamp = javaTimestamp;
     }
 
+    /**
+     * Microseconds within the millisecond of the timestamp, or -1 when only millisecond
+     * precision is known.
+     */
+    public int getMicrosOfMillisecond() {
+        return microsOfMillisecond;
+    }
+
+    public void setMicrosOfMillisecond(int microsOfMillisecond) {
+        if (microsOfMillisecond < -1 || microsOfMillisecond > 999) {
+            throw new IllegalArgumentException("Microseconds of millisecond out of range: " + microsOfMillisecond);
+        }
+        this.microsOfMillisecond = microsOfMillisecond;
+    }
+
     public String getLevel() {
         return level;
     }
@@ -250,6 +301,7 @@ public class GelfMessage {
     }
 
     public void setFacility(String facility) {
+        detachEnvelope();
         this.facility = facility;
     }
 
@@ -270,31 +322,189 @@ public class GelfMessage {
     }
 
     public GelfMessage addField(String key, String value) {
-        getAdditonalFields().put(key, value);
+        additonalFields.put(key, value);
         return this;
     }
 
     public GelfMessage addField(String key, Object value) {
-        getAdditonalFields().put(key, value);
+        additonalFields.put(key, value);
         return this;
     }
 
+    /**
+     * The additional fields of this message, as the map that is sent: changes to it show in
+     * the message. The fields of an envelope, reusable fields and context fields are moved
+     * into the map first, so the message gives up its pre-encoded envelope.
+     */
     public Map<String, Object> getAdditonalFields() {
+        detachEnvelope();
+        for (int i = 0; i < reusableFieldCount; i++) {
+            additonalFields.put(reusableFieldNames[i], reusableFieldValues[i]);
+        }
+        clearReusableFields();
+        if (contextFields != null) {
+            additonalFields.putAll(contextFields);
+            contextFields = null;
+        }
+        return additonalFields;
+    }
+
+    Map<String, ?> getContextFields() {
+        return contextFields;
+    }
+
+    /**
+     * Adds the entries of a map as additional fields by reference, for example a logging
+     * event's context map, instead of copying them into this message.
+     */
+    public void setContextFields(Map<String, ?> contextFields) {
+        this.contextFields = contextFields;
+    }
+
+    /**
+     * Sets an additional field kept in a small array rather than the field map, so a message
+     * that is reused for many events overwrites the value in place without allocating.
+     */
+    public GelfMessage setReusableField(String name, Object value) {
+        for (int i = 0; i < reusableFieldCount; i++) {
+            if (reusableFieldNames[i] == name || reusableFieldNames[i].equals(name)) {
+                reusableFieldValues[i] = value;
+                return this;
+            }
+        }
+        if (reusableFieldCount == reusableFieldNames.length) {
+            String[] names = new String[reusableFieldCount + 4];
+            Object[] values = new Object[reusableFieldCount + 4];
+            System.arraycopy(reusableFieldNames, 0, names, 0, reusableFieldCount);
+            System.arraycopy(reusableFieldValues, 0, values, 0, reusableFieldCount);
+            reusableFieldNames = names;
+            reusableFieldValues = values;
+        }
+        reusableFieldNames[reusableFieldCount] = name;
+        reusableFieldValues[reusableFieldCount] = value;
+        reusableFieldCount++;
+        return this;
+    }
+
+    void clearReusableFields() {
+        for (int i = 0; i < reusableFieldCount; i++) {
+            reusableFieldValues[i] = null;
+        }
+        reusableFieldCount = 0;
+    }
+
+    int getReusableFieldCount() {
+        return reusableFieldCount;
+    }
+
+    String getReusableFieldName(int index) {
+        return reusableFieldNames[index];
+    }
+
+    Object getReusableFieldValue(int index) {
+        return reusableFieldValues[index];
+    }
+
+    /**
+     * Only the fields added to this message, without the ones of its envelope.
+     */
+    Map<String, Object> getOwnFields() {
         return additonalFields;
     }
 
     public void setAdditonalFields(Map<String, Object> additonalFields) {
+        detachEnvelope();
         this.additonalFields = new HashMap<String, Object>(additonalFields);
     }
 
+    public GelfEnvelope getEnvelope() {
+        return envelope;
+    }
+
+    /**
+     * Takes version, host, facility and the static additional fields from a pre-encoded
+     * envelope. Changing any of them on the message afterwards detaches the envelope again.
+     */
+    public void setEnvelope(GelfEnvelope envelope) {
+        if (envelope == this.envelope) {
+            return;
+        }
+        detachEnvelope();
+        if (envelope != null) {
+            this.version = envelope.getVersion();
+            this.host = envelope.getHost();
+            this.facility = envelope.getFacility();
+            this.envelope = envelope;
+        }
+    }
+
+    private void detachEnvelope() {
+        if (envelope != null) {
+            for (Map.Entry<String, Object> field : envelope.getFields().entrySet()) {
+                if (!additonalFields.containsKey(field.getKey())) {
+                    additonalFields.put(field.getKey(), field.getValue());
+                }
+            }
+            envelope = null;
+        }
+    }
+
+    /**
+     * The JSON document of a message that was encoded before, written as it is instead of
+     * encoding the fields; null for ordinary messages.
+     */
+    byte[] getEncoded() {
+        return null;
+    }
+
+    /**
+     * A rough size of the encoded document in bytes, to weigh messages without encoding them.
+     */
+    int getSizeEstimate() {
+        byte[] encoded = getEncoded();
+        if (encoded != null) {
+            return encoded.length;
+        }
+        // version, host, timestamp, level and facility
+        int size = 128;
+        if (messageText != null) {
+            size += getShortMessageLength() + messageText.length();
+        } else {
+            size += (shortMessage == null ? 0 : shortMessage.length()) + (fullMessage == null ? 0 : fullMessage.length());
+        }
+        int fields = additonalFields.size() + reusableFieldCount;
+        if (envelope != null) {
+            fields += envelope.getFields().size();
+        }
+        if (contextFields != null) {
+            fields += contextFields.size();
+        }
+        return size + 32 * fields;
+    }
+
     public boolean isValid() {
         return isShortOrFullMessagesExists() && !isEmpty(version) && !isEmpty(host) && !isEmpty(facility);
     }
 
     private boolean isShortOrFullMessagesExists() {
+        if (messageText != null) {
+            return !isBlank(messageText, 0, messageText.length());
+        }
         return !isEmpty(shortMessage) || !isEmpty(fullMessage);
     }
 
+    /**
+     * Same as {@link #isEmpty(String)} on the given range, without creating a string.
+     */
+    static boolean isBlank(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public boolean isEmpty(String str) {
         return str == null || "".equals(str.trim());
     }
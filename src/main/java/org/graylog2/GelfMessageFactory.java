@@ -1,26 +1,53 @@
 package org.graylog2;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.ThreadContext.ContextStack;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.json.simple.JSONAware;
 import org.graylog2.log.Log4jVersionChecker;
 
 public class GelfMessageFactory {
 
-    private static final int MAX_SHORT_MESSAGE_LENGTH = 250;
     private static final String ORIGIN_HOST_KEY = "originHost";
     private static final String LOGGER_NAME = "logger";
     private static final String LOGGER_NDC = "loggerNdc";
     private static final String THREAD_NAME = "thread";
     private static final String JAVA_TIMESTAMP = "timestampMs";
+    private static final String[] STANDARD_LEVELS = new String[]{"0", "100", "200", "300", "400", "500", "600"};
+    // renders like the toString() of an empty ContextStack
+    private static final JSONAware EMPTY_NDC = new JSONAware() {
+        public String toJSONString() {
+            return "[]";
+        }
+    };
 
-    @SuppressWarnings("unchecked")
     public static GelfMessage makeMessage(Layout<String> layout, LogEvent event, GelfMessageProvider provider) {
+        return makeMessage(layout, event, provider, null);
+    }
+
+    /**
+     * Encodes the parts of a message that are the same for every event of the provider:
+     * version, origin host, facility and the configured additional fields.
+     */
+    public static GelfEnvelope makeEnvelope(GelfMessageProvider provider) {
+        String host = provider.getOriginHost();
+        Map<String, String> fields = new HashMap<String, String>(provider.getFields());
+        if (host == null && fields.containsKey(ORIGIN_HOST_KEY)) {
+            host = fields.remove(ORIGIN_HOST_KEY);
+        }
+        return new GelfEnvelope(host, provider.getFacility(), fields);
+    }
+
+    /**
+     * Builds the message for an event; when an envelope made by {@link #makeEnvelope} is given
+     * the static fields are taken from it instead of being copied into every message.
+     */
+    @SuppressWarnings("unchecked")
+    public static GelfMessage makeMessage(Layout<String> layout, LogEvent event, GelfMessageProvider provider, GelfEnvelope envelope) {
         long timeStamp = Log4jVersionChecker.getTimeStamp(event);
         Level level = event.getLevel();
 
@@ -36,42 +63,50 @@ public class GelfMessageFactory {
         }
 
         String renderedMessage = layout != null ? layout.toSerializable(event) : event.getMessage().getFormattedMessage();
-        String shortMessage;
 
         if (renderedMessage == null) {
             renderedMessage = "";
         }
+        CharSequence messageText = renderedMessage;
 
         if (provider.isExtractStacktrace()) {
             Throwable throwableInformation = event.getThrown();
             if (throwableInformation != null) {
-                renderedMessage += "\n\r" + extractStacktrace(throwableInformation);
+                StringBuilder builder = new StringBuilder(renderedMessage.length() + 2048);
+                builder.append(renderedMessage).append("\n\r");
+                stackTraceRenderer(provider).appendTo(throwableInformation, builder);
+                messageText = builder;
             }
         }
 
-        if (renderedMessage.length() > MAX_SHORT_MESSAGE_LENGTH) {
-            shortMessage = renderedMessage.substring(0, MAX_SHORT_MESSAGE_LENGTH - 1);
-        } else {
-            shortMessage = renderedMessage;
-        }
-
-        GelfMessage gelfMessage = new GelfMessage(shortMessage, renderedMessage, timeStamp,
+        // short and full message are both written from the message text, so the stack
+        // trace is copied into the JSON document only once
+        GelfMessage gelfMessage = new GelfMessage(null, null, timeStamp,
                 String.valueOf(level.intLevel()), lineNumber, file);
+        gelfMessage.setMessageText(messageText);
 
-        if (provider.getOriginHost() != null) {
-            gelfMessage.setHost(provider.getOriginHost());
+        if (provider.isMicrosecondPrecision()) {
+            gelfMessage.setMicrosOfMillisecond(Log4jVersionChecker.getMicrosOfMillisecond(event));
         }
 
-        if (provider.getFacility() != null) {
-            gelfMessage.setFacility(provider.getFacility());
-        }
+        if (envelope != null) {
+            gelfMessage.setEnvelope(envelope);
+        } else {
+            if (provider.getOriginHost() != null) {
+                gelfMessage.setHost(provider.getOriginHost());
+            }
 
-        Map<String, String> fields = provider.getFields();
-        for (Map.Entry<String, String> entry : fields.entrySet()) {
-            if (entry.getKey().equals(ORIGIN_HOST_KEY) && gelfMessage.getHost() == null) {
-                gelfMessage.setHost(fields.get(ORIGIN_HOST_KEY));
-            } else {
-                gelfMessage.addField(entry.getKey(), entry.getValue());
+            if (provider.getFacility() != null) {
+                gelfMessage.setFacility(provider.getFacility());
+            }
+
+            Map<String, String> fields = provider.getFields();
+            for (Map.Entry<String, String> entry : fields.entrySet()) {
+                if (entry.getKey().equals(ORIGIN_HOST_KEY) && gelfMessage.getHost() == null) {
+                    gelfMessage.setHost(fields.get(ORIGIN_HOST_KEY));
+                } else {
+                    gelfMessage.addField(entry.getKey(), entry.getValue());
+                }
             }
         }
 
@@ -102,10 +137,111 @@ public class GelfMessageFactory {
         return gelfMessage;
     }
 
-    private static String extractStacktrace(Throwable throwable) {
-        StringWriter sw = new StringWriter();
-        PrintWriter pw = new PrintWriter(sw);
-        throwable.printStackTrace(pw);
-        return sw.toString();
+    /**
+     * Garbage-free variant of {@link #makeMessage}: refills the given reusable message for the
+     * event. Message text is formatted into the message's own builder where the message or
+     * layout supports it (log4j 2.6+), the context data is read in place (log4j 2.7+) or the
+     * context map referenced instead of copied, and the static fields come from the envelope.
+     * The message must not be used by anybody else until it has been sent.
+     */
+    public static GelfMessage makeReusableMessage(ReusableGelfMessage gelfMessage, Layout<String> layout, LogEvent event,
+                                                  GelfMessageProvider provider, GelfEnvelope envelope) {
+        gelfMessage.clear();
+
+        StringBuilder text = gelfMessage.resetText();
+        boolean formatted = layout != null
+                ? Log4jVersionChecker.toSerializable(layout, event, text)
+                : Log4jVersionChecker.formatTo(event.getMessage(), text);
+        CharSequence renderedMessage = text;
+        if (!formatted) {
+            // a formatter that failed may have appended part of its text
+            text.setLength(0);
+            String rendered = layout != null ? layout.toSerializable(event) : event.getMessage().getFormattedMessage();
+            renderedMessage = rendered != null ? rendered : "";
+        }
+
+        if (provider.isExtractStacktrace()) {
+            Throwable throwableInformation = event.getThrown();
+            if (throwableInformation != null) {
+                if (renderedMessage != text) {
+                    text.append(renderedMessage);
+                    renderedMessage = text;
+                }
+                text.append("\n\r");
+                stackTraceRenderer(provider).appendTo(throwableInformation, text);
+            }
+        }
+        gelfMessage.setMessageText(renderedMessage);
+
+        long timeStamp = Log4jVersionChecker.getTimeStamp(event);
+        gelfMessage.setJavaTimestamp(timeStamp);
+        gelfMessage.setLevel(levelString(event.getLevel()));
+
+        if (provider.isIncludeLocation()) {
+            StackTraceElement locationInformation = event.getSource();
+            if (locationInformation != null) {
+                gelfMessage.setFile(locationInformation.getFileName());
+                gelfMessage.setLine(String.valueOf(locationInformation.getLineNumber()));
+            }
+        }
+
+        if (provider.isMicrosecondPrecision()) {
+            gelfMessage.setMicrosOfMillisecond(Log4jVersionChecker.getMicrosOfMillisecond(event));
+        }
+
+        gelfMessage.setEnvelope(envelope != null ? envelope : makeEnvelope(provider));
+
+        if (provider.isAddExtendedInformation()) {
+            gelfMessage.setReusableField(THREAD_NAME, event.getThreadName());
+            gelfMessage.setReusableField(LOGGER_NAME, event.getLoggerName());
+            gelfMessage.setReusableField(JAVA_TIMESTAMP, gelfMessage.resetTimestampMillis().append(timeStamp));
+
+            // log4j 2.7+ copies the context data into a new map for getContextMap()
+            if (!Log4jVersionChecker.forEachContextData(event, gelfMessage, provider)) {
+                Map<String, String> mdc = event.getContextMap();
+                if (mdc != null && !mdc.isEmpty()) {
+                    if (isTransformedToItself(provider, mdc)) {
+                        gelfMessage.setContextFields(mdc);
+                    } else {
+                        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+                            gelfMessage.addField(entry.getKey(), provider.transformExtendedField(entry.getKey(), entry.getValue()));
+                        }
+                    }
+                }
+            }
+
+            ContextStack ndc = event.getContextStack();
+            if (ndc != null) {
+                gelfMessage.setReusableField(LOGGER_NDC, ndc.getDepth() == 0 ? EMPTY_NDC : ndc);
+            }
+        }
+
+        return gelfMessage;
+    }
+
+    private static String levelString(Level level) {
+        int intLevel = level.intLevel();
+        if (intLevel >= 0 && intLevel % 100 == 0 && intLevel / 100 < STANDARD_LEVELS.length) {
+            return STANDARD_LEVELS[intLevel / 100];
+        }
+        return String.valueOf(intLevel);
+    }
+
+    /**
+     * True if the provider leaves every context value as it is (strings are their own
+     * toString()), so the context map can be encoded by reference.
+     */
+    private static boolean isTransformedToItself(GelfMessageProvider provider, Map<String, String> mdc) {
+        for (Map.Entry<String, String> entry : mdc.entrySet()) {
+            if (provider.transformExtendedField(entry.getKey(), entry.getValue()) != entry.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static GelfStackTraceRenderer stackTraceRenderer(GelfMessageProvider provider) {
+        GelfStackTraceRenderer renderer = provider.getStackTraceRenderer();
+        return renderer != null ? renderer : GelfStackTraceRenderer.DEFAULT;
     }
 }
@@ -4,10 +4,12 @@ import java.util.Map;
 
 public interface GelfMessageProvider {
     public boolean isExtractStacktrace();
+    public GelfStackTraceRenderer getStackTraceRenderer();
     public String getOriginHost();
     public String getFacility();
     public Map<String, String> getFields();
     public boolean isAddExtendedInformation();
     public boolean isIncludeLocation();
+    public boolean isMicrosecondPrecision();
     public Object transformExtendedField(String field, Object object);
 }
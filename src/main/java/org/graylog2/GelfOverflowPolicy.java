@@ -0,0 +1,29 @@
+package org.graylog2;
+
+/**
+ * What a {@link GelfAsyncSender} does with a message when its queue is full.
+ */
+public enum GelfOverflowPolicy {
+    /**
+     * Wait for free space, stalling the logging thread like a synchronous sender would.
+     */
+    BLOCK,
+    /**
+     * Discard the message being logged.
+     */
+    DROP_NEWEST,
+    /**
+     * Discard the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST;
+
+    /**
+     * Parses a configuration value (case insensitive), defaulting to BLOCK when the value is empty.
+     */
+    public static GelfOverflowPolicy fromString(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return BLOCK;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
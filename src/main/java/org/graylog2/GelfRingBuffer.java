@@ -0,0 +1,100 @@
+package org.graylog2;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue for any number of producers and consumers (Dmitry Vyukov's
+ * array based queue). Every slot carries a sequence number telling whether it is free for
+ * the producer or filled for the consumer of a given lap, so offering and polling only
+ * take a single compare-and-set on the shared position.
+ */
+class GelfRingBuffer<E> {
+
+    // the two positions live in one array, far enough apart not to share a cache line
+    private static final int ENQUEUE = 16;
+    private static final int DEQUEUE = 32;
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray positions = new AtomicLongArray(DEQUEUE + 16);
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    GelfRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<E>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of queued elements, only exact while no other thread is using the queue.
+     */
+    int size() {
+        long size = positions.get(ENQUEUE) - positions.get(DEQUEUE);
+        return size < 0 ? 0 : (int) Math.min(size, capacity());
+    }
+
+    /**
+     * Adds the element unless the queue is full.
+     */
+    boolean offer(E element) {
+        long position = positions.get(ENQUEUE);
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (positions.compareAndSet(ENQUEUE, position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = positions.get(ENQUEUE);
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = positions.get(ENQUEUE);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, null if the queue is empty.
+     */
+    E poll() {
+        long position = positions.get(DEQUEUE);
+        while (true) {
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (positions.compareAndSet(DEQUEUE, position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.lazySet(index, position + mask + 1);
+                    return element;
+                }
+                position = positions.get(DEQUEUE);
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = positions.get(DEQUEUE);
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ public class GelfSenderResult {
     public static final GelfSenderResult OK = new GelfSenderResult(1, null);
     public static final GelfSenderResult MESSAGE_NOT_VALID_OR_SHUTTING_DOWN = new GelfSenderResult(11, null);
     public static final GelfSenderResult MESSAGE_NOT_VALID = new GelfSenderResult(12, null);
+    public static final GelfSenderResult MESSAGE_DROPPED = new GelfSenderResult(13, null);
 
     private int code;
 
@@ -0,0 +1,62 @@
+package org.graylog2;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket options for the stream based senders.
+ */
+public class GelfSocketOptions {
+
+    /**
+     * The operating system defaults: Nagle's algorithm on and no keep-alive probes.
+     */
+    public static final GelfSocketOptions DEFAULT = new GelfSocketOptions(0, false, false);
+
+    private final int sendBufferSize;
+    private final boolean tcpNoDelay;
+    private final boolean keepAlive;
+
+    /**
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 to keep the system default
+     * @param tcpNoDelay     disable Nagle's algorithm so small writes go out at once
+     * @param keepAlive      send keep-alive probes on idle connections
+     */
+    public GelfSocketOptions(int sendBufferSize, boolean tcpNoDelay, boolean keepAlive) {
+        if (sendBufferSize < 0) {
+            throw new IllegalArgumentException("Invalid send buffer size: " + sendBufferSize);
+        }
+        this.sendBufferSize = sendBufferSize;
+        this.tcpNoDelay = tcpNoDelay;
+        this.keepAlive = keepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    void applyTo(Socket socket) throws SocketException {
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+    }
+
+    @Override
+    public String toString() {
+        return "GelfSocketOptions{" +
+                "sendBufferSize=" + sendBufferSize +
+                ", tcpNoDelay=" + tcpNoDelay +
+                ", keepAlive=" + keepAlive +
+                '}';
+    }
+}
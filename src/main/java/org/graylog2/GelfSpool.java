@@ -0,0 +1,317 @@
+package org.graylog2;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A write-ahead log of encoded messages in memory mapped segment files.
+ * <p>
+ * Records are appended to the newest segment, a new segment is started when it is full
+ * and a segment is deleted once it has been read completely. Appends only copy into the
+ * mapping and are never forced to disk, so spooled records survive a crash of the process
+ * but not necessarily one of the machine. The read position is kept in a mapped cursor
+ * file as well and is advanced after a record was handled; a record may therefore be read
+ * again after a restart, but never skipped.
+ * <p>
+ * The spool is guarded by a {@link ReentrantLock} rather than a monitor, as starting or
+ * deleting a segment does file I/O, which would pin the carrier of a virtual thread.
+ */
+public class GelfSpool {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "gelf-spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "gelf-spool.cursor";
+    // every record starts with its length; a length of 0 ends the segment
+    private static final int RECORD_HEADER = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    // oldest first, records are read from the first and appended to the last
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final MappedByteBuffer cursor;
+    private int readOffset;
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public GelfSpool(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Opens the spool in the given directory, continuing with the records left there.
+     *
+     * @param segmentSize bytes per segment file, which also limits the size of a record
+     * @param maxSize     bytes all segment files may take up together, at least two segments
+     */
+    public GelfSpool(File directory, int segmentSize, long maxSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER || maxSize / segmentSize < 2) {
+            throw new IllegalArgumentException("Invalid spool segment size " + segmentSize + " or maximum size " + maxSize);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxSize / segmentSize);
+        this.cursor = map(new File(directory, CURSOR_FILE), 12);
+
+        long readSequence = cursor.getLong(0);
+        for (File file : listSegments()) {
+            long sequence = sequenceOf(file);
+            if (sequence < readSequence) {
+                // read completely before the last shutdown
+                file.delete();
+            } else {
+                segments.add(new Segment(sequence, file));
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(readSequence, segmentFile(readSequence)));
+        }
+        if (segments.getFirst().sequence == readSequence) {
+            readOffset = Math.max(0, Math.min(cursor.getInt(8), segments.getFirst().capacity()));
+        }
+        segments.getLast().recover();
+        if (segments.size() == 1) {
+            readOffset = Math.min(readOffset, segments.getFirst().writeOffset);
+        }
+        saveCursor();
+    }
+
+    /**
+     * Appends a record. Returns false if it is larger than a segment, the spool is full or
+     * closed.
+     */
+    public boolean append(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            if (closed || length == 0) {
+                return false;
+            }
+            Segment tail = segments.getLast();
+            if (!tail.fits(length)) {
+                if (length > segmentSize - RECORD_HEADER || segments.size() >= maxSegments) {
+                    return false;
+                }
+                tail = new Segment(tail.sequence + 1, segmentFile(tail.sequence + 1));
+                segments.add(tail);
+            }
+            tail.append(bytes, offset, length);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the oldest record without consuming it, or null if there is none.
+     */
+    public byte[] peek() {
+        lock.lock();
+        try {
+            while (!closed) {
+                Segment head = segments.getFirst();
+                int length = head.recordLength(readOffset);
+                if (length > 0) {
+                    byte[] record = new byte[length];
+                    head.read(readOffset + RECORD_HEADER, record);
+                    return record;
+                }
+                if (head == segments.getLast()) {
+                    return null;
+                }
+                segments.removeFirst();
+                readOffset = 0;
+                saveCursor();
+                head.delete();
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Consumes the record last returned by {@link #peek()}.
+     */
+    public void advance() {
+        lock.lock();
+        try {
+            int length = segments.getFirst().recordLength(readOffset);
+            if (length > 0) {
+                readOffset += RECORD_HEADER + length;
+                saveCursor();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return segments.size() == 1 && segments.getFirst().recordLength(readOffset) == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes the mapped files to disk once and rejects further appends. Unread records are
+     * kept for the next time the directory is opened.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                segments.getLast().buffer.force();
+                cursor.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void saveCursor() {
+        cursor.putLong(0, segments.getFirst().sequence);
+        cursor.putInt(8, readOffset);
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%020d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long x = sequenceOf(a);
+                long y = sequenceOf(b);
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long minimumSize) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < minimumSize) {
+                raf.setLength(minimumSize);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.min(raf.length(), Integer.MAX_VALUE));
+        } finally {
+            raf.close();
+        }
+    }
+
+    private class Segment {
+        private final long sequence;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int writeOffset;
+
+        Segment(long sequence, File file) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            // existing segments keep their size, even if the configured one changed
+            this.buffer = map(file, segmentSize);
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        boolean fits(int length) {
+            return writeOffset + RECORD_HEADER + length <= capacity();
+        }
+
+        void append(byte[] bytes, int offset, int length) {
+            // the length goes in last, so a record cut short by a crash reads as the end
+            buffer.position(writeOffset + RECORD_HEADER);
+            buffer.put(bytes, offset, length);
+            buffer.putInt(writeOffset, length);
+            writeOffset += RECORD_HEADER + length;
+        }
+
+        int recordLength(int offset) {
+            if (offset + RECORD_HEADER > capacity()) {
+                return 0;
+            }
+            int length = buffer.getInt(offset);
+            return length > 0 && length <= capacity() - offset - RECORD_HEADER ? length : 0;
+        }
+
+        void read(int offset, byte[] record) {
+            buffer.position(offset);
+            buffer.get(record);
+        }
+
+        /**
+         * Finds the end of the records written before the spool was last closed, and clears
+         * what follows so a partly written record cannot be mistaken for a complete one later.
+         */
+        void recover() {
+            int length;
+            while ((length = recordLength(writeOffset)) > 0) {
+                writeOffset += RECORD_HEADER + length;
+            }
+            for (int i = writeOffset; i < capacity(); i++) {
+                if (buffer.get(i) != 0) {
+                    buffer.put(i, (byte) 0);
+                }
+            }
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                // still mapped on some platforms; removed when the spool is opened again
+                file.deleteOnExit();
+            }
+        }
+    }
+}
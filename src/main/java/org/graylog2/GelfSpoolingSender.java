@@ -0,0 +1,234 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps messages another sender could not send in a {@link GelfSpool} and sends them from a
+ * background thread once that sender works again.
+ * <p>
+ * Messages go straight to the wrapped sender while the spool is empty. As soon as it holds
+ * anything, new messages are appended behind it, so the order is kept; checking the spool
+ * and sending or appending happen under one {@link ReentrantLock}, so messages are passed
+ * to the wrapped sender one at a time, without pinning the carrier of a virtual thread
+ * that blocks in it. A spooled message may be sent twice if the process stops
+ * between sending it and advancing the spool.
+ */
+public class GelfSpoolingSender implements GelfSender {
+
+    public static final long DEFAULT_RETRY_MILLIS = 1000L;
+
+    private final GelfSender sender;
+    private final GelfSpool spool;
+    private final long retryNanos;
+    private final Thread replayer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong spooledCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    public GelfSpoolingSender(GelfSender sender, GelfSpool spool) {
+        this(sender, spool, DEFAULT_RETRY_MILLIS);
+    }
+
+    /**
+     * @param retryMillis how long to wait after the wrapped sender failed to send a spooled
+     *                    message before trying again
+     */
+    public GelfSpoolingSender(GelfSender sender, GelfSpool spool, long retryMillis) {
+        if (retryMillis < 1) {
+            throw new IllegalArgumentException("Invalid spool retry interval: " + retryMillis);
+        }
+        this.sender = sender;
+        this.spool = spool;
+        this.retryNanos = TimeUnit.MILLISECONDS.toNanos(retryMillis);
+        this.replayer = new Thread(new Replayer(), "gelf-spool-replay");
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Sends the message, or spools it when that fails or older messages are still spooled.
+     * Returns {@link GelfSenderResult#MESSAGE_DROPPED} if the spool is full.
+     */
+    public GelfSenderResult sendMessage(GelfMessage message) {
+        if (shutdown || !message.isValid()) {
+            return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
+        }
+        lock.lock();
+        try {
+            if (spool.isEmpty() && GelfSenderResult.OK.equals(sender.sendMessage(message))) {
+                return GelfSenderResult.OK;
+            }
+
+            GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
+            try {
+                // timestamp and microseconds go first, the AMQP sender passes them on besides the document
+                encoder.writeLong(message.getJavaTimestamp());
+                encoder.writeByte(' ');
+                encoder.writeLong(message.getMicrosOfMillisecond());
+                encoder.writeByte(' ');
+                encoder.encode(message);
+                if (!spool.append(encoder.buffer(), 0, encoder.size())) {
+                    droppedCount.incrementAndGet();
+                    return GelfSenderResult.MESSAGE_DROPPED;
+                }
+            } catch (IOException e) {
+                return new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+            } finally {
+                encoder.release();
+            }
+        } finally {
+            lock.unlock();
+        }
+        spooledCount.incrementAndGet();
+        LockSupport.unpark(replayer);
+        return GelfSenderResult.OK;
+    }
+
+    /**
+     * Stops replaying and closes the wrapped sender and the spool. Messages still spooled are
+     * sent the next time the spool directory is used.
+     */
+    public void close() {
+        shutdown = true;
+        LockSupport.unpark(replayer);
+        try {
+            replayer.join(TimeUnit.NANOSECONDS.toMillis(retryNanos) + 1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender.close();
+        spool.close();
+    }
+
+    public GelfSender getSender() {
+        return sender;
+    }
+
+    public GelfSpool getSpool() {
+        return spool;
+    }
+
+    public long getSpooledCount() {
+        return spooledCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * Number of messages lost because the spool was full.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "GelfSpoolingSender{" +
+                "sender=" + sender +
+                ", spool=" + spool.getDirectory() +
+                ", spooled=" + spooledCount +
+                ", replayed=" + replayedCount +
+                ", dropped=" + droppedCount +
+                '}';
+    }
+
+    /**
+     * Turns a spooled record back into a message, or returns null if it is corrupt. Host and
+     * facility are read from the document, which keeps them like GelfEncodedMessage.encode
+     * does; records spooled without microseconds have none.
+     */
+    static GelfMessage readRecord(byte[] record) {
+        int separator = nextSeparator(record, 0);
+        long timestamp;
+        int micros = -1;
+        try {
+            timestamp = Long.parseLong(new String(record, 0, separator));
+            if (separator < record.length - 1 && record[separator + 1] != '{') {
+                int start = separator + 1;
+                separator = nextSeparator(record, start);
+                micros = Integer.parseInt(new String(record, start, separator - start));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (separator >= record.length || micros < -1 || micros > 999) {
+            return null;
+        }
+        byte[] json = new byte[record.length - separator - 1];
+        System.arraycopy(record, separator + 1, json, 0, json.length);
+        GelfEncodedMessage message = new GelfEncodedMessage(timestamp, json);
+        message.setMicrosOfMillisecond(micros);
+        try {
+            Object document = JSONValue.parse(new String(json, "UTF-8"));
+            if (document instanceof Map) {
+                Object host = ((Map) document).get("host");
+                Object facility = ((Map) document).get("facility");
+                message.setHost(host != null ? host.toString() : null);
+                message.setFacility(facility != null ? facility.toString() : null);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return message;
+    }
+
+    private static int nextSeparator(byte[] record, int from) {
+        int separator = from;
+        while (separator < record.length && record[separator] != ' ') {
+            separator++;
+        }
+        return separator;
+    }
+
+    private class Replayer implements Runnable {
+        public void run() {
+            while (!shutdown) {
+                byte[] record = spool.peek();
+                if (record == null) {
+                    // woken up by the next append
+                    LockSupport.parkNanos(retryNanos);
+                    continue;
+                }
+                GelfMessage message = readRecord(record);
+                if (message == null) {
+                    spool.advance();
+                    continue;
+                }
+                GelfSenderResult result;
+                try {
+                    result = sender.sendMessage(message);
+                } catch (RuntimeException e) {
+                    result = new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+                }
+                if (GelfSenderResult.OK.equals(result)) {
+                    spool.advance();
+                    replayedCount.incrementAndGet();
+                } else {
+                    pause();
+                }
+            }
+        }
+
+        // appends wake the thread up, which must not shorten the wait after a failure
+        private void pause() {
+            long deadline = System.nanoTime() + retryNanos;
+            long remaining;
+            while (!shutdown && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+}
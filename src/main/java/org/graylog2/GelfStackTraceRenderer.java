@@ -0,0 +1,235 @@
+package org.graylog2;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Renders throwables in the layout of {@link Throwable#printStackTrace()} straight into the
+ * builder holding the message text, without going through a PrintWriter.
+ * <p>
+ * The output can be limited to a number of frames per throwable, runs of frames from
+ * filtered packages are collapsed into a single line, and the whole trace can be capped to
+ * a maximum number of characters.
+ */
+public class GelfStackTraceRenderer {
+
+    /**
+     * Renders complete stack traces.
+     */
+    public static final GelfStackTraceRenderer DEFAULT = new GelfStackTraceRenderer(0, null, 0);
+
+    private static final String CAUSE_CAPTION = "Caused by: ";
+    private static final String SUPPRESSED_CAPTION = "Suppressed: ";
+    private static final String TRUNCATED = "\n\t... truncated";
+    private static final Throwable[] NO_THROWABLES = new Throwable[0];
+    private static final Method METHOD_GET_SUPPRESSED = lookupGetSuppressed();
+
+    private final int maxDepth;
+    private final String[] filteredPackages;
+    private final int maxLength;
+
+    /**
+     * @param maxDepth         frames rendered per throwable, 0 for all of them
+     * @param filteredPackages package prefixes of frames to collapse, may be null
+     * @param maxLength        maximum number of characters of the whole trace, 0 for no limit
+     */
+    public GelfStackTraceRenderer(int maxDepth, String[] filteredPackages, int maxLength) {
+        if (maxDepth < 0 || maxLength < 0) {
+            throw new IllegalArgumentException("Invalid stack trace limits: depth " + maxDepth + ", length " + maxLength);
+        }
+        this.maxDepth = maxDepth;
+        this.filteredPackages = filteredPackages != null ? filteredPackages.clone() : new String[0];
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Splits a comma separated list of package prefixes, ignoring blank entries.
+     */
+    public static String[] parsePackages(String packages) {
+        if (packages == null) {
+            return new String[0];
+        }
+        List<String> prefixes = new ArrayList<String>();
+        for (String prefix : packages.split(",")) {
+            if (prefix.trim().length() > 0) {
+                prefixes.add(prefix.trim());
+            }
+        }
+        return prefixes.toArray(new String[prefixes.size()]);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public String[] getFilteredPackages() {
+        return filteredPackages.clone();
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public String render(Throwable throwable) {
+        StringBuilder builder = new StringBuilder(1024);
+        appendTo(throwable, builder);
+        return builder.toString();
+    }
+
+    public void appendTo(Throwable throwable, StringBuilder builder) {
+        int start = builder.length();
+        Map<Throwable, Boolean> seen = new IdentityHashMap<Throwable, Boolean>();
+        seen.put(throwable, Boolean.TRUE);
+        builder.append(throwable).append('\n');
+        StackTraceElement[] trace = throwable.getStackTrace();
+        if (appendFrames(builder, start, trace, 0, "")) {
+            appendEnclosed(builder, start, throwable, trace, "", seen);
+        }
+    }
+
+    private boolean appendEnclosed(StringBuilder builder, int start, Throwable throwable, StackTraceElement[] trace,
+                                   String prefix, Map<Throwable, Boolean> seen) {
+        for (Throwable suppressed : getSuppressed(throwable)) {
+            if (!appendThrowable(builder, start, suppressed, trace, SUPPRESSED_CAPTION, prefix + "\t", seen)) {
+                return false;
+            }
+        }
+        Throwable cause = throwable.getCause();
+        return cause == null || appendThrowable(builder, start, cause, trace, CAUSE_CAPTION, prefix, seen);
+    }
+
+    private boolean appendThrowable(StringBuilder builder, int start, Throwable throwable, StackTraceElement[] enclosingTrace,
+                                    String caption, String prefix, Map<Throwable, Boolean> seen) {
+        if (seen.containsKey(throwable)) {
+            builder.append(prefix).append("\t[CIRCULAR REFERENCE: ").append(throwable).append("]\n");
+            return !isTruncated(builder, start);
+        }
+        seen.put(throwable, Boolean.TRUE);
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int last = trace.length - 1;
+        int enclosingLast = enclosingTrace.length - 1;
+        while (last >= 0 && enclosingLast >= 0 && trace[last].equals(enclosingTrace[enclosingLast])) {
+            last--;
+            enclosingLast--;
+        }
+        int framesInCommon = trace.length - 1 - last;
+
+        builder.append(prefix).append(caption).append(throwable).append('\n');
+        if (!appendFrames(builder, start, trace, framesInCommon, prefix)) {
+            return false;
+        }
+        if (framesInCommon != 0) {
+            builder.append(prefix).append("\t... ").append(framesInCommon).append(" more\n");
+        }
+        return !isTruncated(builder, start) && appendEnclosed(builder, start, throwable, trace, prefix, seen);
+    }
+
+    /**
+     * Appends all frames but the trailing ones shared with the enclosing trace, returning
+     * false once the length cap has been hit.
+     */
+    private boolean appendFrames(StringBuilder builder, int start, StackTraceElement[] trace, int framesInCommon, String prefix) {
+        int end = trace.length - framesInCommon;
+        int rendered = 0;
+        int filtered = 0;
+        for (int i = 0; i < end; i++) {
+            if (maxDepth > 0 && rendered == maxDepth) {
+                appendFiltered(builder, prefix, filtered);
+                builder.append(prefix).append("\t... ").append(end - i).append(" omitted\n");
+                return !isTruncated(builder, start);
+            }
+            StackTraceElement frame = trace[i];
+            if (isFiltered(frame)) {
+                filtered++;
+                continue;
+            }
+            appendFiltered(builder, prefix, filtered);
+            filtered = 0;
+            appendFrame(builder, prefix, frame);
+            rendered++;
+            if (isTruncated(builder, start)) {
+                return false;
+            }
+        }
+        appendFiltered(builder, prefix, filtered);
+        return !isTruncated(builder, start);
+    }
+
+    private static void appendFiltered(StringBuilder builder, String prefix, int filtered) {
+        if (filtered != 0) {
+            builder.append(prefix).append("\t... ").append(filtered).append(" filtered\n");
+        }
+    }
+
+    private static void appendFrame(StringBuilder builder, String prefix, StackTraceElement frame) {
+        builder.append(prefix).append("\tat ").append(frame.getClassName()).append('.').append(frame.getMethodName());
+        if (frame.isNativeMethod()) {
+            builder.append("(Native Method)");
+        } else if (frame.getFileName() == null) {
+            builder.append("(Unknown Source)");
+        } else {
+            builder.append('(').append(frame.getFileName());
+            if (frame.getLineNumber() >= 0) {
+                builder.append(':').append(frame.getLineNumber());
+            }
+            builder.append(')');
+        }
+        builder.append('\n');
+    }
+
+    private boolean isFiltered(StackTraceElement frame) {
+        String className = frame.getClassName();
+        for (String filteredPackage : filteredPackages) {
+            if (className.startsWith(filteredPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cuts the trace down to the maximum length once it is exceeded.
+     */
+    private boolean isTruncated(StringBuilder builder, int start) {
+        if (maxLength > 0 && builder.length() - start > maxLength) {
+            builder.setLength(start + maxLength);
+            builder.append(TRUNCATED);
+            return true;
+        }
+        return false;
+    }
+
+    private static Throwable[] getSuppressed(Throwable throwable) {
+        if (METHOD_GET_SUPPRESSED != null) {
+            try {
+                return (Throwable[]) METHOD_GET_SUPPRESSED.invoke(throwable);
+            } catch (Exception e) {
+                // render without suppressed exceptions
+            }
+        }
+        return NO_THROWABLES;
+    }
+
+    // suppressed exceptions exist since Java 7
+    private static Method lookupGetSuppressed() {
+        try {
+            return Throwable.class.getMethod("getSuppressed");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GelfStackTraceRenderer{" +
+                "maxDepth=" + maxDepth +
+                ", filteredPackages=" + Arrays.toString(filteredPackages) +
+                ", maxLength=" + maxLength +
+                '}';
+    }
+}
@@ -1,59 +1,578 @@
 package org.graylog2;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Sends null terminated GELF frames over a TCP connection.
+ * <p>
+ * Frames are collected in a buffer and written together: immediately by default, or,
+ * with a linger interval, once the buffer is full or the oldest frame has waited for the
+ * interval, whichever comes first. A background flush that fails is counted, see
+ * {@link #getFlushFailureCount()}; its frames are kept like those of any lost connection.
+ * <p>
+ * Connections are made by a background thread, the first one right away and a lost one
+ * again after waiting exponentially longer (with jitter) between attempts; an input that
+ * is down does not keep the sender from being created. Meanwhile frames are kept in a bounded backlog
+ * and written in order once connected again; when the backlog is full new frames are
+ * dropped right away. Frames still buffered when the connection is lost go back to the
+ * front of the backlog. A frame that is held is accepted: sending it reports OK, only a
+ * frame that does not fit into the backlog any more is reported as dropped. A sender that is
+ * failed over, balanced or spooled from is therefore made without a backlog and without a
+ * linger interval, so that it reports every frame it cannot write.
+ * <p>
+ * Every connection goes to the next address of the {@link GelfEndpointResolver}, and a
+ * connection to an address that is no longer resolved is given up for one to a current one.
+ * <p>
+ * With {@link GelfTLSOptions} the connections are encrypted; a reconnection resumes the TLS
+ * session of the previous one.
+ * <p>
+ * Writes block while holding a {@link ReentrantLock} rather than a monitor, so that a
+ * virtual thread sending with this sender does not pin its carrier thread while it waits
+ * for the socket.
+ */
 public class GelfTCPSender implements GelfSender {
-	private boolean shutdown = false;
-	private InetAddress host;
-	private int port;
-	private Socket socket;
-    private OutputStream os;
 
-    public GelfTCPSender() {
-    }
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+	public static final int DEFAULT_BACKLOG_SIZE = 1000;
+	public static final long DEFAULT_RECONNECT_DELAY_MILLIS = 500L;
+	public static final long DEFAULT_MAX_RECONNECT_DELAY_MILLIS = 30000L;
+
+	private volatile boolean shutdown = false;
+	private GelfEndpointResolver resolver;
+	// the resolved addresses when the connection was last checked against them
+	private InetSocketAddress[] knownAddresses;
+	private InetSocketAddress connectedTo;
+	private GelfSocketOptions socketOptions = GelfSocketOptions.DEFAULT;
+	private GelfTLSOptions tls;
+	private long lingerNanos;
+	private GatheringByteChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+	private final ByteBuffer[] gather = new ByteBuffer[2];
+	private long firstFrameNanos;
+	private int backlogSize = DEFAULT_BACKLOG_SIZE;
+	private final LinkedList<byte[]> backlog = new LinkedList<byte[]>();
+	private long reconnectDelayMillis = DEFAULT_RECONNECT_DELAY_MILLIS;
+	private long maxReconnectDelayMillis = DEFAULT_MAX_RECONNECT_DELAY_MILLIS;
+	private boolean reconnecting;
+	// whether an attempt to connect has been made yet
+	private boolean attempted;
+	private final ReentrantLock lock = new ReentrantLock();
+	// signalled when the first frame is buffered, on the first attempt to connect and on shutdown
+	private final Condition changed = lock.newCondition();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong flushFailureCount = new AtomicLong();
+
+	public GelfTCPSender() {
+	}
 
 	public GelfTCPSender(String host, int port) throws IOException {
-		this.host = InetAddress.getByName(host);
-		this.port = port;
-		this.socket = new Socket(host, port);
-        this.os = socket.getOutputStream();
+		this(host, port, DEFAULT_BUFFER_SIZE, 0, GelfSocketOptions.DEFAULT);
+	}
+
+	public GelfTCPSender(String host, int port, int bufferSize, long lingerMillis, GelfSocketOptions socketOptions) throws IOException {
+		this(host, port, bufferSize, lingerMillis, socketOptions, DEFAULT_BACKLOG_SIZE, DEFAULT_RECONNECT_DELAY_MILLIS,
+				DEFAULT_MAX_RECONNECT_DELAY_MILLIS);
+	}
+
+	/**
+	 * @param bufferSize              bytes collected before they are written
+	 * @param lingerMillis            how long a frame may wait for more to be written with it, 0
+	 *                                to write every frame right away
+	 * @param socketOptions           options applied to every connection
+	 * @param backlogSize             frames kept while disconnected, 0 to drop them
+	 * @param reconnectDelayMillis    wait before the first reconnection attempt, doubled after
+	 *                                every failed one
+	 * @param maxReconnectDelayMillis upper bound of the wait between attempts
+	 */
+	public GelfTCPSender(String host, int port, int bufferSize, long lingerMillis, GelfSocketOptions socketOptions,
+						 int backlogSize, long reconnectDelayMillis, long maxReconnectDelayMillis) throws IOException {
+		this(new GelfEndpointResolver(host, port, 0), bufferSize, lingerMillis, socketOptions, backlogSize,
+				reconnectDelayMillis, maxReconnectDelayMillis);
 	}
 
+	/**
+	 * Connects to the addresses of the resolver, which is closed with this sender.
+	 */
+	public GelfTCPSender(GelfEndpointResolver resolver, int bufferSize, long lingerMillis, GelfSocketOptions socketOptions,
+						 int backlogSize, long reconnectDelayMillis, long maxReconnectDelayMillis) throws IOException {
+		this(resolver, bufferSize, lingerMillis, socketOptions, backlogSize, reconnectDelayMillis, maxReconnectDelayMillis, null);
+	}
+
+	/**
+	 * @param tls encrypts the connections, null to send in plain text
+	 */
+	public GelfTCPSender(GelfEndpointResolver resolver, int bufferSize, long lingerMillis, GelfSocketOptions socketOptions,
+						 int backlogSize, long reconnectDelayMillis, long maxReconnectDelayMillis, GelfTLSOptions tls) throws IOException {
+		if (bufferSize < 1 || lingerMillis < 0) {
+			throw new IllegalArgumentException("Invalid buffer size " + bufferSize + " or linger " + lingerMillis);
+		}
+		if (backlogSize < 0 || reconnectDelayMillis < 1 || maxReconnectDelayMillis < reconnectDelayMillis) {
+			throw new IllegalArgumentException("Invalid backlog size " + backlogSize + " or reconnect delays "
+					+ reconnectDelayMillis + "/" + maxReconnectDelayMillis);
+		}
+		this.resolver = resolver;
+		this.socketOptions = socketOptions;
+		this.tls = tls;
+		this.lingerNanos = lingerMillis * 1000000L;
+		this.backlogSize = backlogSize;
+		this.reconnectDelayMillis = reconnectDelayMillis;
+		this.maxReconnectDelayMillis = maxReconnectDelayMillis;
+		if (bufferSize != DEFAULT_BUFFER_SIZE) {
+			this.buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		// an input that is down at startup is waited for like a lost connection
+		lock.lock();
+		try {
+			reconnect(true);
+		} finally {
+			lock.unlock();
+		}
+		if (lingerNanos > 0) {
+			Thread flusher = new Thread(new Flusher(), "gelf-tcp-flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Writes or buffers the frame of the message. While disconnected, or if writing it loses
+	 * the connection, the frame is added to the backlog, or
+	 * {@link GelfSenderResult#MESSAGE_DROPPED} is returned if that is full; this never waits
+	 * for a connection to be established.
+	 */
 	public GelfSenderResult sendMessage(GelfMessage message) {
 		if (shutdown || !message.isValid()) {
 			return GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN;
 		}
 
+		// the frame is encoded by the calling thread, only the connection is shared
+		GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
 		try {
-			// reconnect if necessary
-			if (socket == null || os == null) {
-				socket = new Socket(host, port);
-                os = socket.getOutputStream();
+			message.writeTCPFrame(encoder);
+			lock.lock();
+			try {
+				if (channel != null && resolver.current() != knownAddresses) {
+					checkAddress();
+				}
+				if (channel == null) {
+					return hold(encoder.buffer(), encoder.size());
+				}
+				try {
+					write(encoder.buffer(), encoder.size());
+				} catch (IOException e) {
+					// the frame is replayed with the backlog; being the newest, it is the first to go if that is full
+					long dropped = droppedCount.get();
+					connectionLost();
+					return droppedCount.get() == dropped ? GelfSenderResult.OK : GelfSenderResult.MESSAGE_DROPPED;
+				}
+				return GelfSenderResult.OK;
+			} finally {
+				lock.unlock();
 			}
+		} finally {
+			encoder.release();
+		}
+	}
 
-            os.write(message.toTCPBuffer().array());
+	private GelfSenderResult hold(byte[] frame, int length) {
+		if (backlog.size() >= backlogSize) {
+			droppedCount.incrementAndGet();
+			return GelfSenderResult.MESSAGE_DROPPED;
+		}
+		byte[] copy = new byte[length];
+		System.arraycopy(frame, 0, copy, 0, length);
+		backlog.add(copy);
+		return GelfSenderResult.OK;
+	}
 
-			return GelfSenderResult.OK;
+	/**
+	 * Writes or buffers the frame. If that fails, the frame and the other unwritten ones are
+	 * either still buffered or already back in the backlog, so disconnecting keeps them all.
+	 */
+	private void write(byte[] frame, int length) throws IOException {
+		if (length > buffer.remaining()) {
+			// send what is buffered and the frame in one gathering write
+			buffer.flip();
+			gather[0] = buffer;
+			gather[1] = ByteBuffer.wrap(frame, 0, length);
+			try {
+				while (gather[1].hasRemaining()) {
+					channel.write(gather);
+				}
+			} catch (IOException e) {
+				unwind();
+				salvage(frame, length);
+				throw e;
+			} finally {
+				gather[1] = null;
+			}
+			buffer.clear();
+			return;
+		}
+		if (buffer.position() == 0) {
+			firstFrameNanos = System.nanoTime();
+			if (lingerNanos > 0) {
+				changed.signalAll();
+			}
+		}
+		buffer.put(frame, 0, length);
+		if (lingerNanos == 0 || !buffer.hasRemaining()) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			unwind();
+			throw e;
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Turns a buffer that failed to be written back into one being filled, holding the
+	 * unwritten frames; a frame written in part is kept whole.
+	 */
+	private void unwind() {
+		int start = buffer.position();
+		while (start > 0 && buffer.get(start - 1) != 0) {
+			start--;
+		}
+		buffer.position(start);
+		buffer.compact();
+	}
+
+	/**
+	 * Moves the buffered frames, followed by the given one if any, to the front of the
+	 * backlog, ahead of the frames held since they were accepted. The oldest frames are
+	 * kept if that is more than the backlog holds.
+	 */
+	private void salvage(byte[] frame, int length) {
+		LinkedList<byte[]> frames = new LinkedList<byte[]>();
+		int end = buffer.position();
+		int start = 0;
+		for (int i = 0; i < end; i++) {
+			if (buffer.get(i) == 0) {
+				byte[] copy = new byte[i + 1 - start];
+				buffer.position(start);
+				buffer.get(copy);
+				frames.add(copy);
+				start = i + 1;
+			}
+		}
+		buffer.clear();
+		if (frame != null) {
+			byte[] copy = new byte[length];
+			System.arraycopy(frame, 0, copy, 0, length);
+			frames.add(copy);
+		}
+		backlog.addAll(0, frames);
+		while (backlog.size() > backlogSize) {
+			backlog.removeLast();
+			droppedCount.incrementAndGet();
+		}
+	}
+
+	private GatheringByteChannel connect(InetSocketAddress address) throws IOException {
+		SocketChannel connected = SocketChannel.open();
+		try {
+			socketOptions.applyTo(connected.socket());
+			connected.connect(address);
 		} catch (IOException e) {
-			// if an error occours, signal failure
-			socket = null;
-			return new GelfSenderResult(GelfSenderResult.ERROR_CODE, e);
+			connected.close();
+			throw e;
+		}
+		if (tls == null) {
+			return connected;
+		}
+		// sessions are cached by the host name the certificate is checked against
+		return new GelfTLSChannel(connected, tls.createEngine(resolver.getHost(), address.getPort()), tls.getTimeoutMillis());
+	}
+
+	private void connected(GatheringByteChannel connected, InetSocketAddress address) {
+		channel = connected;
+		connectedTo = address;
+		knownAddresses = resolver.current();
+	}
+
+	/**
+	 * Gives the connection up if its address is no longer resolved; what is buffered is
+	 * written first, later frames go to the backlog until connected to a current address.
+	 */
+	private void checkAddress() {
+		knownAddresses = resolver.current();
+		if (Arrays.asList(knownAddresses).contains(connectedTo)) {
+			return;
+		}
+		try {
+			if (buffer.position() > 0) {
+				flush();
+			}
+		} catch (IOException e) {
+			// lost with the connection
+		}
+		connectionLost();
+	}
+
+	// a partly written buffer cannot be continued on a new connection, its frames are sent again
+	private void disconnect() {
+		if (buffer.position() > 0) {
+			salvage(null, 0);
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already broken
+			}
+			channel = null;
+		}
+	}
+
+	private void connectionLost() {
+		disconnect();
+		reconnect(false);
+	}
+
+	/**
+	 * Starts connecting in the background unless that is under way already.
+	 *
+	 * @param immediately make the first attempt without waiting for the reconnect delay
+	 */
+	private void reconnect(boolean immediately) {
+		if (!reconnecting && !shutdown) {
+			reconnecting = true;
+			Thread reconnector = new Thread(new Reconnector(immediately), "gelf-tcp-reconnect");
+			reconnector.setDaemon(true);
+			reconnector.start();
 		}
 	}
 
 	public void close() {
+		// frames sent right after the sender was made wait for the first connection
+		lock.lock();
+		try {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(reconnectDelayMillis);
+			long remaining;
+			while (!attempted && reconnecting && (remaining = deadline - System.nanoTime()) > 0) {
+				changed.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
 		shutdown = true;
+		if (resolver != null) {
+			resolver.close();
+		}
+		lock.lock();
 		try {
-            if (os != null){
-                os.close();
-            }
-			if (socket != null) {
-				socket.close();
+			changed.signalAll();
+			try {
+				if (channel != null && buffer.position() > 0) {
+					flush();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			disconnect();
+			backlog.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called on the reconnecting thread when an attempt to connect failed, for example
+	 * because the input is down or its TLS certificate is not trusted; tried again later.
+	 */
+	protected void onConnectFailure(InetSocketAddress address, IOException e) {
+	}
+
+	public boolean isConnected() {
+		lock.lock();
+		try {
+			return channel != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of frames waiting for the connection to be re-established.
+	 */
+	public int getBacklogSize() {
+		lock.lock();
+		try {
+			return backlog.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Number of frames dropped because the backlog was full.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Number of times the background flush of lingering frames lost the connection.
+	 */
+	public long getFlushFailureCount() {
+		return flushFailureCount.get();
+	}
+
+	public GelfEndpointResolver getResolver() {
+		return resolver;
+	}
+
+	public GelfSocketOptions getSocketOptions() {
+		return socketOptions;
+	}
+
+	public GelfTLSOptions getTLSOptions() {
+		return tls;
+	}
+
+	/**
+	 * Connects in the background, replays the backlog and hands the connection over.
+	 */
+	private class Reconnector implements Runnable {
+		private final Random random = new Random();
+		private boolean immediately;
+
+		Reconnector(boolean immediately) {
+			this.immediately = immediately;
+		}
+
+		public void run() {
+			long delay = reconnectDelayMillis;
+			while (!shutdown) {
+				// sleep between half and all of the delay, so that many clients do not retry in step
+				long jittered = delay / 2 + (long) (random.nextDouble() * (delay - delay / 2));
+				lock.lock();
+				try {
+					if (!shutdown && !immediately) {
+						changed.await(Math.max(1L, jittered), TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException e) {
+					reconnecting = false;
+					return;
+				} finally {
+					lock.unlock();
+				}
+				if (immediately) {
+					immediately = false;
+				} else {
+					delay = Math.min(delay * 2, maxReconnectDelayMillis);
+				}
+				if (shutdown) {
+					break;
+				}
+				InetSocketAddress address = resolver.next();
+				GatheringByteChannel connected;
+				try {
+					connected = connect(address);
+				} catch (IOException e) {
+					lock.lock();
+					try {
+						attempted = true;
+						changed.signalAll();
+					} finally {
+						lock.unlock();
+					}
+					try {
+						onConnectFailure(address, e);
+					} catch (RuntimeException ignored) {
+						// keep reconnecting
+					}
+					continue;
+				}
+				lock.lock();
+				try {
+					attempted = true;
+					changed.signalAll();
+					connected(connected, address);
+					try {
+						replay();
+						reconnecting = false;
+						return;
+					} catch (IOException e) {
+						disconnect();
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			lock.lock();
+			try {
+				reconnecting = false;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void replay() throws IOException {
+			byte[] frame;
+			while ((frame = backlog.poll()) != null) {
+				write(frame, frame.length);
+			}
+			if (buffer.position() > 0) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Writes buffered frames once the oldest of them has waited for the linger interval.
+	 */
+	private class Flusher implements Runnable {
+		public void run() {
+			lock.lock();
+			try {
+				while (!shutdown) {
+					try {
+						if (buffer.position() == 0) {
+							changed.await();
+							continue;
+						}
+						long remaining = firstFrameNanos + lingerNanos - System.nanoTime();
+						if (remaining > 0) {
+							changed.awaitNanos(remaining);
+							continue;
+						}
+						try {
+							flush();
+						} catch (IOException e) {
+							flushFailureCount.incrementAndGet();
+							connectionLost();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			} finally {
+				lock.unlock();
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
 }
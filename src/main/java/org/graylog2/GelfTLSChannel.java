@@ -0,0 +1,281 @@
+package org.graylog2;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A TLS connection on an {@link SSLEngine} over a non-blocking socket channel.
+ * <p>
+ * Everything given to one write is encrypted into as few records as the engine allows, and
+ * up to {@link #RECORDS_PER_WRITE} records go out with one write to the socket, so a
+ * buffer of many frames costs a handful of records instead of one per log line. What the
+ * server sends is read without waiting after every write; only handshake messages, session
+ * tickets and the closing of the connection are of interest.
+ */
+class GelfTLSChannel implements GatheringByteChannel {
+
+    static final int RECORDS_PER_WRITE = 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final long timeoutMillis;
+    private final Selector selector;
+    private final SelectionKey key;
+    // records not yet written to the socket, in fill mode
+    private final ByteBuffer netOut;
+    // bytes read from the socket, in fill mode
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private boolean closed;
+
+    /**
+     * Takes the connected channel over and completes the handshake, closing the channel if
+     * that fails.
+     */
+    GelfTLSChannel(SocketChannel channel, SSLEngine engine, long timeoutMillis) throws IOException {
+        this.channel = channel;
+        this.engine = engine;
+        this.timeoutMillis = timeoutMillis;
+        SSLSession session = engine.getSession();
+        this.netOut = ByteBuffer.allocateDirect(session.getPacketBufferSize() * RECORDS_PER_WRITE);
+        this.netIn = ByteBuffer.allocateDirect(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+        Selector opened = null;
+        boolean done = false;
+        try {
+            channel.configureBlocking(false);
+            opened = Selector.open();
+            this.selector = opened;
+            this.key = channel.register(selector, 0);
+            engine.beginHandshake();
+            handshake();
+            done = true;
+        } finally {
+            if (!done) {
+                if (opened != null) {
+                    opened.close();
+                }
+                channel.close();
+            }
+        }
+    }
+
+    SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public int write(ByteBuffer src) throws IOException {
+        single[0] = src;
+        try {
+            return (int) write(single, 0, 1);
+        } finally {
+            single[0] = null;
+        }
+    }
+
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Encrypts and writes all the bytes remaining in the buffers.
+     */
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += srcs[i].remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            reserveRecord();
+            SSLEngineResult result = engine.wrap(srcs, offset, length, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS connection closed");
+            }
+            written += result.bytesConsumed();
+            if (isHandshaking(result.getHandshakeStatus())) {
+                handshake();
+            }
+        }
+        flushNet();
+        drain();
+        return written;
+    }
+
+    public boolean isOpen() {
+        return !closed && channel.isOpen();
+    }
+
+    /**
+     * Sends close_notify if the socket takes it right away, and closes the connection.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException e) {
+            // the connection is given up anyway
+        } finally {
+            selector.close();
+            channel.close();
+        }
+    }
+
+    private void handshake() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (true) {
+            switch (status) {
+                case NEED_WRAP:
+                    reserveRecord();
+                    SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flushNet();
+                        throw new EOFException("TLS connection closed during the handshake");
+                    }
+                    status = result.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    // the server waits for what was wrapped so far
+                    flushNet();
+                    status = unwrap(true);
+                    break;
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    flushNet();
+                    return;
+                default:
+                    // NEED_UNWRAP_AGAIN of later JDKs, unwrapping what was read already
+                    status = unwrap(true);
+            }
+        }
+    }
+
+    /**
+     * Processes what the server sent without waiting for more.
+     */
+    private void drain() throws IOException {
+        SSLEngineResult.HandshakeStatus status;
+        while ((status = unwrap(false)) != null) {
+            if (isHandshaking(status)) {
+                handshake();
+            }
+        }
+    }
+
+    /**
+     * Unwraps one record, reading from the socket as needed. Returns null when no complete
+     * record arrived and the caller does not wait for one.
+     */
+    private SSLEngineResult.HandshakeStatus unwrap(boolean wait) throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            // the server has nothing to say to a log sender
+            appIn.clear();
+            switch (result.getStatus()) {
+                case OK:
+                    if (!wait && result.bytesConsumed() == 0 && !isHandshaking(result.getHandshakeStatus())) {
+                        return null;
+                    }
+                    return result.getHandshakeStatus();
+                case CLOSED:
+                    throw new EOFException("TLS connection closed by the server");
+                case BUFFER_OVERFLOW:
+                    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                    break;
+                default:
+                    if (!netIn.hasRemaining()) {
+                        ByteBuffer larger = ByteBuffer.allocateDirect(netIn.capacity() + engine.getSession().getPacketBufferSize());
+                        netIn.flip();
+                        larger.put(netIn);
+                        netIn = larger;
+                    }
+                    int read = channel.read(netIn);
+                    if (read < 0) {
+                        throw new EOFException("Connection closed by the server");
+                    }
+                    if (read == 0) {
+                        if (!wait) {
+                            return null;
+                        }
+                        await(SelectionKey.OP_READ);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Makes room for the largest record, writing out the ones waiting if needed.
+     */
+    private void reserveRecord() throws IOException {
+        if (netOut.remaining() < engine.getSession().getPacketBufferSize()) {
+            flushNet();
+        }
+    }
+
+    private void flushNet() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    await(SelectionKey.OP_WRITE);
+                }
+            }
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    private void await(int operation) throws IOException {
+        key.interestOps(operation);
+        try {
+            if (selector.select(timeoutMillis) == 0) {
+                throw new SocketTimeoutException("No progress on the TLS connection within " + timeoutMillis + " ms");
+            }
+        } finally {
+            selector.selectedKeys().clear();
+            key.interestOps(0);
+        }
+    }
+
+    private static boolean isHandshaking(SSLEngineResult.HandshakeStatus status) {
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                && status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+}
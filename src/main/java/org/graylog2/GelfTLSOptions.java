@@ -0,0 +1,136 @@
+package org.graylog2;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS settings for the TCP sender.
+ * <p>
+ * The same options should be shared by all connections to a Graylog server: the sessions
+ * of its {@link SSLContext} are cached per host and port, so a reconnection resumes the
+ * previous session instead of repeating the full handshake.
+ */
+public class GelfTLSOptions {
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000L;
+
+    // SSLParameters#setEndpointIdentificationAlgorithm exists since Java 7
+    private static final Method SET_ENDPOINT_IDENTIFICATION = lookupSetEndpointIdentification();
+
+    private final SSLContext context;
+    private final boolean verifyHostname;
+    private final long timeoutMillis;
+
+    /**
+     * @param verifyHostname check that the certificate of the server was issued for its host
+     *                       name; ignored before Java 7
+     * @param timeoutMillis  how long the handshake or a write may wait for the server
+     */
+    public GelfTLSOptions(SSLContext context, boolean verifyHostname, long timeoutMillis) {
+        if (context == null || timeoutMillis < 1) {
+            throw new IllegalArgumentException("Invalid SSL context " + context + " or timeout " + timeoutMillis);
+        }
+        this.context = context;
+        this.verifyHostname = verifyHostname;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Creates the options from key store files; stores ending in <code>.p12</code> or
+     * <code>.pfx</code> are read as PKCS#12, others with the default key store type.
+     *
+     * @param trustStore the certificates trusted, null for those trusted by the JVM
+     * @param keyStore   the client certificate and key, null to present none
+     */
+    public static GelfTLSOptions fromKeyStores(String trustStore, String trustStorePassword, String keyStore,
+                                               String keyStorePassword, boolean verifyHostname)
+            throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagers = null;
+        if (trustStore != null) {
+            trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(load(trustStore, trustStorePassword));
+        }
+        KeyManagerFactory keyManagers = null;
+        if (keyStore != null) {
+            keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(load(keyStore, keyStorePassword), password(keyStorePassword));
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers == null ? null : keyManagers.getKeyManagers(),
+                trustManagers == null ? null : trustManagers.getTrustManagers(), null);
+        return new GelfTLSOptions(context, verifyHostname, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+        String lower = path.toLowerCase();
+        KeyStore store = KeyStore.getInstance(lower.endsWith(".p12") || lower.endsWith(".pfx")
+                ? "PKCS12" : KeyStore.getDefaultType());
+        InputStream in = new FileInputStream(path);
+        try {
+            store.load(in, password(password));
+        } finally {
+            in.close();
+        }
+        return store;
+    }
+
+    private static char[] password(String password) {
+        return password == null ? null : password.toCharArray();
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    public boolean isVerifyHostname() {
+        return verifyHostname;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * A client engine for the server; the host and port select the cached session to resume.
+     */
+    SSLEngine createEngine(String host, int port) {
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        if (verifyHostname && SET_ENDPOINT_IDENTIFICATION != null) {
+            SSLParameters parameters = engine.getSSLParameters();
+            try {
+                SET_ENDPOINT_IDENTIFICATION.invoke(parameters, "HTTPS");
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot enable host name verification", e);
+            }
+            engine.setSSLParameters(parameters);
+        }
+        return engine;
+    }
+
+    private static Method lookupSetEndpointIdentification() {
+        try {
+            return SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "GelfTLSOptions{" +
+                "protocol=" + context.getProtocol() +
+                ", verifyHostname=" + verifyHostname +
+                ", timeoutMillis=" + timeoutMillis +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package org.graylog2;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the background threads of the senders: daemon platform threads, or virtual
+ * threads where they are asked for and the runtime has them (Java 21 and later).
+ * <p>
+ * A multi-release jar replaces this class on Java 21 and later with one that calls
+ * {@link Thread}'s builder directly; this one gets there by reflection.
+ */
+final class GelfThreads {
+
+    // Thread.ofVirtual() and the Thread.Builder methods, null without virtual threads
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+            // on Java 19 and 20 they are a preview, which fails to build one unless enabled
+            unstarted.invoke(name.invoke(ofVirtual.invoke(null), "gelf-probe"), new Runnable() {
+                public void run() {
+                }
+            });
+        } catch (Throwable e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private GelfThreads() {
+    }
+
+    static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * An unstarted thread running the task; virtual threads are daemon threads anyway.
+     *
+     * @param virtual use a virtual thread if the runtime supports them
+     */
+    static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot create a virtual thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -5,12 +5,47 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Sends messages as GELF datagrams, chunked when they do not fit into one.
+ * <p>
+ * The channel does not block. When the socket send buffer is full, a datagram is either
+ * given up at once or, with a send timeout, retried with short pauses until the timeout
+ * passes. A message whose chunks could not all be sent is lost: it is counted as dropped
+ * when no chunk was sent, and as partially sent otherwise. Once the first chunk is out,
+ * every further chunk gets the full timeout, so that messages are rarely cut short.
+ * <p>
+ * Without a send timeout a chunked message is sent all or nothing as far as that can be
+ * told up front: it is dropped before its first chunk if it is larger than the whole send
+ * buffer, or if the first chunk finds the buffer full. A later chunk can still find the
+ * buffer full, so a partial send remains possible, just rarer.
+ * <p>
+ * There is one connected channel per address of the Graylog host. Messages are sent to the
+ * addresses in turn, all chunks of a message to the same one, and channels are opened and
+ * closed as the {@link GelfEndpointResolver} finds addresses added or removed.
+ */
 public class GelfUDPSender implements GelfSender {
 
-	private InetAddress host;
-	private int port;
-	private DatagramChannel channel;
+	public static final long DEFAULT_SEND_TIMEOUT_MILLIS = 0L;
+
+	private static final long MIN_PAUSE_NANOS = 20000L;
+	private static final long MAX_PAUSE_NANOS = 1000000L;
+
+	private GelfEndpointResolver resolver;
+	private volatile Route route;
+	private final AtomicInteger next = new AtomicInteger();
+	private GelfCompressor compressor = GelfCompressor.DEFAULT;
+	private int sendBufferSize;
+	// SO_SNDBUF as granted by the system, which may differ from the size asked for
+	private volatile int sendBufferCapacity = Integer.MAX_VALUE;
+	private long sendTimeoutNanos;
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong partialCount = new AtomicLong();
 
 	private static final int MAX_RETRIES = 5;
 
@@ -22,64 +57,296 @@ public class GelfUDPSender implements GelfSender {
 	}
 
 	public GelfUDPSender(String host, int port) throws IOException {
-		this.host = InetAddress.getByName(host);
-		this.port = port;
-		setChannel(initiateChannel());
+		this(host, port, GelfCompressor.DEFAULT);
 	}
 
-	private DatagramChannel initiateChannel() throws IOException {
+	public GelfUDPSender(String host, int port, GelfCompressor compressor) throws IOException {
+		this(host, port, compressor, 0, DEFAULT_SEND_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * @param sendBufferSize    SO_SNDBUF in bytes, 0 to keep the system default
+	 * @param sendTimeoutMillis how long a datagram may wait for room in the send buffer, 0
+	 *                          to give it up right away
+	 */
+	public GelfUDPSender(String host, int port, GelfCompressor compressor, int sendBufferSize, long sendTimeoutMillis) throws IOException {
+		this(new GelfEndpointResolver(host, port, 0), compressor, sendBufferSize, sendTimeoutMillis);
+	}
+
+	/**
+	 * Sends to the addresses of the resolver, which is closed with this sender.
+	 */
+	public GelfUDPSender(GelfEndpointResolver resolver, GelfCompressor compressor, int sendBufferSize, long sendTimeoutMillis) throws IOException {
+		if (sendBufferSize < 0 || sendTimeoutMillis < 0) {
+			throw new IllegalArgumentException("Invalid send buffer size " + sendBufferSize + " or send timeout " + sendTimeoutMillis);
+		}
+		this.resolver = resolver;
+		this.compressor = compressor;
+		this.sendBufferSize = sendBufferSize;
+		this.sendTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(sendTimeoutMillis);
+		InetSocketAddress[] addresses = resolver.current();
+		DatagramChannel[] channels = new DatagramChannel[addresses.length];
+		for (int i = 0; i < addresses.length; i++) {
+			channels[i] = initiateChannel(addresses[i]);
+		}
+		this.route = new Route(addresses, channels);
+	}
+
+	private DatagramChannel initiateChannel(InetSocketAddress address) throws IOException {
 		DatagramChannel resultingChannel = DatagramChannel.open();
+		if (sendBufferSize > 0) {
+			resultingChannel.socket().setSendBufferSize(sendBufferSize);
+		}
+		sendBufferCapacity = resultingChannel.socket().getSendBufferSize();
 		resultingChannel.socket().bind(new InetSocketAddress(0));
-		resultingChannel.connect(new InetSocketAddress(this.host, this.port));
+		resultingChannel.connect(address);
 		resultingChannel.configureBlocking(false);
 
 		return resultingChannel;
 	}
 
+	/**
+	 * Returns {@link GelfSenderResult#MESSAGE_DROPPED} when not all chunks of the message
+	 * could be sent.
+	 */
 	public GelfSenderResult sendMessage(GelfMessage message) {
 		if (!message.isValid()) return GelfSenderResult.MESSAGE_NOT_VALID;
-		return sendDatagrams(message.toUDPBuffers());
+		return sendDatagrams(message.toUDPChunks(compressor));
 	}
 
-	private GelfSenderResult sendDatagrams(ByteBuffer[] bytesList) {
+	private GelfSenderResult sendDatagrams(ByteBuffer[][] datagrams) {
+		for (ByteBuffer[] datagram : datagrams) {
+			for (ByteBuffer buffer : datagram) {
+				buffer.mark();
+			}
+		}
 
 		int tries = 0;
+		// chunks sent so far and where to, a retry continues with the next one
+		int sent = 0;
+		InetSocketAddress sentTo = null;
 		Exception lastException = null;
 		do {
 
 			try {
 
-				if (!getChannel().isOpen()) {
-					setChannel(initiateChannel());
+				Route current = route;
+				if (resolver != null && current.addresses != resolver.current()) {
+					current = reroute();
 				}
-
-				for (ByteBuffer buffer : bytesList) {
-					getChannel().write(buffer);
+				int index = sent > 0 ? indexOf(current, sentTo) : -1;
+				if (index < 0) {
+					if (sent > 0) {
+						// the address of the first chunks went away, the message starts over on another one
+						rewind(datagrams, 0, sent);
+						sent = 0;
+					}
+					index = current.channels.length == 1 ? 0 : (next.getAndIncrement() & Integer.MAX_VALUE) % current.channels.length;
+					sentTo = current.addresses == null ? null : current.addresses[index];
+				}
+				DatagramChannel channel = current.channels[index];
+				if (!channel.isOpen()) {
+					channel = reopenChannel(index);
+				}
+				if (sent == 0 && sendTimeoutNanos == 0 && datagrams.length > 1 && size(datagrams) > sendBufferCapacity) {
+					// could never leave in one go
+					droppedCount.incrementAndGet();
+					return GelfSenderResult.MESSAGE_DROPPED;
 				}
 
-				return GelfSenderResult.OK;
+				// a gathering write sends the chunk header and payload slice as one datagram
+				while (sent < datagrams.length && write(channel, datagrams[sent])) {
+					sent++;
+				}
+				if (sent == datagrams.length) {
+					return GelfSenderResult.OK;
+				}
+				if (sent == 0) {
+					droppedCount.incrementAndGet();
+				} else {
+					partialCount.incrementAndGet();
+				}
+				return GelfSenderResult.MESSAGE_DROPPED;
 			} catch (IOException e) {
 				tries++;
 				lastException = e;
+				if (sent < datagrams.length) {
+					rewind(datagrams, sent, sent + 1);
+				}
 			}
 		} while (tries <= MAX_RETRIES);
 
 		return new GelfSenderResult(GelfSenderResult.ERROR_CODE, lastException);
 	}
 
-	public void close() {
+	private static int indexOf(Route route, InetSocketAddress address) {
+		if (route.addresses == null) {
+			return 0;
+		}
+		return Arrays.asList(route.addresses).indexOf(address);
+	}
+
+	private static void rewind(ByteBuffer[][] datagrams, int from, int to) {
+		for (int i = from; i < to; i++) {
+			for (ByteBuffer buffer : datagrams[i]) {
+				buffer.reset();
+			}
+		}
+	}
+
+	private static long size(ByteBuffer[][] datagrams) {
+		long size = 0;
+		for (ByteBuffer[] datagram : datagrams) {
+			for (ByteBuffer buffer : datagram) {
+				size += buffer.remaining();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Writes one datagram, waiting up to the send timeout while the send buffer is full.
+	 */
+	private boolean write(DatagramChannel channel, ByteBuffer[] datagram) throws IOException {
+		long deadline = 0L;
+		long pause = MIN_PAUSE_NANOS;
+		while (writeDatagram(channel, datagram) == 0) {
+			if (sendTimeoutNanos == 0) {
+				return false;
+			}
+			long now = System.nanoTime();
+			if (deadline == 0L) {
+				deadline = now + sendTimeoutNanos;
+			} else if (now - deadline >= 0) {
+				return false;
+			}
+			LockSupport.parkNanos(Math.min(pause, deadline - now));
+			pause = Math.min(pause << 1, MAX_PAUSE_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the datagram if there is room in the send buffer and returns the bytes sent, 0
+	 * otherwise; datagrams are never sent in part.
+	 */
+	long writeDatagram(DatagramChannel channel, ByteBuffer[] datagram) throws IOException {
+		return channel.write(datagram);
+	}
+
+	/**
+	 * Number of messages of which no chunk could be sent.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Number of messages of which only some chunks could be sent.
+	 */
+	public long getPartialCount() {
+		return partialCount.get();
+	}
+
+	// the channels are shared by all logging threads, only one of them may replace one
+	private synchronized DatagramChannel reopenChannel(int index) throws IOException {
+		Route current = route;
+		if (index >= current.channels.length) {
+			// the addresses changed meanwhile
+			return current.channels[0];
+		}
+		if (!current.channels[index].isOpen()) {
+			DatagramChannel[] channels = current.channels.clone();
+			channels[index] = initiateChannel(current.addresses[index]);
+			route = new Route(current.addresses, channels);
+			return channels[index];
+		}
+		return current.channels[index];
+	}
+
+	/**
+	 * Opens channels for new addresses of the resolver and closes those of addresses that
+	 * went away. A message being sent on a closed channel is sent again on the new route.
+	 */
+	private synchronized Route reroute() throws IOException {
+		Route current = route;
+		InetSocketAddress[] addresses = resolver.current();
+		if (current.addresses == addresses) {
+			return current;
+		}
+		DatagramChannel[] channels = new DatagramChannel[addresses.length];
+		boolean[] kept = new boolean[current.channels.length];
+		for (int i = 0; i < addresses.length; i++) {
+			int old = Arrays.asList(current.addresses).indexOf(addresses[i]);
+			if (old >= 0) {
+				channels[i] = current.channels[old];
+				kept[old] = true;
+			} else {
+				channels[i] = initiateChannel(addresses[i]);
+			}
+		}
+		route = new Route(addresses, channels);
+		for (int i = 0; i < kept.length; i++) {
+			if (!kept[i]) {
+				closeQuietly(current.channels[i]);
+			}
+		}
+		return route;
+	}
+
+	private static void closeQuietly(DatagramChannel channel) {
 		try {
-			getChannel().close();
+			channel.close();
 		} catch (IOException e) {
-			e.printStackTrace();
+			// nothing left to send on it
+		}
+	}
+
+	public void close() {
+		if (resolver != null) {
+			resolver.close();
+		}
+		Route current = route;
+		if (current != null) {
+			for (DatagramChannel channel : current.channels) {
+				closeQuietly(channel);
+			}
 		}
 	}
 
+	/**
+	 * The channel to the first address of the Graylog host.
+	 */
     public DatagramChannel getChannel() {
-        return channel;
+        Route current = route;
+        return current == null ? null : current.channels[0];
     }
 
-    public void setChannel(DatagramChannel channel) {
-        this.channel = channel;
+    public synchronized void setChannel(DatagramChannel channel) {
+        Route current = route;
+        if (current == null) {
+            route = new Route(resolver == null ? null : resolver.current(), new DatagramChannel[]{channel});
+        } else {
+            DatagramChannel[] channels = current.channels.clone();
+            channels[0] = channel;
+            route = new Route(current.addresses, channels);
+        }
     }
+
+	public GelfEndpointResolver getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * The addresses sent to and their channels, at the same positions.
+	 */
+	private static class Route {
+		private final InetSocketAddress[] addresses;
+		private final DatagramChannel[] channels;
+
+		Route(InetSocketAddress[] addresses, DatagramChannel[] channels) {
+			this.addresses = addresses;
+			this.channels = channels;
+		}
+	}
 }
@@ -0,0 +1,69 @@
+package org.graylog2;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How the threads of a {@link GelfAsyncSender} wait for messages, and blocked producers for
+ * free space, trading latency against CPU time.
+ */
+public enum GelfWaitStrategy {
+    /**
+     * Spins without ever giving up the CPU; lowest latency, but keeps a core busy per thread.
+     */
+    BUSY_SPIN {
+        @Override
+        int idle(int round) {
+            return round;
+        }
+    },
+    /**
+     * Spins briefly, then yields to other runnable threads.
+     */
+    YIELD {
+        @Override
+        int idle(int round) {
+            if (round >= SPINS) {
+                Thread.yield();
+                return round;
+            }
+            return round + 1;
+        }
+    },
+    /**
+     * Spins and yields briefly, then parks for increasing periods of up to a millisecond.
+     */
+    PARK {
+        @Override
+        int idle(int round) {
+            if (round >= SPINS + YIELDS) {
+                int backoff = round - SPINS - YIELDS;
+                LockSupport.parkNanos(MIN_PARK_NANOS << backoff);
+                return backoff < MAX_BACKOFF ? round + 1 : round;
+            } else if (round >= SPINS) {
+                Thread.yield();
+            }
+            return round + 1;
+        }
+    };
+
+    private static final int SPINS = 100;
+    private static final int YIELDS = 100;
+    private static final long MIN_PARK_NANOS = 8000L;
+    private static final int MAX_BACKOFF = 7;
+
+    /**
+     * Waits once after the given number of unsuccessful rounds (starting at 0) and returns
+     * the round to pass next time.
+     */
+    abstract int idle(int round);
+
+    /**
+     * Parses a configuration value (case insensitive), defaulting to PARK when the value is empty.
+     */
+    public static GelfWaitStrategy fromString(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return PARK;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,56 @@
+package org.graylog2;
+
+import org.graylog2.log.Log4jVersionChecker;
+
+/**
+ * A message that is refilled for every event by the garbage-free logging path, keeping the
+ * builders it renders the message text and numeric field values into.
+ */
+public class ReusableGelfMessage extends GelfMessage
+        implements Log4jVersionChecker.ContextDataConsumer<GelfMessageProvider> {
+
+    private static final int DEFAULT_TEXT_CAPACITY = 256;
+
+    private StringBuilder text = new StringBuilder(DEFAULT_TEXT_CAPACITY);
+    private final StringBuilder timestampMillis = new StringBuilder(20);
+
+    /**
+     * Empties the text builder, replacing it when an unusually large message made it grow
+     * beyond what is worth keeping per thread.
+     */
+    StringBuilder resetText() {
+        if (text.capacity() > GelfJsonEncoder.MAX_RETAINED_CAPACITY) {
+            text = new StringBuilder(DEFAULT_TEXT_CAPACITY);
+        }
+        text.setLength(0);
+        return text;
+    }
+
+    StringBuilder resetTimestampMillis() {
+        timestampMillis.setLength(0);
+        return timestampMillis;
+    }
+
+    /**
+     * Sets an entry of the event's context data as a reusable field, as the provider transforms it.
+     */
+    public void accept(String key, Object value, GelfMessageProvider provider) {
+        setReusableField(key, provider.transformExtendedField(key, value));
+    }
+
+    /**
+     * Clears everything set for the previous event except the envelope, keeping the field
+     * arrays so that setting the same fields again does not allocate.
+     */
+    void clear() {
+        setMessageText(null);
+        setContextFields(null);
+        clearReusableFields();
+        if (!getOwnFields().isEmpty()) {
+            getOwnFields().clear();
+        }
+        setLine(null);
+        setFile(null);
+        setMicrosOfMillisecond(-1);
+    }
+}
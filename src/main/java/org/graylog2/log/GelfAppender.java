@@ -1,16 +1,22 @@
 package org.graylog2.log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 
 import org.apache.logging.log4j.core.Filter;
 import org.apache.logging.log4j.core.Layout;
@@ -31,13 +37,30 @@ import org.apache.logging.log4j.core.net.ssl.SslConfiguration;
 import org.apache.logging.log4j.core.util.Booleans;
 import org.apache.logging.log4j.util.EnglishEnums;
 import org.graylog2.GelfAMQPSender;
+import org.graylog2.GelfAsyncSender;
+import org.graylog2.GelfBalancingPolicy;
+import org.graylog2.GelfBalancingSender;
+import org.graylog2.GelfCompression;
+import org.graylog2.GelfCompressor;
+import org.graylog2.GelfEndpointResolver;
+import org.graylog2.GelfEnvelope;
+import org.graylog2.GelfFailoverSender;
+import org.graylog2.GelfHTTPSender;
 import org.graylog2.GelfMessage;
 import org.graylog2.GelfMessageFactory;
 import org.graylog2.GelfMessageProvider;
+import org.graylog2.GelfOverflowPolicy;
 import org.graylog2.GelfSender;
 import org.graylog2.GelfSenderResult;
+import org.graylog2.GelfSocketOptions;
+import org.graylog2.GelfSpool;
+import org.graylog2.GelfSpoolingSender;
+import org.graylog2.GelfStackTraceRenderer;
 import org.graylog2.GelfTCPSender;
+import org.graylog2.GelfTLSOptions;
 import org.graylog2.GelfUDPSender;
+import org.graylog2.GelfWaitStrategy;
+import org.graylog2.ReusableGelfMessage;
 import org.json.simple.JSONValue;
 
 /**
@@ -55,13 +78,73 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
     private String amqpExchangeName; //
     private String amqpRoutingKey; //
     private int amqpMaxRetries = 0; //
+    private int amqpMaxInFlight = 0;
+    private int amqpChannels = 1;
+    private long amqpConfirmTimeoutMillis = GelfAMQPSender.DEFAULT_CONFIRM_TIMEOUT_MILLIS;
     private int graylogPort = 12201;
     private String facility;
     private GelfSender gelfSender;
+    // where the endpoint queues of a balancing sender send again what they failed
+    private volatile GelfBalancingSender balancingSender;
+    private volatile GelfSender retrySender;
+    private GelfCompressor compressor;
+    private GelfEnvelope envelope;
     private boolean extractStacktrace;
+    private int stackTraceMaxDepth;
+    private String stackTraceFilteredPackages;
+    private int stackTraceMaxLength;
+    private GelfStackTraceRenderer stackTraceRenderer;
     private boolean addExtendedInformation;
     private boolean includeLocation = true;
+    private boolean microsecondPrecision;
+    private boolean garbageFree;
+    private boolean async;
+    private int asyncCapacity = GelfAsyncSender.DEFAULT_CAPACITY;
+    private int asyncSenderThreads = 1;
+    private GelfWaitStrategy asyncWaitStrategy = GelfWaitStrategy.PARK;
+    private GelfOverflowPolicy asyncOverflowPolicy = GelfOverflowPolicy.BLOCK;
+    private boolean asyncVirtualThreads;
+    private final ThreadLocal<ReusableGelfMessage> reusableMessages = new ThreadLocal<ReusableGelfMessage>() {
+        @Override
+        protected ReusableGelfMessage initialValue() {
+            return new ReusableGelfMessage();
+        }
+    };
     private Map<String, String> fields;
+    private GelfCompression compression = GelfCompression.GZIP;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean adaptiveCompression;
+    private double adaptiveCompressionRatio = GelfCompressor.DEFAULT_ADAPTIVE_RATIO;
+    private int tcpBufferSize = GelfTCPSender.DEFAULT_BUFFER_SIZE;
+    private long tcpLingerMillis;
+    private int sendBufferSize;
+    private long udpSendTimeoutMillis = GelfUDPSender.DEFAULT_SEND_TIMEOUT_MILLIS;
+    private long dnsRefreshMillis = GelfEndpointResolver.DEFAULT_TTL_MILLIS;
+    private int httpBatchSize = GelfHTTPSender.DEFAULT_BATCH_SIZE;
+    private long httpLingerMillis;
+    private int httpMaxInFlight = GelfHTTPSender.DEFAULT_MAX_IN_FLIGHT;
+    private long httpTimeoutMillis = GelfHTTPSender.DEFAULT_TIMEOUT_MILLIS;
+    private String tlsTrustStore;
+    private String tlsTrustStorePassword;
+    private String tlsKeyStore;
+    private String tlsKeyStorePassword;
+    private boolean tlsVerifyHostname = true;
+    // shared by all TLS endpoints, so that their sessions are resumed
+    private GelfTLSOptions tlsOptions;
+    private boolean tcpNoDelay;
+    private boolean tcpKeepAlive;
+    private int tcpBacklogSize = GelfTCPSender.DEFAULT_BACKLOG_SIZE;
+    private long tcpReconnectDelayMillis = GelfTCPSender.DEFAULT_RECONNECT_DELAY_MILLIS;
+    private long tcpMaxReconnectDelayMillis = GelfTCPSender.DEFAULT_MAX_RECONNECT_DELAY_MILLIS;
+    private String spoolDirectory;
+    private int spoolSegmentSize = GelfSpool.DEFAULT_SEGMENT_SIZE;
+    private long spoolMaxSize = GelfSpool.DEFAULT_MAX_SIZE;
+    private GelfBalancingPolicy balancingPolicy = GelfBalancingPolicy.ROUND_ROBIN;
+    private int balancingMaxFailures = GelfBalancingSender.DEFAULT_MAX_FAILURES;
+    private long balancingProbeIntervalMillis = GelfBalancingSender.DEFAULT_PROBE_INTERVAL_MILLIS;
+    private String fallbackHosts;
+    private long failoverLatencyMillis;
+    private long failbackIntervalMillis = GelfFailoverSender.DEFAULT_FAILBACK_INTERVAL_MILLIS;
 
     private GelfAppender(String name, Filter filter, Layout<? extends Serializable> layout, boolean ignoreExceptions)
 	{
@@ -87,13 +170,59 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
             
   
             @PluginAttribute(value = "amqpMaxRetries", defaultInt = 0) final int amqpMaxRetries,
+            @PluginAttribute(value = "amqpMaxInFlight", defaultInt = 0) final int amqpMaxInFlight,
+            @PluginAttribute(value = "amqpChannels", defaultInt = 1) final int amqpChannels,
+            @PluginAttribute(value = "amqpConfirmTimeoutMillis", defaultLong = GelfAMQPSender.DEFAULT_CONFIRM_TIMEOUT_MILLIS) final long amqpConfirmTimeoutMillis,
             
             @PluginAttribute("facility") final String facility,
             @PluginAttribute("additionalFields") final String additionalFields,
             
             @PluginAttribute(value="extractStacktrace", defaultBoolean=false) final boolean extractStacktrace,
+            @PluginAttribute(value="stackTraceMaxDepth", defaultInt=0) final int stackTraceMaxDepth,
+            @PluginAttribute("stackTraceFilteredPackages") final String stackTraceFilteredPackages,
+            @PluginAttribute(value="stackTraceMaxLength", defaultInt=0) final int stackTraceMaxLength,
             @PluginAttribute(value="includeLocation", defaultBoolean=true) final boolean includeLocation,
             @PluginAttribute(value="addExtendedInformation", defaultBoolean=false) final boolean addExtendedInformation,
+            @PluginAttribute(value="microsecondPrecision", defaultBoolean=false) final boolean microsecondPrecision,
+            @PluginAttribute(value="garbageFree", defaultBoolean=false) final boolean garbageFree,
+            @PluginAttribute(value="async", defaultBoolean=false) final boolean async,
+            @PluginAttribute(value="asyncCapacity", defaultInt=GelfAsyncSender.DEFAULT_CAPACITY) final int asyncCapacity,
+            @PluginAttribute(value="asyncSenderThreads", defaultInt=1) final int asyncSenderThreads,
+            @PluginAttribute("asyncWaitStrategy") final String asyncWaitStrategy,
+            @PluginAttribute("asyncOverflowPolicy") final String asyncOverflowPolicy,
+            @PluginAttribute(value="asyncVirtualThreads", defaultBoolean=false) final boolean asyncVirtualThreads,
+            @PluginAttribute("compression") final String compression,
+            @PluginAttribute(value="compressionLevel", defaultInt=Deflater.DEFAULT_COMPRESSION) final int compressionLevel,
+            @PluginAttribute(value="adaptiveCompression", defaultBoolean=false) final boolean adaptiveCompression,
+            @PluginAttribute(value="adaptiveCompressionRatio", defaultDouble=GelfCompressor.DEFAULT_ADAPTIVE_RATIO) final double adaptiveCompressionRatio,
+            @PluginAttribute(value="tcpBufferSize", defaultInt=GelfTCPSender.DEFAULT_BUFFER_SIZE) final int tcpBufferSize,
+            @PluginAttribute(value="tcpLingerMillis", defaultLong=0) final long tcpLingerMillis,
+            @PluginAttribute(value="sendBufferSize", defaultInt=0) final int sendBufferSize,
+            @PluginAttribute(value="udpSendTimeoutMillis", defaultLong=GelfUDPSender.DEFAULT_SEND_TIMEOUT_MILLIS) final long udpSendTimeoutMillis,
+            @PluginAttribute(value="dnsRefreshMillis", defaultLong=GelfEndpointResolver.DEFAULT_TTL_MILLIS) final long dnsRefreshMillis,
+            @PluginAttribute(value="httpBatchSize", defaultInt=GelfHTTPSender.DEFAULT_BATCH_SIZE) final int httpBatchSize,
+            @PluginAttribute(value="httpLingerMillis", defaultLong=0) final long httpLingerMillis,
+            @PluginAttribute(value="httpMaxInFlight", defaultInt=GelfHTTPSender.DEFAULT_MAX_IN_FLIGHT) final int httpMaxInFlight,
+            @PluginAttribute(value="httpTimeoutMillis", defaultLong=GelfHTTPSender.DEFAULT_TIMEOUT_MILLIS) final long httpTimeoutMillis,
+            @PluginAttribute("tlsTrustStore") final String tlsTrustStore,
+            @PluginAttribute(value="tlsTrustStorePassword", sensitive=true) final String tlsTrustStorePassword,
+            @PluginAttribute("tlsKeyStore") final String tlsKeyStore,
+            @PluginAttribute(value="tlsKeyStorePassword", sensitive=true) final String tlsKeyStorePassword,
+            @PluginAttribute(value="tlsVerifyHostname", defaultBoolean=true) final boolean tlsVerifyHostname,
+            @PluginAttribute(value="tcpNoDelay", defaultBoolean=false) final boolean tcpNoDelay,
+            @PluginAttribute(value="tcpKeepAlive", defaultBoolean=false) final boolean tcpKeepAlive,
+            @PluginAttribute(value="tcpBacklogSize", defaultInt=GelfTCPSender.DEFAULT_BACKLOG_SIZE) final int tcpBacklogSize,
+            @PluginAttribute(value="tcpReconnectDelayMillis", defaultLong=GelfTCPSender.DEFAULT_RECONNECT_DELAY_MILLIS) final long tcpReconnectDelayMillis,
+            @PluginAttribute(value="tcpMaxReconnectDelayMillis", defaultLong=GelfTCPSender.DEFAULT_MAX_RECONNECT_DELAY_MILLIS) final long tcpMaxReconnectDelayMillis,
+            @PluginAttribute("spoolDirectory") final String spoolDirectory,
+            @PluginAttribute(value="spoolSegmentSize", defaultInt=GelfSpool.DEFAULT_SEGMENT_SIZE) final int spoolSegmentSize,
+            @PluginAttribute(value="spoolMaxSize", defaultLong=GelfSpool.DEFAULT_MAX_SIZE) final long spoolMaxSize,
+            @PluginAttribute("balancingPolicy") final String balancingPolicy,
+            @PluginAttribute(value="balancingMaxFailures", defaultInt=GelfBalancingSender.DEFAULT_MAX_FAILURES) final int balancingMaxFailures,
+            @PluginAttribute(value="balancingProbeIntervalMillis", defaultLong=GelfBalancingSender.DEFAULT_PROBE_INTERVAL_MILLIS) final long balancingProbeIntervalMillis,
+            @PluginAttribute("fallbackHosts") final String fallbackHosts,
+            @PluginAttribute(value="failoverLatencyMillis", defaultLong=0) final long failoverLatencyMillis,
+            @PluginAttribute(value="failbackIntervalMillis", defaultLong=GelfFailoverSender.DEFAULT_FAILBACK_INTERVAL_MILLIS) final long failbackIntervalMillis,
             @PluginElement("Layout") Layout<? extends Serializable> layout,
             @PluginElement("Filter") final Filter filter, 
             @PluginConfiguration final Configuration config) {
@@ -117,11 +246,72 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
         appender.setAmqpExchangeName(amqpExchangeName);
         appender.setAmqpRoutingKey(amqpRoutingKey);
         appender.setAmqpMaxRetries(amqpMaxRetries);
+        appender.setAmqpMaxInFlight(amqpMaxInFlight);
+        appender.setAmqpChannels(amqpChannels);
+        appender.setAmqpConfirmTimeoutMillis(amqpConfirmTimeoutMillis);
         appender.setFacility(facility);
         appender.setAdditionalFields(additionalFields);
         appender.setExtractStacktrace(extractStacktrace);
+        appender.setStackTraceMaxDepth(stackTraceMaxDepth);
+        appender.setStackTraceFilteredPackages(stackTraceFilteredPackages);
+        appender.setStackTraceMaxLength(stackTraceMaxLength);
         appender.setIncludeLocation(includeLocation);
         appender.setAddExtendedInformation(addExtendedInformation);
+        appender.setMicrosecondPrecision(microsecondPrecision);
+        appender.setGarbageFree(garbageFree);
+        try {
+            appender.setCompression(GelfCompression.fromString(compression));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unknown compression for GelfAppender: " + compression);
+            return null;
+        }
+        appender.setAsync(async);
+        appender.setAsyncCapacity(asyncCapacity);
+        appender.setAsyncSenderThreads(asyncSenderThreads);
+        appender.setAsyncVirtualThreads(asyncVirtualThreads);
+        try {
+            appender.setAsyncWaitStrategy(GelfWaitStrategy.fromString(asyncWaitStrategy));
+            appender.setAsyncOverflowPolicy(GelfOverflowPolicy.fromString(asyncOverflowPolicy));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unknown async wait strategy or overflow policy for GelfAppender: " + asyncWaitStrategy + ", " + asyncOverflowPolicy);
+            return null;
+        }
+        appender.setCompressionLevel(compressionLevel);
+        appender.setAdaptiveCompression(adaptiveCompression);
+        appender.setAdaptiveCompressionRatio(adaptiveCompressionRatio);
+        appender.setTcpBufferSize(tcpBufferSize);
+        appender.setTcpLingerMillis(tcpLingerMillis);
+        appender.setSendBufferSize(sendBufferSize);
+        appender.setUdpSendTimeoutMillis(udpSendTimeoutMillis);
+        appender.setDnsRefreshMillis(dnsRefreshMillis);
+        appender.setHttpBatchSize(httpBatchSize);
+        appender.setHttpLingerMillis(httpLingerMillis);
+        appender.setHttpMaxInFlight(httpMaxInFlight);
+        appender.setHttpTimeoutMillis(httpTimeoutMillis);
+        appender.setTlsTrustStore(tlsTrustStore);
+        appender.setTlsTrustStorePassword(tlsTrustStorePassword);
+        appender.setTlsKeyStore(tlsKeyStore);
+        appender.setTlsKeyStorePassword(tlsKeyStorePassword);
+        appender.setTlsVerifyHostname(tlsVerifyHostname);
+        appender.setTcpNoDelay(tcpNoDelay);
+        appender.setTcpKeepAlive(tcpKeepAlive);
+        appender.setTcpBacklogSize(tcpBacklogSize);
+        appender.setTcpReconnectDelayMillis(tcpReconnectDelayMillis);
+        appender.setTcpMaxReconnectDelayMillis(tcpMaxReconnectDelayMillis);
+        appender.setSpoolDirectory(spoolDirectory);
+        appender.setSpoolSegmentSize(spoolSegmentSize);
+        appender.setSpoolMaxSize(spoolMaxSize);
+        try {
+            appender.setBalancingPolicy(GelfBalancingPolicy.fromString(balancingPolicy));
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unknown balancing policy for GelfAppender: " + balancingPolicy);
+            return null;
+        }
+        appender.setBalancingMaxFailures(balancingMaxFailures);
+        appender.setBalancingProbeIntervalMillis(balancingProbeIntervalMillis);
+        appender.setFallbackHosts(fallbackHosts);
+        appender.setFailoverLatencyMillis(failoverLatencyMillis);
+        appender.setFailbackIntervalMillis(failbackIntervalMillis);
         
         return appender;
     }
@@ -181,6 +371,36 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
         this.amqpMaxRetries = amqpMaxRetries;
     }
 
+    public int getAmqpMaxInFlight() {
+        return amqpMaxInFlight;
+    }
+
+    /**
+     * Messages that may be published before their confirms arrive, 0 to wait for each one.
+     */
+    public void setAmqpMaxInFlight(int amqpMaxInFlight) {
+        this.amqpMaxInFlight = amqpMaxInFlight;
+    }
+
+    public int getAmqpChannels() {
+        return amqpChannels;
+    }
+
+    /**
+     * Number of channels to publish on; each logging thread keeps using one of them.
+     */
+    public void setAmqpChannels(int amqpChannels) {
+        this.amqpChannels = amqpChannels;
+    }
+
+    public long getAmqpConfirmTimeoutMillis() {
+        return amqpConfirmTimeoutMillis;
+    }
+
+    public void setAmqpConfirmTimeoutMillis(long amqpConfirmTimeoutMillis) {
+        this.amqpConfirmTimeoutMillis = amqpConfirmTimeoutMillis;
+    }
+
     public String getFacility() {
         return facility;
     }
@@ -197,6 +417,37 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
         this.extractStacktrace = extractStacktrace;
     }
 
+    public int getStackTraceMaxDepth() {
+        return stackTraceMaxDepth;
+    }
+
+    public void setStackTraceMaxDepth(int stackTraceMaxDepth) {
+        this.stackTraceMaxDepth = stackTraceMaxDepth;
+    }
+
+    public String getStackTraceFilteredPackages() {
+        return stackTraceFilteredPackages;
+    }
+
+    /**
+     * Comma separated package prefixes whose frames are collapsed in stack traces.
+     */
+    public void setStackTraceFilteredPackages(String stackTraceFilteredPackages) {
+        this.stackTraceFilteredPackages = stackTraceFilteredPackages;
+    }
+
+    public int getStackTraceMaxLength() {
+        return stackTraceMaxLength;
+    }
+
+    public void setStackTraceMaxLength(int stackTraceMaxLength) {
+        this.stackTraceMaxLength = stackTraceMaxLength;
+    }
+
+    public GelfStackTraceRenderer getStackTraceRenderer() {
+        return stackTraceRenderer;
+    }
+
     public String getOriginHost() {
         if (originHost == null) {
             originHost = getLocalHostName();
@@ -235,6 +486,394 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
         this.includeLocation = includeLocation;
     }
 
+    public boolean isMicrosecondPrecision() {
+        return microsecondPrecision;
+    }
+
+    public void setMicrosecondPrecision(boolean microsecondPrecision) {
+        this.microsecondPrecision = microsecondPrecision;
+    }
+
+    public boolean isGarbageFree() {
+        return garbageFree;
+    }
+
+    /**
+     * Reuse one message per thread and format into reusable builders instead of creating a
+     * new message for every event. Has no effect in async mode, where every queued event
+     * needs a message of its own.
+     */
+    public void setGarbageFree(boolean garbageFree) {
+        this.garbageFree = garbageFree;
+    }
+
+    public boolean isAsync() {
+        return async;
+    }
+
+    /**
+     * Send messages from dedicated threads instead of the logging threads.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    public int getAsyncCapacity() {
+        return asyncCapacity;
+    }
+
+    public void setAsyncCapacity(int asyncCapacity) {
+        this.asyncCapacity = asyncCapacity;
+    }
+
+    public int getAsyncSenderThreads() {
+        return asyncSenderThreads;
+    }
+
+    public void setAsyncSenderThreads(int asyncSenderThreads) {
+        this.asyncSenderThreads = asyncSenderThreads;
+    }
+
+    public boolean isAsyncVirtualThreads() {
+        return asyncVirtualThreads;
+    }
+
+    /**
+     * Send queued messages on virtual threads on Java 21 and later, platform threads before;
+     * with balancing every endpoint gets a queue and virtual thread of its own.
+     * Only the PARK wait strategy can be used with virtual threads.
+     */
+    public void setAsyncVirtualThreads(boolean asyncVirtualThreads) {
+        this.asyncVirtualThreads = asyncVirtualThreads;
+    }
+
+    public GelfWaitStrategy getAsyncWaitStrategy() {
+        return asyncWaitStrategy;
+    }
+
+    public void setAsyncWaitStrategy(GelfWaitStrategy asyncWaitStrategy) {
+        this.asyncWaitStrategy = asyncWaitStrategy;
+    }
+
+    public GelfOverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy;
+    }
+
+    public void setAsyncOverflowPolicy(GelfOverflowPolicy asyncOverflowPolicy) {
+        this.asyncOverflowPolicy = asyncOverflowPolicy;
+    }
+
+    public GelfCompression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(GelfCompression compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public boolean isAdaptiveCompression() {
+        return adaptiveCompression;
+    }
+
+    public void setAdaptiveCompression(boolean adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    public double getAdaptiveCompressionRatio() {
+        return adaptiveCompressionRatio;
+    }
+
+    public void setAdaptiveCompressionRatio(double adaptiveCompressionRatio) {
+        this.adaptiveCompressionRatio = adaptiveCompressionRatio;
+    }
+
+    public int getTcpBufferSize() {
+        return tcpBufferSize;
+    }
+
+    public void setTcpBufferSize(int tcpBufferSize) {
+        this.tcpBufferSize = tcpBufferSize;
+    }
+
+    public long getTcpLingerMillis() {
+        return tcpLingerMillis;
+    }
+
+    /**
+     * How long a TCP frame may wait in the buffer for more frames to be written with it.
+     */
+    public void setTcpLingerMillis(long tcpLingerMillis) {
+        this.tcpLingerMillis = tcpLingerMillis;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public long getUdpSendTimeoutMillis() {
+        return udpSendTimeoutMillis;
+    }
+
+    /**
+     * How long a UDP datagram may wait for room in the socket send buffer.
+     */
+    public void setUdpSendTimeoutMillis(long udpSendTimeoutMillis) {
+        this.udpSendTimeoutMillis = udpSendTimeoutMillis;
+    }
+
+    public long getDnsRefreshMillis() {
+        return dnsRefreshMillis;
+    }
+
+    /**
+     * How often the Graylog host names are resolved again, 0 to resolve them once.
+     */
+    public void setDnsRefreshMillis(long dnsRefreshMillis) {
+        this.dnsRefreshMillis = dnsRefreshMillis;
+    }
+
+    public int getHttpBatchSize() {
+        return httpBatchSize;
+    }
+
+    /**
+     * Bytes of JSON collected before an HTTP batch is posted.
+     */
+    public void setHttpBatchSize(int httpBatchSize) {
+        this.httpBatchSize = httpBatchSize;
+    }
+
+    public long getHttpLingerMillis() {
+        return httpLingerMillis;
+    }
+
+    /**
+     * How long a message may wait to be posted in one HTTP batch with the following ones.
+     */
+    public void setHttpLingerMillis(long httpLingerMillis) {
+        this.httpLingerMillis = httpLingerMillis;
+    }
+
+    public int getHttpMaxInFlight() {
+        return httpMaxInFlight;
+    }
+
+    public void setHttpMaxInFlight(int httpMaxInFlight) {
+        this.httpMaxInFlight = httpMaxInFlight;
+    }
+
+    public long getHttpTimeoutMillis() {
+        return httpTimeoutMillis;
+    }
+
+    public void setHttpTimeoutMillis(long httpTimeoutMillis) {
+        this.httpTimeoutMillis = httpTimeoutMillis;
+    }
+
+    public String getTlsTrustStore() {
+        return tlsTrustStore;
+    }
+
+    /**
+     * Key store of the certificates trusted for <code>tls:</code> endpoints, those of the
+     * JVM if not set.
+     */
+    public void setTlsTrustStore(String tlsTrustStore) {
+        this.tlsTrustStore = tlsTrustStore;
+    }
+
+    public void setTlsTrustStorePassword(String tlsTrustStorePassword) {
+        this.tlsTrustStorePassword = tlsTrustStorePassword;
+    }
+
+    public String getTlsKeyStore() {
+        return tlsKeyStore;
+    }
+
+    /**
+     * Key store of the client certificate presented to <code>tls:</code> endpoints, none
+     * if not set.
+     */
+    public void setTlsKeyStore(String tlsKeyStore) {
+        this.tlsKeyStore = tlsKeyStore;
+    }
+
+    public void setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        this.tlsKeyStorePassword = tlsKeyStorePassword;
+    }
+
+    public boolean isTlsVerifyHostname() {
+        return tlsVerifyHostname;
+    }
+
+    public void setTlsVerifyHostname(boolean tlsVerifyHostname) {
+        this.tlsVerifyHostname = tlsVerifyHostname;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public int getTcpBacklogSize() {
+        return tcpBacklogSize;
+    }
+
+    /**
+     * Number of messages kept for replay while the TCP connection is down.
+     */
+    public void setTcpBacklogSize(int tcpBacklogSize) {
+        this.tcpBacklogSize = tcpBacklogSize;
+    }
+
+    public long getTcpReconnectDelayMillis() {
+        return tcpReconnectDelayMillis;
+    }
+
+    public void setTcpReconnectDelayMillis(long tcpReconnectDelayMillis) {
+        this.tcpReconnectDelayMillis = tcpReconnectDelayMillis;
+    }
+
+    public long getTcpMaxReconnectDelayMillis() {
+        return tcpMaxReconnectDelayMillis;
+    }
+
+    public void setTcpMaxReconnectDelayMillis(long tcpMaxReconnectDelayMillis) {
+        this.tcpMaxReconnectDelayMillis = tcpMaxReconnectDelayMillis;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Directory of the disk spool for messages that could not be sent, none if empty.
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public long getSpoolMaxSize() {
+        return spoolMaxSize;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    public GelfBalancingPolicy getBalancingPolicy() {
+        return balancingPolicy;
+    }
+
+    /**
+     * How messages are spread when graylogHost lists several endpoints.
+     */
+    public void setBalancingPolicy(GelfBalancingPolicy balancingPolicy) {
+        this.balancingPolicy = balancingPolicy;
+    }
+
+    public int getBalancingMaxFailures() {
+        return balancingMaxFailures;
+    }
+
+    public void setBalancingMaxFailures(int balancingMaxFailures) {
+        this.balancingMaxFailures = balancingMaxFailures;
+    }
+
+    public long getBalancingProbeIntervalMillis() {
+        return balancingProbeIntervalMillis;
+    }
+
+    public void setBalancingProbeIntervalMillis(long balancingProbeIntervalMillis) {
+        this.balancingProbeIntervalMillis = balancingProbeIntervalMillis;
+    }
+
+    public String getFallbackHosts() {
+        return fallbackHosts;
+    }
+
+    /**
+     * Endpoints to fall back on, in order, when the one of graylogHost fails.
+     */
+    public void setFallbackHosts(String fallbackHosts) {
+        this.fallbackHosts = fallbackHosts;
+    }
+
+    public long getFailoverLatencyMillis() {
+        return failoverLatencyMillis;
+    }
+
+    public void setFailoverLatencyMillis(long failoverLatencyMillis) {
+        this.failoverLatencyMillis = failoverLatencyMillis;
+    }
+
+    public long getFailbackIntervalMillis() {
+        return failbackIntervalMillis;
+    }
+
+    public void setFailbackIntervalMillis(long failbackIntervalMillis) {
+        this.failbackIntervalMillis = failbackIntervalMillis;
+    }
+
+    private boolean isFailingOver() {
+        return (fallbackHosts != null && fallbackHosts.trim().length() > 0) || (graylogHost != null && amqpURI != null);
+    }
+
+    private boolean isBalancing() {
+        return graylogHost != null && graylogHost.indexOf(',') >= 0;
+    }
+
+    /**
+     * Whether the TCP senders are wrapped by one that acts on their failures, which it only
+     * sees for messages they neither hold back in a backlog nor in a linger buffer.
+     */
+    private boolean isWrapped() {
+        return isSpooling() || isBalancing() || isFailingOver();
+    }
+
+    private boolean isSpooling() {
+        return spoolDirectory != null && spoolDirectory.trim().length() > 0;
+    }
+
+    /**
+     * The compressor of the running sender; its counters tell how often the adaptive
+     * compression sent payloads compressed or as they were.
+     */
+    public GelfCompressor getCompressor() {
+        return compressor;
+    }
+
     public Map<String, String> getFields() {
         if (fields == null) {
             fields = new HashMap<String, String>();
@@ -254,22 +893,34 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
 	protected void setStarting()
 	{
 		super.setStarting();
+        envelope = GelfMessageFactory.makeEnvelope(this);
+        try {
+            stackTraceRenderer = new GelfStackTraceRenderer(stackTraceMaxDepth,
+                    GelfStackTraceRenderer.parsePackages(stackTraceFilteredPackages), stackTraceMaxLength);
+        } catch (IllegalArgumentException e) {
+            getHandler().error("Invalid stack trace settings", e);
+        }
         if (graylogHost == null && amqpURI == null) {
             getHandler().error("Graylog2 hostname and amqp uri are empty!", null);
-        } else if (graylogHost != null && amqpURI != null) {
-            getHandler().error("Graylog2 hostname and amqp uri are both informed!", null);
         } else {
             try {
-                if (graylogHost != null && graylogHost.startsWith("tcp:")) {
-                    String tcpGraylogHost = graylogHost.substring(4);
-                    gelfSender = getGelfTCPSender(tcpGraylogHost, graylogPort);
-                } else if (graylogHost != null && graylogHost.startsWith("udp:")) {
-                    String udpGraylogHost = graylogHost.substring(4);
-                    gelfSender = getGelfUDPSender(udpGraylogHost, graylogPort);
-                } else if (amqpURI != null) {
+                compressor = new GelfCompressor(compression, compressionLevel, adaptiveCompression, adaptiveCompressionRatio);
+                if (graylogHost == null) {
                     gelfSender = getGelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
+                } else if (isBalancing()) {
+                    gelfSender = getGelfBalancingSender(graylogHost.split(","));
                 } else {
-                    gelfSender = getGelfUDPSender(graylogHost, graylogPort);
+                    gelfSender = getGelfEndpointSender(graylogHost);
+                }
+                if (isFailingOver()) {
+                    gelfSender = getGelfFailoverSender(gelfSender);
+                }
+                if (isSpooling()) {
+                    gelfSender = getGelfSpoolingSender(gelfSender);
+                }
+                if (async) {
+                    retrySender = gelfSender;
+                    gelfSender = getGelfAsyncSender(gelfSender);
                 }
             } catch (UnknownHostException e) {
                 getHandler().error("Unknown Graylog2 hostname:" + getGraylogHost(), e);
@@ -283,33 +934,207 @@ public class GelfAppender extends AbstractAppender implements GelfMessageProvide
                 getHandler().error("AMQP algorithm exception", e);
             } catch (KeyManagementException e) {
                 getHandler().error("AMQP key exception", e);
+            } catch (GeneralSecurityException e) {
+                getHandler().error("TLS key store exception", e);
+            } catch (IllegalArgumentException e) {
+                getHandler().error("Invalid compression, async, UDP, TCP, HTTP, AMQP, spool, balancing or failover settings", e);
+            }
+        }
+    }
+
+    /**
+     * Creates the sender of one endpoint: an AMQP URI, an HTTP URL, or a host prefixed with
+     * <code>tcp:</code>, <code>tls:</code> or <code>udp:</code> and optionally followed by
+     * <code>:port</code>.
+     */
+    private GelfSender getGelfEndpointSender(String endpoint) throws IOException, URISyntaxException, GeneralSecurityException {
+        endpoint = endpoint.trim();
+        if (endpoint.startsWith("amqp://") || endpoint.startsWith("amqps://")) {
+            return getGelfAMQPSender(endpoint, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
+        }
+        if (endpoint.startsWith("http://")) {
+            return getGelfHTTPSender(endpoint);
+        }
+        boolean tcp = endpoint.startsWith("tcp:");
+        boolean tls = endpoint.startsWith("tls:");
+        String host = tcp || tls || endpoint.startsWith("udp:") ? endpoint.substring(4) : endpoint;
+        int port = graylogPort;
+        int colon = host.indexOf(':');
+        // IPv6 addresses have several colons and take graylogPort
+        if (colon > 0 && colon == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        if (tls) {
+            return getGelfTLSSender(host, port);
+        }
+        return tcp ? getGelfTCPSender(host, port) : getGelfUDPSender(host, port);
+    }
+
+    protected GelfBalancingSender getGelfBalancingSender(String[] endpoints) throws IOException, URISyntaxException, GeneralSecurityException {
+        List<GelfSender> senders = new ArrayList<GelfSender>(endpoints.length);
+        boolean created = false;
+        try {
+            for (String endpoint : endpoints) {
+                senders.add(getGelfEndpointQueue(getGelfEndpointSender(endpoint)));
+            }
+            GelfBalancingSender sender = new GelfBalancingSender(senders, balancingPolicy, balancingMaxFailures,
+                    balancingProbeIntervalMillis);
+            balancingSender = sender;
+            created = true;
+            return sender;
+        } finally {
+            if (!created) {
+                for (GelfSender sender : senders) {
+                    sender.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Chains the primary sender with the ones of fallbackHosts and, if amqpURI is set
+     * besides graylogHost, the AMQP sender last.
+     */
+    protected GelfFailoverSender getGelfFailoverSender(GelfSender primary) throws IOException, URISyntaxException, GeneralSecurityException {
+        List<GelfSender> senders = new ArrayList<GelfSender>();
+        senders.add(primary);
+        boolean created = false;
+        try {
+            if (fallbackHosts != null && fallbackHosts.trim().length() > 0) {
+                for (String endpoint : fallbackHosts.split(",")) {
+                    senders.add(getGelfEndpointSender(endpoint));
+                }
+            }
+            if (graylogHost != null && amqpURI != null) {
+                senders.add(getGelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries));
+            }
+            GelfFailoverSender sender = new GelfFailoverSender(senders, failoverLatencyMillis, failbackIntervalMillis);
+            created = true;
+            return sender;
+        } finally {
+            if (!created) {
+                for (GelfSender sender : senders) {
+                    sender.close();
+                }
             }
         }
     }
 
     protected GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort) throws IOException {
-        return new GelfUDPSender(udpGraylogHost, graylogPort);
+        return new GelfUDPSender(new GelfEndpointResolver(udpGraylogHost, graylogPort, dnsRefreshMillis), compressor,
+                sendBufferSize, udpSendTimeoutMillis);
     }
 
     protected GelfTCPSender getGelfTCPSender(String tcpGraylogHost, int graylogPort) throws IOException {
-        return new GelfTCPSender(tcpGraylogHost, graylogPort);
+        return new GelfTCPSender(new GelfEndpointResolver(tcpGraylogHost, graylogPort, dnsRefreshMillis), tcpBufferSize,
+                isWrapped() ? 0 : tcpLingerMillis, new GelfSocketOptions(sendBufferSize, tcpNoDelay, tcpKeepAlive), isWrapped() ? 0 : tcpBacklogSize,
+                tcpReconnectDelayMillis, tcpMaxReconnectDelayMillis) {
+            @Override
+            protected void onConnectFailure(InetSocketAddress address, IOException e) {
+                getHandler().error("Cannot connect to " + address, e);
+            }
+        };
+    }
+
+    protected GelfHTTPSender getGelfHTTPSender(String url) throws IOException {
+        return new GelfHTTPSender(url, compressor, httpBatchSize, httpLingerMillis, httpMaxInFlight, httpTimeoutMillis) {
+            @Override
+            protected void onConnectFailure(IOException e) {
+                getHandler().error("Cannot connect to " + getUrl(), e);
+            }
+
+            @Override
+            protected void onSendFailure(int messages, GelfSenderResult result) {
+                getHandler().error("Error during sending " + messages + " GELF messages. Error code: " + result.getCode() + ".", result.getException());
+            }
+        };
+    }
+
+    protected GelfTCPSender getGelfTLSSender(String tlsGraylogHost, int graylogPort) throws IOException, GeneralSecurityException {
+        if (tlsOptions == null) {
+            tlsOptions = GelfTLSOptions.fromKeyStores(tlsTrustStore, tlsTrustStorePassword, tlsKeyStore, tlsKeyStorePassword,
+                    tlsVerifyHostname);
+        }
+        return new GelfTCPSender(new GelfEndpointResolver(tlsGraylogHost, graylogPort, dnsRefreshMillis), tcpBufferSize,
+                isWrapped() ? 0 : tcpLingerMillis, new GelfSocketOptions(sendBufferSize, tcpNoDelay, tcpKeepAlive), isWrapped() ? 0 : tcpBacklogSize,
+                tcpReconnectDelayMillis, tcpMaxReconnectDelayMillis, tlsOptions) {
+            @Override
+            protected void onConnectFailure(InetSocketAddress address, IOException e) {
+                getHandler().error("Cannot connect to " + address, e);
+            }
+        };
+    }
+
+    protected GelfSpoolingSender getGelfSpoolingSender(GelfSender sender) throws IOException {
+        return new GelfSpoolingSender(sender, new GelfSpool(new File(spoolDirectory.trim()), spoolSegmentSize, spoolMaxSize));
+    }
+
+    protected GelfAsyncSender getGelfAsyncSender(GelfSender sender) {
+        return new GelfAsyncSender(sender, asyncCapacity, asyncSenderThreads, asyncWaitStrategy, asyncOverflowPolicy,
+                GelfAsyncSender.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, asyncVirtualThreads) {
+            @Override
+            protected void onSendFailure(GelfMessage message, GelfSenderResult result) {
+                getHandler().error("Error during sending GELF message. Error code: " + result.getCode() + ".", result.getException());
+            }
+        };
+    }
+
+    /**
+     * With async virtual threads on Java 21 and later, gives an endpoint of a balancing
+     * sender its own queue and virtual thread, so that one blocked on its socket or broker
+     * does not hold up the others. Once its queue is full its messages go to the next
+     * endpoint; a message it fails later ejects it and is sent again from the top, through
+     * the balancing, failover and spooling senders. Failover senders get no queues, they
+     * have to see a failure when it happens. Otherwise the sender is returned as it is.
+     */
+    protected GelfSender getGelfEndpointQueue(GelfSender sender) {
+        if (!async || !asyncVirtualThreads || !GelfAsyncSender.isVirtualThreadsSupported()) {
+            return sender;
+        }
+        return new GelfAsyncSender(sender, asyncCapacity, 1, asyncWaitStrategy, GelfOverflowPolicy.DROP_NEWEST,
+                GelfAsyncSender.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, true) {
+            @Override
+            protected void onSendFailure(GelfMessage message, GelfSenderResult result) {
+                GelfBalancingSender balancer = balancingSender;
+                GelfSender retry = retrySender;
+                if (balancer != null) {
+                    balancer.reportFailure(this);
+                }
+                if (retry != null) {
+                    result = retry.sendMessage(message);
+                    if (GelfSenderResult.OK.equals(result)) {
+                        return;
+                    }
+                }
+                getHandler().error("Error during sending GELF message. Error code: " + result.getCode() + ".", result.getException());
+            }
+        };
     }
 
     protected GelfAMQPSender getGelfAMQPSender(String amqpURI, String amqpExchangeName, String amqpRoutingKey, int amqpMaxRetries) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
-        return new GelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
+        return new GelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries, compressor, amqpMaxInFlight,
+                amqpConfirmTimeoutMillis, amqpChannels) {
+            @Override
+            protected void onSendFailure(String messageId, GelfSenderResult result) {
+                getHandler().error("Error during sending GELF message " + messageId + ". Error code: " + result.getCode() + ".", result.getException());
+            }
+        };
     }
 
 
     
   
     public void append(LogEvent event) {
-        GelfMessage gelfMessage = GelfMessageFactory.makeMessage((Layout<String>) getLayout(), event, this);
+        GelfMessage gelfMessage = garbageFree && !async
+                ? GelfMessageFactory.makeReusableMessage(reusableMessages.get(), (Layout<String>) getLayout(), event, this, envelope)
+                : GelfMessageFactory.makeMessage((Layout<String>) getLayout(), event, this, envelope);
 
         if(getGelfSender() == null) {
             getHandler().error("Could not send GELF message. Gelf Sender is not initialised and equals null");
         } else {
             GelfSenderResult gelfSenderResult = getGelfSender().sendMessage(gelfMessage);
-            if (!GelfSenderResult.OK.equals(gelfSenderResult)) {
+            if (!GelfSenderResult.OK.equals(gelfSenderResult) && !GelfSenderResult.MESSAGE_DROPPED.equals(gelfSenderResult)) {
                 getHandler().error("Error during sending GELF message. Error code: " + gelfSenderResult.getCode() + ".", gelfSenderResult.getException());
             }
         }
@@ -1,8 +1,15 @@
 package org.graylog2.log;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
 
 /**
@@ -13,8 +20,50 @@ import org.apache.logging.log4j.core.LogEvent;
 public class Log4jVersionChecker {
 
     private static Method methodGetTimeStamp = null;
+    // getInstant().getNanoOfMillisecond() as one handle of type (LogEvent)int, which invokeExact
+    // calls without boxing the result or allocating an argument array; null before log4j 2.11
+    private static final MethodHandle NANO_OF_MILLISECOND;
+
+    // formatTo(StringBuilder) of messages and toSerializable(LogEvent, StringBuilder) of layouts,
+    // which log4j 2.6+ offers for garbage-free logging; NO_METHOD marks classes without them
+    private static final Method NO_METHOD;
+    private static final ConcurrentMap<Class<?>, Method> formatToMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final ConcurrentMap<Class<?>, Method> serializeToMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final Class<?>[] FORMAT_TO_PARAMETERS = new Class<?>[]{StringBuilder.class};
+    private static final Class<?>[] SERIALIZE_TO_PARAMETERS = new Class<?>[]{LogEvent.class, StringBuilder.class};
+    private static final ThreadLocal<Object[][]> arguments = new ThreadLocal<Object[][]>() {
+        @Override
+        protected Object[][] initialValue() {
+            return new Object[][]{new Object[1], new Object[2], new Object[2]};
+        }
+    };
+
+    // getContextData() of log4j 2.7+ events and the ReadOnlyStringMap it returns: read by index
+    // where the map is indexed (2.8+), else through forEach(TriConsumer, state)
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
+    private static final Class<?>[] INDEX_PARAMETERS = new Class<?>[]{int.class};
+    private static final Class<?>[] FOR_EACH_PARAMETERS;
+    private static final Object FOR_EACH_CONSUMER;
+    private static final ConcurrentMap<Class<?>, Method> contextDataMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final ConcurrentMap<Class<?>, Method> sizeMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final ConcurrentMap<Class<?>, Method> keyAtMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final ConcurrentMap<Class<?>, Method> valueAtMethods = new ConcurrentHashMap<Class<?>, Method>();
+    private static final ConcurrentMap<Class<?>, Method> forEachMethods = new ConcurrentHashMap<Class<?>, Method>();
+
+    /**
+     * Receives the entries of an event's context data.
+     */
+    public interface ContextDataConsumer<S> {
+        void accept(String key, Object value, S state);
+    }
 
     static {
+        try {
+            NO_METHOD = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
         Method[] declaredMethods = LogEvent.class.getDeclaredMethods();
         for(Method m : declaredMethods) {
             if (m.getName().equals("getTimeStamp")) {
@@ -22,6 +71,33 @@ public class Log4jVersionChecker {
                 break;
             }
         }
+        Class<?>[] forEachParameters = null;
+        Object forEachConsumer = null;
+        try {
+            Class<?> triConsumer = Class.forName("org.apache.logging.log4j.util.TriConsumer", false,
+                    LogEvent.class.getClassLoader());
+            forEachParameters = new Class<?>[]{triConsumer, Object.class};
+            forEachConsumer = Proxy.newProxyInstance(triConsumer.getClassLoader(), new Class<?>[]{triConsumer},
+                    new ForEachHandler());
+        } catch (ClassNotFoundException e) {
+            // before log4j 2.7
+        }
+        FOR_EACH_PARAMETERS = forEachParameters;
+        FOR_EACH_CONSUMER = forEachConsumer;
+        // log4j 2.11+ keeps an instant with sub-millisecond precision
+        MethodHandle nanoOfMillisecond = null;
+        try {
+            Method getInstant = LogEvent.class.getMethod("getInstant");
+            Method getNanoOfMillisecond = getInstant.getReturnType().getMethod("getNanoOfMillisecond");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            nanoOfMillisecond = MethodHandles.filterReturnValue(lookup.unreflect(getInstant),
+                    lookup.unreflect(getNanoOfMillisecond));
+        } catch (NoSuchMethodException e) {
+            // before log4j 2.11
+        } catch (IllegalAccessException e) {
+            // millisecond precision then
+        }
+        NANO_OF_MILLISECOND = nanoOfMillisecond;
     }
 
     public static long getTimeStamp(LogEvent event) {
@@ -36,8 +112,184 @@ public class Log4jVersionChecker {
             } catch (InvocationTargetException e) {
                 // Just return the current timestamp
             }
+        } else {
+            timeStamp = event.getTimeMillis();
         }
 
         return timeStamp == 0 ? System.currentTimeMillis() : timeStamp;
     }
+
+    /**
+     * Returns the microseconds within the millisecond of the event time, or -1 when the
+     * log4j version only records milliseconds.
+     */
+    public static int getMicrosOfMillisecond(LogEvent event) {
+        if (NANO_OF_MILLISECOND != null) {
+            try {
+                return ((int) NANO_OF_MILLISECOND.invokeExact(event)) / 1000;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                // Fall back to millisecond precision, also for an event without an instant
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends the formatted message to the builder if the message can format itself into a
+     * StringBuilder (log4j 2.6+ StringBuilderFormattable), returning false otherwise.
+     * When it returns false after failing, part of the text may have been appended.
+     */
+    public static boolean formatTo(Object message, StringBuilder builder) {
+        Method method = lookup(formatToMethods, message.getClass(), "formatTo", FORMAT_TO_PARAMETERS);
+        if (method == NO_METHOD) {
+            return false;
+        }
+        Object[] args = arguments.get()[0];
+        args[0] = builder;
+        try {
+            method.invoke(message, args);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        } finally {
+            args[0] = null;
+        }
+    }
+
+    /**
+     * Appends the layout's text for the event to the builder if the layout can serialize
+     * into a StringBuilder (log4j 2.6+ string layouts), returning false otherwise.
+     * When it returns false after failing, part of the text may have been appended.
+     */
+    public static boolean toSerializable(Layout<?> layout, LogEvent event, StringBuilder builder) {
+        Method method = lookup(serializeToMethods, layout.getClass(), "toSerializable", SERIALIZE_TO_PARAMETERS);
+        if (method == NO_METHOD) {
+            return false;
+        }
+        Object[] args = arguments.get()[1];
+        args[0] = event;
+        args[1] = builder;
+        try {
+            method.invoke(layout, args);
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        } finally {
+            args[0] = null;
+            args[1] = null;
+        }
+    }
+
+    /**
+     * Passes every entry of the event's context data to the consumer, reading log4j 2.7+
+     * context data in place instead of copying it into a new map as getContextMap() does
+     * there. Returns false if the event has no such context data; the caller then falls back
+     * on getContextMap().
+     */
+    @SuppressWarnings("unchecked")
+    public static <S> boolean forEachContextData(LogEvent event, ContextDataConsumer<S> consumer, S state) {
+        Method getContextData = lookup(contextDataMethods, event.getClass(), "getContextData", NO_PARAMETERS);
+        if (getContextData == NO_METHOD) {
+            return false;
+        }
+        try {
+            Object data = getContextData.invoke(event, NO_ARGUMENTS);
+            if (data == null) {
+                return true;
+            }
+            Class<?> type = data.getClass();
+            Method keyAt = lookup(keyAtMethods, type, "getKeyAt", INDEX_PARAMETERS);
+            Method valueAt = lookup(valueAtMethods, type, "getValueAt", INDEX_PARAMETERS);
+            Method size = lookup(sizeMethods, type, "size", NO_PARAMETERS);
+            if (keyAt != NO_METHOD && valueAt != NO_METHOD && size != NO_METHOD) {
+                Object[] args = arguments.get()[0];
+                try {
+                    int count = (Integer) size.invoke(data, NO_ARGUMENTS);
+                    for (int i = 0; i < count; i++) {
+                        args[0] = i;
+                        consumer.accept((String) keyAt.invoke(data, args), valueAt.invoke(data, args), state);
+                    }
+                } finally {
+                    args[0] = null;
+                }
+                return true;
+            }
+            Method forEach = FOR_EACH_PARAMETERS != null
+                    ? lookup(forEachMethods, type, "forEach", FOR_EACH_PARAMETERS)
+                    : NO_METHOD;
+            if (forEach == NO_METHOD) {
+                return false;
+            }
+            Object[] args = arguments.get()[1];
+            Object[] forEachState = arguments.get()[2];
+            forEachState[0] = consumer;
+            forEachState[1] = state;
+            args[0] = FOR_EACH_CONSUMER;
+            args[1] = forEachState;
+            try {
+                forEach.invoke(data, args);
+            } finally {
+                args[0] = null;
+                args[1] = null;
+                forEachState[0] = null;
+                forEachState[1] = null;
+            }
+            return true;
+        } catch (IllegalAccessException e) {
+            return false;
+        } catch (InvocationTargetException e) {
+            return false;
+        }
+    }
+
+    /**
+     * The TriConsumer handed to ReadOnlyStringMap.forEach, which passes each entry on to the
+     * consumer carried in the state.
+     */
+    private static class ForEachHandler implements InvocationHandler {
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("accept".equals(method.getName()) && args != null && args.length == 3) {
+                Object[] state = (Object[]) args[2];
+                ((ContextDataConsumer<Object>) state[0]).accept((String) args[0], args[1], state[1]);
+                return null;
+            }
+            if ("equals".equals(method.getName())) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(method.getName())) {
+                return System.identityHashCode(proxy);
+            }
+            return "ContextDataConsumer";
+        }
+    }
+
+    private static Method lookup(ConcurrentMap<Class<?>, Method> cache, Class<?> type, String name, Class<?>[] parameterTypes) {
+        Method method = cache.get(type);
+        if (method == null) {
+            try {
+                method = type.getMethod(name, parameterTypes);
+                makeAccessible(method);
+            } catch (NoSuchMethodException e) {
+                method = NO_METHOD;
+            }
+            cache.put(type, method);
+        }
+        return method;
+    }
+
+    private static void makeAccessible(Method method) {
+        // public methods of non-public classes are only reachable this way
+        try {
+            method.setAccessible(true);
+        } catch (RuntimeException e) {
+            // Security manager or module boundary, public classes still work
+        }
+    }
 }
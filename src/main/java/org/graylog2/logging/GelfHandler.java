@@ -2,36 +2,94 @@ package org.graylog2.logging;
 
 import org.graylog2.*;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.IllegalFormatConversionException;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.*;
+import java.util.zip.Deflater;
 
 public class GelfHandler
         extends Handler {
-    private static final int MAX_SHORT_MESSAGE_LENGTH = 250;
+    // getInstant().getNano() as one handle of type (LogRecord)int; null before Java 9
+    private static final MethodHandle NANO_OF_SECOND = lookupNanoOfSecond();
 
     private String graylogHost;
     private String amqpURI;
     private String amqpExchangeName;
     private String amqpRoutingKey;
     private int amqpMaxRetries;
-    private String originHost;
+    private int amqpMaxInFlight;
+    private int amqpChannels = 1;
+    private long amqpConfirmTimeoutMillis = GelfAMQPSender.DEFAULT_CONFIRM_TIMEOUT_MILLIS;
+    private volatile String originHost;
     private int graylogPort;
-    private String facility;
-    private GelfSender gelfSender;
+    private volatile String facility;
+    private final Object senderLock = new Object();
+    private volatile GelfSender gelfSender;
+    // held to build the envelope and to change what goes into it, so that an envelope built
+    // from values a setter has just replaced is not cached
+    private final Object envelopeLock = new Object();
+    private volatile GelfEnvelope envelope;
     private boolean extractStacktrace;
-    private Map<String, String> fields;
+    private int stackTraceMaxDepth;
+    private String[] stackTraceFilteredPackages;
+    private int stackTraceMaxLength;
+    private volatile GelfStackTraceRenderer stackTraceRenderer;
+    private boolean microsecondPrecision;
+    // copied on write, records read it without a lock
+    private volatile Map<String, String> fields;
+    private GelfCompression compression = GelfCompression.GZIP;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean adaptiveCompression;
+    private double adaptiveCompressionRatio = GelfCompressor.DEFAULT_ADAPTIVE_RATIO;
+    private volatile GelfCompressor compressor;
+    private int tcpBufferSize = GelfTCPSender.DEFAULT_BUFFER_SIZE;
+    private long tcpLingerMillis;
+    private int sendBufferSize;
+    private long udpSendTimeoutMillis = GelfUDPSender.DEFAULT_SEND_TIMEOUT_MILLIS;
+    private long dnsRefreshMillis = GelfEndpointResolver.DEFAULT_TTL_MILLIS;
+    private int httpBatchSize = GelfHTTPSender.DEFAULT_BATCH_SIZE;
+    private long httpLingerMillis;
+    private int httpMaxInFlight = GelfHTTPSender.DEFAULT_MAX_IN_FLIGHT;
+    private long httpTimeoutMillis = GelfHTTPSender.DEFAULT_TIMEOUT_MILLIS;
+    private String tlsTrustStore;
+    private String tlsTrustStorePassword;
+    private String tlsKeyStore;
+    private String tlsKeyStorePassword;
+    private boolean tlsVerifyHostname = true;
+    // shared by all TLS endpoints, so that their sessions are resumed
+    private GelfTLSOptions tlsOptions;
+    private boolean tcpNoDelay;
+    private boolean tcpKeepAlive;
+    private int tcpBacklogSize = GelfTCPSender.DEFAULT_BACKLOG_SIZE;
+    private long tcpReconnectDelayMillis = GelfTCPSender.DEFAULT_RECONNECT_DELAY_MILLIS;
+    private long tcpMaxReconnectDelayMillis = GelfTCPSender.DEFAULT_MAX_RECONNECT_DELAY_MILLIS;
+    private String spoolDirectory;
+    private int spoolSegmentSize = GelfSpool.DEFAULT_SEGMENT_SIZE;
+    private long spoolMaxSize = GelfSpool.DEFAULT_MAX_SIZE;
+    private GelfBalancingPolicy balancingPolicy = GelfBalancingPolicy.ROUND_ROBIN;
+    private int balancingMaxFailures = GelfBalancingSender.DEFAULT_MAX_FAILURES;
+    private long balancingProbeIntervalMillis = GelfBalancingSender.DEFAULT_PROBE_INTERVAL_MILLIS;
+    private String fallbackHosts;
+    private long failoverLatencyMillis;
+    private long failbackIntervalMillis = GelfFailoverSender.DEFAULT_FAILBACK_INTERVAL_MILLIS;
 
     public GelfHandler() {
         final LogManager manager = LogManager.getLogManager();
@@ -42,8 +100,14 @@ public class GelfHandler
         graylogPort = null == port ? 12201 : Integer.parseInt(port);
         originHost = manager.getProperty(prefix + ".originHost");
         extractStacktrace = "true".equalsIgnoreCase(manager.getProperty(prefix + ".extractStacktrace"));
+        microsecondPrecision = "true".equalsIgnoreCase(manager.getProperty(prefix + ".microsecondPrecision"));
+        final String maxDepth = manager.getProperty(prefix + ".stackTraceMaxDepth");
+        stackTraceMaxDepth = null == maxDepth ? 0 : Integer.parseInt(maxDepth.trim());
+        stackTraceFilteredPackages = GelfStackTraceRenderer.parsePackages(manager.getProperty(prefix + ".stackTraceFilteredPackages"));
+        final String maxLength = manager.getProperty(prefix + ".stackTraceMaxLength");
+        stackTraceMaxLength = null == maxLength ? 0 : Integer.parseInt(maxLength.trim());
         int fieldNumber = 0;
-        fields = new HashMap<String, String>();
+        final Map<String, String> configured = new HashMap<String, String>();
         while (true) {
             final String property = manager.getProperty(prefix + ".additionalField." + fieldNumber);
             if (null == property) {
@@ -51,11 +115,12 @@ public class GelfHandler
             }
             final int index = property.indexOf('=');
             if (-1 != index) {
-                fields.put(property.substring(0, index), property.substring(index + 1));
+                configured.put(property.substring(0, index), property.substring(index + 1));
             }
 
             fieldNumber++;
         }
+        fields = configured;
         facility = manager.getProperty(prefix + ".facility");
 
         amqpURI = manager.getProperty(prefix + ".amqpURI");
@@ -63,6 +128,113 @@ public class GelfHandler
         amqpRoutingKey = manager.getProperty(prefix + ".amqpRoutingKey");
         String maxRetries = manager.getProperty(prefix + ".amqpMaxRetries");
         amqpMaxRetries = maxRetries == null ? 0 : Integer.valueOf(maxRetries);
+        String maxInFlight = manager.getProperty(prefix + ".amqpMaxInFlight");
+        amqpMaxInFlight = maxInFlight == null ? 0 : Integer.valueOf(maxInFlight.trim());
+        String channels = manager.getProperty(prefix + ".amqpChannels");
+        amqpChannels = channels == null ? 1 : Integer.valueOf(channels.trim());
+        String confirmTimeout = manager.getProperty(prefix + ".amqpConfirmTimeoutMillis");
+        if (confirmTimeout != null) {
+            amqpConfirmTimeoutMillis = Long.parseLong(confirmTimeout.trim());
+        }
+        setCompression(manager.getProperty(prefix + ".compression"));
+        final String compressionLevelProperty = manager.getProperty(prefix + ".compressionLevel");
+        if (null != compressionLevelProperty) {
+            compressionLevel = Integer.parseInt(compressionLevelProperty.trim());
+        }
+        adaptiveCompression = "true".equalsIgnoreCase(manager.getProperty(prefix + ".adaptiveCompression"));
+        final String ratio = manager.getProperty(prefix + ".adaptiveCompressionRatio");
+        if (null != ratio) {
+            adaptiveCompressionRatio = Double.parseDouble(ratio.trim());
+        }
+
+        final String tcpBufferSizeProperty = manager.getProperty(prefix + ".tcpBufferSize");
+        if (null != tcpBufferSizeProperty) {
+            tcpBufferSize = Integer.parseInt(tcpBufferSizeProperty.trim());
+        }
+        final String tcpLingerProperty = manager.getProperty(prefix + ".tcpLingerMillis");
+        if (null != tcpLingerProperty) {
+            tcpLingerMillis = Long.parseLong(tcpLingerProperty.trim());
+        }
+        final String sendBufferSizeProperty = manager.getProperty(prefix + ".sendBufferSize");
+        if (null != sendBufferSizeProperty) {
+            sendBufferSize = Integer.parseInt(sendBufferSizeProperty.trim());
+        }
+        final String udpSendTimeoutProperty = manager.getProperty(prefix + ".udpSendTimeoutMillis");
+        if (null != udpSendTimeoutProperty) {
+            udpSendTimeoutMillis = Long.parseLong(udpSendTimeoutProperty.trim());
+        }
+        final String dnsRefreshProperty = manager.getProperty(prefix + ".dnsRefreshMillis");
+        if (null != dnsRefreshProperty) {
+            dnsRefreshMillis = Long.parseLong(dnsRefreshProperty.trim());
+        }
+        final String httpBatchSizeProperty = manager.getProperty(prefix + ".httpBatchSize");
+        if (null != httpBatchSizeProperty) {
+            httpBatchSize = Integer.parseInt(httpBatchSizeProperty.trim());
+        }
+        final String httpLingerProperty = manager.getProperty(prefix + ".httpLingerMillis");
+        if (null != httpLingerProperty) {
+            httpLingerMillis = Long.parseLong(httpLingerProperty.trim());
+        }
+        final String httpMaxInFlightProperty = manager.getProperty(prefix + ".httpMaxInFlight");
+        if (null != httpMaxInFlightProperty) {
+            httpMaxInFlight = Integer.parseInt(httpMaxInFlightProperty.trim());
+        }
+        final String httpTimeoutProperty = manager.getProperty(prefix + ".httpTimeoutMillis");
+        if (null != httpTimeoutProperty) {
+            httpTimeoutMillis = Long.parseLong(httpTimeoutProperty.trim());
+        }
+        tlsTrustStore = manager.getProperty(prefix + ".tlsTrustStore");
+        tlsTrustStorePassword = manager.getProperty(prefix + ".tlsTrustStorePassword");
+        tlsKeyStore = manager.getProperty(prefix + ".tlsKeyStore");
+        tlsKeyStorePassword = manager.getProperty(prefix + ".tlsKeyStorePassword");
+        tlsVerifyHostname = !"false".equalsIgnoreCase(manager.getProperty(prefix + ".tlsVerifyHostname"));
+        tcpNoDelay = "true".equalsIgnoreCase(manager.getProperty(prefix + ".tcpNoDelay"));
+        tcpKeepAlive = "true".equalsIgnoreCase(manager.getProperty(prefix + ".tcpKeepAlive"));
+        final String tcpBacklogSizeProperty = manager.getProperty(prefix + ".tcpBacklogSize");
+        if (null != tcpBacklogSizeProperty) {
+            tcpBacklogSize = Integer.parseInt(tcpBacklogSizeProperty.trim());
+        }
+        final String reconnectDelayProperty = manager.getProperty(prefix + ".tcpReconnectDelayMillis");
+        if (null != reconnectDelayProperty) {
+            tcpReconnectDelayMillis = Long.parseLong(reconnectDelayProperty.trim());
+        }
+        final String maxReconnectDelayProperty = manager.getProperty(prefix + ".tcpMaxReconnectDelayMillis");
+        if (null != maxReconnectDelayProperty) {
+            tcpMaxReconnectDelayMillis = Long.parseLong(maxReconnectDelayProperty.trim());
+        }
+        final String spoolDirectoryProperty = manager.getProperty(prefix + ".spoolDirectory");
+        if (null != spoolDirectoryProperty && spoolDirectoryProperty.trim().length() > 0) {
+            spoolDirectory = spoolDirectoryProperty.trim();
+        }
+        final String spoolSegmentSizeProperty = manager.getProperty(prefix + ".spoolSegmentSize");
+        if (null != spoolSegmentSizeProperty) {
+            spoolSegmentSize = Integer.parseInt(spoolSegmentSizeProperty.trim());
+        }
+        final String spoolMaxSizeProperty = manager.getProperty(prefix + ".spoolMaxSize");
+        if (null != spoolMaxSizeProperty) {
+            spoolMaxSize = Long.parseLong(spoolMaxSizeProperty.trim());
+        }
+        setBalancingPolicy(manager.getProperty(prefix + ".balancingPolicy"));
+        final String balancingMaxFailuresProperty = manager.getProperty(prefix + ".balancingMaxFailures");
+        if (null != balancingMaxFailuresProperty) {
+            balancingMaxFailures = Integer.parseInt(balancingMaxFailuresProperty.trim());
+        }
+        final String balancingProbeIntervalProperty = manager.getProperty(prefix + ".balancingProbeIntervalMillis");
+        if (null != balancingProbeIntervalProperty) {
+            balancingProbeIntervalMillis = Long.parseLong(balancingProbeIntervalProperty.trim());
+        }
+        final String fallbackHostsProperty = manager.getProperty(prefix + ".fallbackHosts");
+        if (null != fallbackHostsProperty && fallbackHostsProperty.trim().length() > 0) {
+            fallbackHosts = fallbackHostsProperty.trim();
+        }
+        final String failoverLatencyProperty = manager.getProperty(prefix + ".failoverLatencyMillis");
+        if (null != failoverLatencyProperty) {
+            failoverLatencyMillis = Long.parseLong(failoverLatencyProperty.trim());
+        }
+        final String failbackIntervalProperty = manager.getProperty(prefix + ".failbackIntervalMillis");
+        if (null != failbackIntervalProperty) {
+            failbackIntervalMillis = Long.parseLong(failbackIntervalProperty.trim());
+        }
 
         final String level = manager.getProperty(prefix + ".level");
         if (null != level) {
@@ -93,7 +265,7 @@ public class GelfHandler
     }
 
     @Override
-    public synchronized void flush() {
+    public void flush() {
     }
 
 
@@ -115,58 +287,241 @@ public class GelfHandler
     }
 
     @Override
-    public synchronized void publish(final LogRecord record) {
+    public void publish(final LogRecord record) {
         if (!isLoggable(record)) {
             return;
         }
-        if (null == gelfSender) {
-            if (graylogHost == null && amqpURI == null) {
-                reportError("Graylog2 hostname and amqp uri are empty!", null, ErrorManager.WRITE_FAILURE);
-            } else if (graylogHost != null && amqpURI != null) {
-                reportError("Graylog2 hostname and amqp uri are both informed!", null, ErrorManager.WRITE_FAILURE);
-            } else {
-                try {
-                    if (graylogHost.startsWith("tcp:")) {
-                        String tcpGraylogHost = graylogHost.substring(4, graylogHost.length());
-                        gelfSender = new GelfTCPSender(tcpGraylogHost, graylogPort);
-                    } else if (graylogHost.startsWith("udp:")) {
-                        String udpGraylogHost = graylogHost.substring(4, graylogHost.length());
-                        gelfSender = new GelfUDPSender(udpGraylogHost, graylogPort);
-                    } else if (amqpURI != null) {
-                        gelfSender = new GelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
-                    } else {
-                        gelfSender = new GelfUDPSender(graylogHost, graylogPort);
-                    }
-                } catch (UnknownHostException e) {
-                    reportError("Unknown Graylog2 hostname:" + graylogHost, e, ErrorManager.WRITE_FAILURE);
-                } catch (SocketException e) {
-                    reportError("Socket exception", e, ErrorManager.WRITE_FAILURE);
-                } catch (IOException e) {
-                    reportError("IO exception", e, ErrorManager.WRITE_FAILURE);
-                } catch (URISyntaxException e) {
-                    reportError("AMQP uri exception", e, ErrorManager.WRITE_FAILURE);
-                } catch (NoSuchAlgorithmException e) {
-                    reportError("AMQP algorithm exception", e, ErrorManager.WRITE_FAILURE);
-                } catch (KeyManagementException e) {
-                    reportError("AMQP key exception", e, ErrorManager.WRITE_FAILURE);
+        final GelfSender sender = getGelfSender();
+        if (null == sender) {
+            reportError("Could not send GELF message", null, ErrorManager.WRITE_FAILURE);
+        } else {
+            GelfSenderResult gelfSenderResult = sender.sendMessage(makeMessage(record));
+            // dropped messages are counted by the sender, reporting each one would flood the error manager
+            if (!GelfSenderResult.OK.equals(gelfSenderResult) && !GelfSenderResult.MESSAGE_DROPPED.equals(gelfSenderResult)) {
+                reportError("Error during sending GELF message. Error code: " + gelfSenderResult.getCode() + ".", gelfSenderResult.getException(), ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * Records are built and encoded concurrently by the logging threads; only creating the
+     * sender on first use is done under a lock.
+     */
+    private GelfSender getGelfSender() {
+        GelfSender sender = gelfSender;
+        if (null == sender) {
+            synchronized (senderLock) {
+                sender = gelfSender;
+                if (null == sender) {
+                    sender = createGelfSender();
+                    gelfSender = sender;
                 }
             }
         }
-        if (null == gelfSender) {
-            reportError("Could not send GELF message", null, ErrorManager.WRITE_FAILURE);
+        return sender;
+    }
+
+    private GelfSender createGelfSender() {
+        if (graylogHost == null && amqpURI == null) {
+            reportError("Graylog2 hostname and amqp uri are empty!", null, ErrorManager.WRITE_FAILURE);
         } else {
-            GelfSenderResult gelfSenderResult = gelfSender.sendMessage(makeMessage(record));
-            if (!GelfSenderResult.OK.equals(gelfSenderResult)) {
-                reportError("Error during sending GELF message. Error code: " + gelfSenderResult.getCode() + ".", gelfSenderResult.getException(), ErrorManager.WRITE_FAILURE);
+            try {
+                compressor = new GelfCompressor(compression, compressionLevel, adaptiveCompression, adaptiveCompressionRatio);
+                GelfSender sender;
+                if (graylogHost == null) {
+                    sender = getGelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
+                } else if (isBalancing()) {
+                    sender = getGelfBalancingSender(graylogHost.split(","));
+                } else {
+                    sender = getGelfEndpointSender(graylogHost);
+                }
+                if (isFailingOver()) {
+                    sender = getGelfFailoverSender(sender);
+                }
+                return spoolDirectory != null ? getGelfSpoolingSender(sender) : sender;
+            } catch (UnknownHostException e) {
+                reportError("Unknown Graylog2 hostname:" + graylogHost, e, ErrorManager.WRITE_FAILURE);
+            } catch (SocketException e) {
+                reportError("Socket exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (IOException e) {
+                reportError("IO exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (URISyntaxException e) {
+                reportError("AMQP uri exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (NoSuchAlgorithmException e) {
+                reportError("AMQP algorithm exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (KeyManagementException e) {
+                reportError("AMQP key exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (GeneralSecurityException e) {
+                reportError("TLS key store exception", e, ErrorManager.WRITE_FAILURE);
+            } catch (IllegalArgumentException e) {
+                reportError("Invalid compression, UDP, TCP, HTTP, AMQP, spool, balancing or failover settings", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+        return null;
+    }
+
+    private boolean isFailingOver() {
+        return (fallbackHosts != null && fallbackHosts.trim().length() > 0) || (graylogHost != null && amqpURI != null);
+    }
+
+    private boolean isBalancing() {
+        return graylogHost != null && graylogHost.indexOf(',') >= 0;
+    }
+
+    /**
+     * Whether the TCP senders are wrapped by one that acts on their failures, which it only
+     * sees for messages they neither hold back in a backlog nor in a linger buffer.
+     */
+    private boolean isWrapped() {
+        return spoolDirectory != null || isBalancing() || isFailingOver();
+    }
+
+    /**
+     * Creates the sender of one endpoint: an AMQP URI, an HTTP URL, or a host prefixed with
+     * <code>tcp:</code>, <code>tls:</code> or <code>udp:</code> and optionally followed by
+     * <code>:port</code>.
+     */
+    private GelfSender getGelfEndpointSender(String endpoint) throws IOException, URISyntaxException, GeneralSecurityException {
+        endpoint = endpoint.trim();
+        if (endpoint.startsWith("amqp://") || endpoint.startsWith("amqps://")) {
+            return getGelfAMQPSender(endpoint, amqpExchangeName, amqpRoutingKey, amqpMaxRetries);
+        }
+        if (endpoint.startsWith("http://")) {
+            return getGelfHTTPSender(endpoint);
+        }
+        boolean tcp = endpoint.startsWith("tcp:");
+        boolean tls = endpoint.startsWith("tls:");
+        String host = tcp || tls || endpoint.startsWith("udp:") ? endpoint.substring(4) : endpoint;
+        int port = graylogPort;
+        int colon = host.indexOf(':');
+        // IPv6 addresses have several colons and take graylogPort
+        if (colon > 0 && colon == host.lastIndexOf(':')) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        if (tls) {
+            return getGelfTLSSender(host, port);
+        }
+        return tcp ? getGelfTCPSender(host, port) : getGelfUDPSender(host, port);
+    }
+
+    protected GelfBalancingSender getGelfBalancingSender(String[] endpoints) throws IOException, URISyntaxException, GeneralSecurityException {
+        List<GelfSender> senders = new ArrayList<GelfSender>(endpoints.length);
+        boolean created = false;
+        try {
+            for (String endpoint : endpoints) {
+                senders.add(getGelfEndpointSender(endpoint));
+            }
+            GelfBalancingSender sender = new GelfBalancingSender(senders, balancingPolicy, balancingMaxFailures,
+                    balancingProbeIntervalMillis);
+            created = true;
+            return sender;
+        } finally {
+            if (!created) {
+                for (GelfSender sender : senders) {
+                    sender.close();
+                }
             }
         }
     }
 
+    /**
+     * Chains the primary sender with the ones of fallbackHosts and, if amqpURI is set
+     * besides graylogHost, the AMQP sender last.
+     */
+    protected GelfFailoverSender getGelfFailoverSender(GelfSender primary) throws IOException, URISyntaxException, GeneralSecurityException {
+        List<GelfSender> senders = new ArrayList<GelfSender>();
+        senders.add(primary);
+        boolean created = false;
+        try {
+            if (fallbackHosts != null && fallbackHosts.trim().length() > 0) {
+                for (String endpoint : fallbackHosts.split(",")) {
+                    senders.add(getGelfEndpointSender(endpoint));
+                }
+            }
+            if (graylogHost != null && amqpURI != null) {
+                senders.add(getGelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries));
+            }
+            GelfFailoverSender sender = new GelfFailoverSender(senders, failoverLatencyMillis, failbackIntervalMillis);
+            created = true;
+            return sender;
+        } finally {
+            if (!created) {
+                for (GelfSender sender : senders) {
+                    sender.close();
+                }
+            }
+        }
+    }
+
+    protected GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort) throws IOException {
+        return new GelfUDPSender(new GelfEndpointResolver(udpGraylogHost, graylogPort, dnsRefreshMillis), compressor,
+                sendBufferSize, udpSendTimeoutMillis);
+    }
+
+    protected GelfTCPSender getGelfTCPSender(String tcpGraylogHost, int graylogPort) throws IOException {
+        return new GelfTCPSender(new GelfEndpointResolver(tcpGraylogHost, graylogPort, dnsRefreshMillis), tcpBufferSize,
+                isWrapped() ? 0 : tcpLingerMillis, new GelfSocketOptions(sendBufferSize, tcpNoDelay, tcpKeepAlive), isWrapped() ? 0 : tcpBacklogSize,
+                tcpReconnectDelayMillis, tcpMaxReconnectDelayMillis) {
+            @Override
+            protected void onConnectFailure(InetSocketAddress address, IOException e) {
+                reportError("Cannot connect to " + address, e, ErrorManager.OPEN_FAILURE);
+            }
+        };
+    }
+
+    protected GelfHTTPSender getGelfHTTPSender(String url) throws IOException {
+        return new GelfHTTPSender(url, compressor, httpBatchSize, httpLingerMillis, httpMaxInFlight, httpTimeoutMillis) {
+            @Override
+            protected void onConnectFailure(IOException e) {
+                reportError("Cannot connect to " + getUrl(), e, ErrorManager.OPEN_FAILURE);
+            }
+
+            @Override
+            protected void onSendFailure(int messages, GelfSenderResult result) {
+                reportError("Error during sending " + messages + " GELF messages. Error code: " + result.getCode() + ".",
+                        result.getException(), ErrorManager.WRITE_FAILURE);
+            }
+        };
+    }
+
+    protected GelfTCPSender getGelfTLSSender(String tlsGraylogHost, int graylogPort) throws IOException, GeneralSecurityException {
+        if (tlsOptions == null) {
+            tlsOptions = GelfTLSOptions.fromKeyStores(tlsTrustStore, tlsTrustStorePassword, tlsKeyStore, tlsKeyStorePassword,
+                    tlsVerifyHostname);
+        }
+        return new GelfTCPSender(new GelfEndpointResolver(tlsGraylogHost, graylogPort, dnsRefreshMillis), tcpBufferSize,
+                isWrapped() ? 0 : tcpLingerMillis, new GelfSocketOptions(sendBufferSize, tcpNoDelay, tcpKeepAlive), isWrapped() ? 0 : tcpBacklogSize,
+                tcpReconnectDelayMillis, tcpMaxReconnectDelayMillis, tlsOptions) {
+            @Override
+            protected void onConnectFailure(InetSocketAddress address, IOException e) {
+                reportError("Cannot connect to " + address, e, ErrorManager.OPEN_FAILURE);
+            }
+        };
+    }
+
+    protected GelfSpoolingSender getGelfSpoolingSender(GelfSender sender) throws IOException {
+        return new GelfSpoolingSender(sender, new GelfSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxSize));
+    }
+
+    protected GelfAMQPSender getGelfAMQPSender(String amqpURI, String amqpExchangeName, String amqpRoutingKey, int amqpMaxRetries) throws IOException, URISyntaxException, NoSuchAlgorithmException, KeyManagementException {
+        return new GelfAMQPSender(amqpURI, amqpExchangeName, amqpRoutingKey, amqpMaxRetries, compressor, amqpMaxInFlight,
+                amqpConfirmTimeoutMillis, amqpChannels) {
+            @Override
+            protected void onSendFailure(String messageId, GelfSenderResult result) {
+                reportError("Error during sending GELF message " + messageId + ". Error code: " + result.getCode() + ".",
+                        result.getException(), ErrorManager.WRITE_FAILURE);
+            }
+        };
+    }
+
     @Override
     public void close() {
-        if (null != gelfSender) {
-            gelfSender.close();
-            gelfSender = null;
+        synchronized (senderLock) {
+            if (null != gelfSender) {
+                gelfSender.close();
+                gelfSender = null;
+            }
         }
     }
 
@@ -192,45 +547,93 @@ public class GelfHandler
             }
         }
 
-        final String shortMessage;
-        if (message.length() > MAX_SHORT_MESSAGE_LENGTH) {
-            shortMessage = message.substring(0, MAX_SHORT_MESSAGE_LENGTH - 1);
-        } else {
-            shortMessage = message;
-        }
-
-        if (extractStacktrace) {
-            final Throwable thrown = record.getThrown();
-            if (null != thrown) {
-                final StringWriter sw = new StringWriter();
-                thrown.printStackTrace(new PrintWriter(sw));
-                message += "\n\r" + sw.toString();
-            }
-        }
-
         final GelfMessage gelfMessage =
-                new GelfMessage(shortMessage,
-                        message,
+                new GelfMessage(null,
+                        null,
                         record.getMillis(),
                         String.valueOf(levelToSyslogLevel(record.getLevel())));
+        final Throwable thrown = extractStacktrace ? record.getThrown() : null;
+        if (null != thrown) {
+            // the trace is rendered next to the message and encoded from the builder; the
+            // short message stays the message alone
+            final StringBuilder builder = new StringBuilder(message.length() + 2048);
+            builder.append(message).append("\n\r");
+            getStackTraceRenderer().appendTo(thrown, builder);
+            gelfMessage.setMessageText(builder, message.length());
+        } else {
+            gelfMessage.setMessageText(message);
+        }
+        if (microsecondPrecision) {
+            gelfMessage.setMicrosOfMillisecond(microsOfMillisecond(record));
+        }
         gelfMessage.addField("SourceClassName", record.getSourceClassName());
         gelfMessage.addField("SourceMethodName", record.getSourceMethodName());
 
-        if (null != getOriginHost()) {
-            gelfMessage.setHost(getOriginHost());
+        gelfMessage.setEnvelope(getEnvelope());
+
+        return gelfMessage;
+    }
+
+    /**
+     * LogRecord keeps a nanosecond instant since Java 9; older runtimes only know millis.
+     */
+    static int microsOfMillisecond(final LogRecord record) {
+        if (null != NANO_OF_SECOND) {
+            try {
+                // invokeExact neither boxes the result nor allocates an argument array
+                return (((int) NANO_OF_SECOND.invokeExact(record)) % 1000000) / 1000;
+            } catch (final Error e) {
+                throw e;
+            } catch (final Throwable e) {
+                // fall back to millisecond precision
+            }
         }
+        return -1;
+    }
 
-        if (null != facility) {
-            gelfMessage.setFacility(facility);
+    private static MethodHandle lookupNanoOfSecond() {
+        try {
+            final Method getInstant = LogRecord.class.getMethod("getInstant");
+            final Method getNano = getInstant.getReturnType().getMethod("getNano");
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            return MethodHandles.filterReturnValue(lookup.unreflect(getInstant), lookup.unreflect(getNano));
+        } catch (final NoSuchMethodException e) {
+            return null;
+        } catch (final IllegalAccessException e) {
+            return null;
         }
+    }
 
-        if (null != fields) {
-            for (final Map.Entry<String, String> entry : fields.entrySet()) {
-                gelfMessage.addField(entry.getKey(), entry.getValue());
+    /**
+     * Origin host, facility and the configured fields never change between records, so
+     * they are encoded once and reused until one of the setters changes them.
+     */
+    private GelfEnvelope getEnvelope() {
+        GelfEnvelope current = envelope;
+        if (null == current) {
+            synchronized (envelopeLock) {
+                current = envelope;
+                if (null == current) {
+                    current = new GelfEnvelope(getOriginHost(), facility, fields);
+                    envelope = current;
+                }
             }
         }
+        return current;
+    }
 
-        return gelfMessage;
+    private GelfStackTraceRenderer getStackTraceRenderer() {
+        GelfStackTraceRenderer current = stackTraceRenderer;
+        if (null == current) {
+            try {
+                current = new GelfStackTraceRenderer(stackTraceMaxDepth, stackTraceFilteredPackages, stackTraceMaxLength);
+            } catch (final IllegalArgumentException e) {
+                reportError("Invalid stack trace settings", e, ErrorManager.GENERIC_FAILURE);
+                current = GelfStackTraceRenderer.DEFAULT;
+            }
+            stackTraceRenderer = current;
+        }
+        return current;
     }
 
     private int levelToSyslogLevel(final Level level) {
@@ -251,12 +654,34 @@ public class GelfHandler
         this.extractStacktrace = extractStacktrace;
     }
 
+    public void setStackTraceMaxDepth(int stackTraceMaxDepth) {
+        this.stackTraceMaxDepth = stackTraceMaxDepth;
+        this.stackTraceRenderer = null;
+    }
+
+    public void setStackTraceFilteredPackages(String stackTraceFilteredPackages) {
+        this.stackTraceFilteredPackages = GelfStackTraceRenderer.parsePackages(stackTraceFilteredPackages);
+        this.stackTraceRenderer = null;
+    }
+
+    public void setStackTraceMaxLength(int stackTraceMaxLength) {
+        this.stackTraceMaxLength = stackTraceMaxLength;
+        this.stackTraceRenderer = null;
+    }
+
+    public void setMicrosecondPrecision(boolean microsecondPrecision) {
+        this.microsecondPrecision = microsecondPrecision;
+    }
+
     public void setGraylogPort(int graylogPort) {
         this.graylogPort = graylogPort;
     }
 
     public void setOriginHost(String originHost) {
-        this.originHost = originHost;
+        synchronized (envelopeLock) {
+            this.originHost = originHost;
+            this.envelope = null;
+        }
     }
 
     public void setGraylogHost(String graylogHost) {
@@ -264,7 +689,165 @@ public class GelfHandler
     }
 
     public void setFacility(String facility) {
-        this.facility = facility;
+        synchronized (envelopeLock) {
+            this.facility = facility;
+            this.envelope = null;
+        }
+    }
+
+    public void setCompression(String compression) {
+        try {
+            this.compression = GelfCompression.fromString(compression);
+        } catch (IllegalArgumentException e) {
+            reportError("Unknown compression: " + compression, e, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    public void setBalancingPolicy(String balancingPolicy) {
+        try {
+            this.balancingPolicy = GelfBalancingPolicy.fromString(balancingPolicy);
+        } catch (IllegalArgumentException e) {
+            reportError("Unknown balancing policy: " + balancingPolicy, e, ErrorManager.GENERIC_FAILURE);
+        }
+    }
+
+    public void setBalancingMaxFailures(int balancingMaxFailures) {
+        this.balancingMaxFailures = balancingMaxFailures;
+    }
+
+    public void setBalancingProbeIntervalMillis(long balancingProbeIntervalMillis) {
+        this.balancingProbeIntervalMillis = balancingProbeIntervalMillis;
+    }
+
+    public void setFallbackHosts(String fallbackHosts) {
+        this.fallbackHosts = fallbackHosts;
+    }
+
+    public void setFailoverLatencyMillis(long failoverLatencyMillis) {
+        this.failoverLatencyMillis = failoverLatencyMillis;
+    }
+
+    public void setFailbackIntervalMillis(long failbackIntervalMillis) {
+        this.failbackIntervalMillis = failbackIntervalMillis;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public void setAdaptiveCompression(boolean adaptiveCompression) {
+        this.adaptiveCompression = adaptiveCompression;
+    }
+
+    public void setAdaptiveCompressionRatio(double adaptiveCompressionRatio) {
+        this.adaptiveCompressionRatio = adaptiveCompressionRatio;
+    }
+
+    public void setTcpBufferSize(int tcpBufferSize) {
+        this.tcpBufferSize = tcpBufferSize;
+    }
+
+    public void setTcpLingerMillis(long tcpLingerMillis) {
+        this.tcpLingerMillis = tcpLingerMillis;
+    }
+
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public void setUdpSendTimeoutMillis(long udpSendTimeoutMillis) {
+        this.udpSendTimeoutMillis = udpSendTimeoutMillis;
+    }
+
+    public void setDnsRefreshMillis(long dnsRefreshMillis) {
+        this.dnsRefreshMillis = dnsRefreshMillis;
+    }
+
+    public void setHttpBatchSize(int httpBatchSize) {
+        this.httpBatchSize = httpBatchSize;
+    }
+
+    public void setHttpLingerMillis(long httpLingerMillis) {
+        this.httpLingerMillis = httpLingerMillis;
+    }
+
+    public void setHttpMaxInFlight(int httpMaxInFlight) {
+        this.httpMaxInFlight = httpMaxInFlight;
+    }
+
+    public void setHttpTimeoutMillis(long httpTimeoutMillis) {
+        this.httpTimeoutMillis = httpTimeoutMillis;
+    }
+
+    public void setTlsTrustStore(String tlsTrustStore) {
+        this.tlsTrustStore = tlsTrustStore;
+    }
+
+    public void setTlsTrustStorePassword(String tlsTrustStorePassword) {
+        this.tlsTrustStorePassword = tlsTrustStorePassword;
+    }
+
+    public void setTlsKeyStore(String tlsKeyStore) {
+        this.tlsKeyStore = tlsKeyStore;
+    }
+
+    public void setTlsKeyStorePassword(String tlsKeyStorePassword) {
+        this.tlsKeyStorePassword = tlsKeyStorePassword;
+    }
+
+    public void setTlsVerifyHostname(boolean tlsVerifyHostname) {
+        this.tlsVerifyHostname = tlsVerifyHostname;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public void setTcpBacklogSize(int tcpBacklogSize) {
+        this.tcpBacklogSize = tcpBacklogSize;
+    }
+
+    public void setTcpReconnectDelayMillis(long tcpReconnectDelayMillis) {
+        this.tcpReconnectDelayMillis = tcpReconnectDelayMillis;
+    }
+
+    public void setTcpMaxReconnectDelayMillis(long tcpMaxReconnectDelayMillis) {
+        this.tcpMaxReconnectDelayMillis = tcpMaxReconnectDelayMillis;
+    }
+
+    public void setAmqpMaxInFlight(int amqpMaxInFlight) {
+        this.amqpMaxInFlight = amqpMaxInFlight;
+    }
+
+    public void setAmqpChannels(int amqpChannels) {
+        this.amqpChannels = amqpChannels;
+    }
+
+    public void setAmqpConfirmTimeoutMillis(long amqpConfirmTimeoutMillis) {
+        this.amqpConfirmTimeoutMillis = amqpConfirmTimeoutMillis;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public void setSpoolMaxSize(long spoolMaxSize) {
+        this.spoolMaxSize = spoolMaxSize;
+    }
+
+    /**
+     * The compressor of the running sender, null before the first record is published.
+     */
+    public GelfCompressor getCompressor() {
+        return compressor;
     }
 
     public void setAdditionalField(String entry) {
@@ -274,11 +857,20 @@ public class GelfHandler
             String key = entry.substring(0, index);
             String val = entry.substring(index + 1);
             if (key.equals("")) return;
-            fields.put(key, val);
+            synchronized (envelopeLock) {
+                final Map<String, String> changed = new HashMap<String, String>(fields);
+                changed.put(key, val);
+                fields = changed;
+                envelope = null;
+            }
         }
     }
 
+    /**
+     * The configured additional fields, read-only; they are changed with
+     * {@link #setAdditionalField(String)}, which also re-encodes the envelope.
+     */
     public Map<String, String> getFields() {
-        return fields;
+        return Collections.unmodifiableMap(fields);
     }
 }
@@ -0,0 +1,32 @@
+package org.graylog2;
+
+/**
+ * Creates the background threads of the senders: daemon platform threads, or virtual
+ * threads where they are asked for.
+ * <p>
+ * The Java 21 version of this class in the multi-release jar; virtual threads are always
+ * there, so the builder is called directly.
+ */
+final class GelfThreads {
+
+    private GelfThreads() {
+    }
+
+    static boolean isVirtualSupported() {
+        return true;
+    }
+
+    /**
+     * An unstarted thread running the task; virtual threads are daemon threads anyway.
+     *
+     * @param virtual use a virtual thread
+     */
+    static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual) {
+            return Thread.ofVirtual().name(name).unstarted(task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,132 @@
+package org.graylog2;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.graylog2.GelfAMQPConfirmWindow.Publication;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GelfAMQPConfirmWindowTest {
+
+    private final List<byte[]> published = new ArrayList<byte[]>();
+    private final Semaphore permits = new Semaphore(10);
+    private final Queue<Publication> retries = new ConcurrentLinkedQueue<Publication>();
+    private GelfAMQPConfirmWindow window;
+    private volatile boolean closed;
+
+    @Before
+    public void setUp() {
+        // publishes get delivery tags 1, 2, 3, ...
+        Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Channel.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getNextPublishSeqNo")) {
+                            return (long) published.size() + 1;
+                        } else if (method.getName().equals("basicPublish")) {
+                            if (closed) {
+                                throw new AlreadyClosedException(new ShutdownSignalException(false, true, null, null));
+                            }
+                            published.add((byte[]) args[args.length - 1]);
+                        } else if (method.getName().equals("removeConfirmListener")) {
+                            return true;
+                        }
+                        return null;
+                    }
+                });
+        window = new GelfAMQPConfirmWindow(channel, permits, retries);
+    }
+
+    private Publication publish(String body) throws Exception {
+        assertTrue(permits.tryAcquire());
+        Publication publication = new Publication(new BasicProperties.Builder().messageId(body).build(), body.getBytes());
+        window.publish(publication, "exchange", "key");
+        return publication;
+    }
+
+    @Test
+    public void testAcksReleasePermits() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            publish("m" + i);
+        }
+        assertThat(window.size(), is(5));
+        assertThat(permits.availablePermits(), is(5));
+
+        window.handleAck(3, true);
+        assertThat(window.size(), is(2));
+        assertThat(permits.availablePermits(), is(8));
+
+        window.handleAck(5, false);
+        window.handleAck(5, false);
+        assertThat(window.size(), is(1));
+        assertThat(permits.availablePermits(), is(9));
+        assertTrue(retries.isEmpty());
+    }
+
+    @Test
+    public void testNackedMessagesAreHandedBack() throws Exception {
+        publish("m0");
+        Publication nacked = publish("m1");
+        publish("m2");
+
+        window.handleNack(2, false);
+        assertThat(retries.size(), is(1));
+        assertTrue(retries.peek() == nacked);
+        // the message keeps its permit until it is confirmed or given up
+        assertThat(permits.availablePermits(), is(7));
+
+        window.handleNack(3, true);
+        assertThat(retries.size(), is(3));
+        assertThat(window.size(), is(0));
+    }
+
+    @Test
+    public void testUnconfirmedMessagesExpire() throws Exception {
+        publish("m0");
+        Thread.sleep(20);
+        publish("m1");
+
+        window.expire(TimeUnit.MILLISECONDS.toNanos(10));
+        assertThat(retries.size(), is(1));
+        assertThat(new String(retries.peek().body), is("m0"));
+        assertThat(window.size(), is(1));
+
+        window.abandon();
+        assertThat(retries.size(), is(2));
+        assertThat(window.size(), is(0));
+    }
+
+    @Test
+    public void testClosedChannelDoesNotTrackMessage() throws Exception {
+        publish("m0");
+        closed = true;
+        try {
+            publish("m1");
+            fail("published on a closed channel");
+        } catch (AlreadyClosedException e) {
+            // expected
+        }
+        assertThat(window.size(), is(1));
+
+        // only the message published before is handed back, the failed one stays with the caller
+        window.abandon();
+        assertThat(retries.size(), is(1));
+        assertThat(new String(retries.peek().body), is("m0"));
+    }
+}
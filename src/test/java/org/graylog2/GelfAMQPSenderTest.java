@@ -0,0 +1,144 @@
+package org.graylog2;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GelfAMQPSenderTest {
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, text, 1L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    @Test
+    public void testThreadsKeepToTheirChannel() throws Exception {
+        final FakeBroker broker = new FakeBroker();
+        final GelfAMQPSender sender = broker.sender(4);
+        final Map<Thread, Set<Channel>> channelsOfThread = new ConcurrentHashMap<Thread, Set<Channel>>();
+        broker.publishedBy = channelsOfThread;
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    channelsOfThread.put(Thread.currentThread(), Collections.synchronizedSet(new HashSet<Channel>()));
+                    for (int i = 0; i < 200; i++) {
+                        assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(broker.connections.get(), is(1));
+        assertThat(broker.channels.size(), is(4));
+        assertThat(broker.published.get(), is(1600));
+        for (Set<Channel> channels : channelsOfThread.values()) {
+            assertThat(channels.size(), is(1));
+        }
+        sender.close();
+    }
+
+    @Test
+    public void testFailedChannelIsReplaced() throws Exception {
+        FakeBroker broker = new FakeBroker();
+        GelfAMQPSender sender = broker.sender(2);
+
+        assertThat(sender.sendMessage(message("first")), is(GelfSenderResult.OK));
+        broker.failNextPublish = true;
+        // the retry goes out on a new channel of the same connection
+        assertThat(sender.sendMessage(message("second")), is(GelfSenderResult.OK));
+
+        assertThat(broker.channels.size(), is(2));
+        assertThat(broker.connections.get(), is(1));
+        assertThat(broker.published.get(), is(2));
+        sender.close();
+    }
+
+    /**
+     * Hands out connections and channels that accept and confirm every message.
+     */
+    private static class FakeBroker {
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<Channel> channels = Collections.synchronizedList(new ArrayList<Channel>());
+        private final AtomicInteger published = new AtomicInteger();
+        private volatile boolean failNextPublish;
+        private volatile Map<Thread, Set<Channel>> publishedBy;
+
+        GelfAMQPSender sender(int channelCount) throws Exception {
+            return new GelfAMQPSender("amqp://localhost", "exchange", "key", 1, GelfCompressor.DEFAULT, 0, 1000, channelCount) {
+                @Override
+                protected Connection newConnection() {
+                    connections.incrementAndGet();
+                    return connection();
+                }
+            };
+        }
+
+        private Connection connection() {
+            return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Connection.class},
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getName().equals("createChannel")) {
+                                Channel channel = channel();
+                                channels.add(channel);
+                                return channel;
+                            }
+                            return method.getName().equals("isOpen") ? Boolean.TRUE : null;
+                        }
+                    });
+        }
+
+        private Channel channel() {
+            return (Channel) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{Channel.class},
+                    new InvocationHandler() {
+                        private boolean open = true;
+
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                            String name = method.getName();
+                            if (name.equals("isOpen")) {
+                                return open;
+                            } else if (name.equals("abort")) {
+                                open = false;
+                            } else if (name.equals("basicPublish")) {
+                                if (failNextPublish) {
+                                    failNextPublish = false;
+                                    throw new java.io.IOException("channel failed");
+                                }
+                                published.incrementAndGet();
+                                if (publishedBy != null) {
+                                    publishedBy.get(Thread.currentThread()).add((Channel) proxy);
+                                }
+                            } else if (name.equals("waitForConfirms")) {
+                                return true;
+                            } else if (name.equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            } else if (name.equals("equals")) {
+                                return proxy == args[0];
+                            }
+                            return null;
+                        }
+                    });
+        }
+    }
+}
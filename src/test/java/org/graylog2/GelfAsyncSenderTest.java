@@ -0,0 +1,235 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class GelfAsyncSenderTest {
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, text, 1L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    @Test
+    public void testRingBufferOrderAndCapacity() {
+        GelfRingBuffer<String> queue = new GelfRingBuffer<String>(3);
+
+        assertThat(queue.capacity(), is(4));
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(queue.offer("m" + i));
+            }
+            assertThat(queue.offer("overflow"), is(false));
+            assertThat(queue.size(), is(4));
+            for (int i = 0; i < 4; i++) {
+                assertThat(queue.poll(), is("m" + i));
+            }
+            assertThat(queue.poll() == null, is(true));
+        }
+    }
+
+    @Test
+    public void testMessagesAreSentInOrder() {
+        RecordingSender recorder = new RecordingSender(null);
+        GelfAsyncSender sender = new GelfAsyncSender(recorder);
+        for (int i = 0; i < 1000; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        sender.close();
+
+        assertThat(recorder.sent.size(), is(1000));
+        for (int i = 0; i < 1000; i++) {
+            assertThat(recorder.sent.get(i).getShortMessage(), is("m" + i));
+        }
+        assertThat(recorder.closed, is(true));
+        assertThat(sender.getSentCount(), is(1000L));
+        assertThat(sender.sendMessage(message("late")), is(GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN));
+    }
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSender recorder = new RecordingSender(release);
+        GelfAsyncSender sender = new GelfAsyncSender(recorder, 4, 1, GelfWaitStrategy.YIELD, GelfOverflowPolicy.DROP_NEWEST);
+
+        sender.sendMessage(message("taken"));
+        recorder.awaitFirst();
+        for (int i = 0; i < 4; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        assertThat(sender.sendMessage(message("dropped")), is(GelfAsyncSender.MESSAGE_DROPPED));
+        release.countDown();
+        sender.close();
+
+        assertThat(sender.getDroppedCount(), is(1L));
+        assertThat(recorder.shortMessages(), is(Arrays.asList("taken", "m0", "m1", "m2", "m3")));
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSender recorder = new RecordingSender(release);
+        GelfAsyncSender sender = new GelfAsyncSender(recorder, 4, 1, GelfWaitStrategy.YIELD, GelfOverflowPolicy.DROP_OLDEST);
+
+        sender.sendMessage(message("taken"));
+        recorder.awaitFirst();
+        for (int i = 0; i < 6; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        release.countDown();
+        sender.close();
+
+        assertThat(sender.getDroppedCount(), is(2L));
+        assertThat(recorder.shortMessages(), is(Arrays.asList("taken", "m2", "m3", "m4", "m5")));
+    }
+
+    @Test
+    public void testBlockingProducersLoseNothing() throws InterruptedException {
+        final RecordingSender recorder = new RecordingSender(null);
+        final GelfAsyncSender sender = new GelfAsyncSender(recorder, 16, 2, GelfWaitStrategy.PARK, GelfOverflowPolicy.BLOCK);
+        final int producers = 8;
+        final int perProducer = 5000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        sender.sendMessage(message(producer + ":" + i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        sender.close();
+
+        Set<String> unique = new HashSet<String>(recorder.shortMessages());
+        assertThat(unique.size(), is(producers * perProducer));
+        assertThat(recorder.sent.size(), is(producers * perProducer));
+        assertThat(sender.getDroppedCount(), is(0L));
+    }
+
+    @Test
+    public void testFailuresAreReported() {
+        final List<GelfSenderResult> failures = Collections.synchronizedList(new ArrayList<GelfSenderResult>());
+        GelfSender failing = new GelfSender() {
+            public GelfSenderResult sendMessage(GelfMessage message) {
+                return new GelfSenderResult(GelfSenderResult.ERROR_CODE, null);
+            }
+
+            public void close() {
+            }
+        };
+        GelfAsyncSender sender = new GelfAsyncSender(failing) {
+            @Override
+            protected void onSendFailure(GelfMessage message, GelfSenderResult result) {
+                failures.add(result);
+            }
+        };
+        sender.sendMessage(message("m"));
+        sender.close();
+
+        assertThat(failures.size(), is(1));
+        assertThat(sender.getFailedCount(), is(1L));
+    }
+
+    @Test
+    public void testVirtualThreadsWhereSupported() {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        GelfSender recording = new GelfSender() {
+            public GelfSenderResult sendMessage(GelfMessage message) {
+                threads.add(Thread.currentThread());
+                return GelfSenderResult.OK;
+            }
+
+            public void close() {
+            }
+        };
+        GelfAsyncSender sender = new GelfAsyncSender(recording, 64, 4, GelfWaitStrategy.PARK, GelfOverflowPolicy.BLOCK,
+                GelfAsyncSender.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, true);
+        for (int i = 0; i < 100; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        sender.close();
+
+        // platform threads before Java 21
+        assertThat(sender.isVirtualThreads(), is(GelfThreads.isVirtualSupported()));
+        assertThat(sender.getSentCount(), is(100L));
+        for (Thread thread : threads) {
+            assertTrue(thread.getName().startsWith("gelf-async-sender-"));
+            assertTrue(thread.isDaemon());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadsOnlyPark() {
+        GelfSender nothing = new RecordingSender(null);
+        try {
+            GelfAsyncSender sender = new GelfAsyncSender(nothing, 64, 1, GelfWaitStrategy.BUSY_SPIN, GelfOverflowPolicy.BLOCK,
+                    GelfAsyncSender.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS, true);
+            // platform threads spin as before
+            assertTrue(!GelfThreads.isVirtualSupported());
+            sender.close();
+        } catch (IllegalArgumentException e) {
+            assertTrue(GelfThreads.isVirtualSupported());
+        }
+    }
+
+    private static class RecordingSender implements GelfSender {
+        private final List<GelfMessage> sent = Collections.synchronizedList(new ArrayList<GelfMessage>());
+        private final CountDownLatch release;
+        private final CountDownLatch first = new CountDownLatch(1);
+        private volatile boolean closed;
+
+        RecordingSender(CountDownLatch release) {
+            this.release = release;
+        }
+
+        public GelfSenderResult sendMessage(GelfMessage message) {
+            sent.add(message);
+            first.countDown();
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return GelfSenderResult.OK;
+        }
+
+        public void close() {
+            closed = true;
+        }
+
+        void awaitFirst() throws InterruptedException {
+            assertTrue(first.await(5, TimeUnit.SECONDS));
+        }
+
+        List<String> shortMessages() {
+            List<String> messages = new ArrayList<String>();
+            synchronized (sent) {
+                for (GelfMessage message : sent) {
+                    messages.add(message.getShortMessage());
+                }
+            }
+            return messages;
+        }
+    }
+}
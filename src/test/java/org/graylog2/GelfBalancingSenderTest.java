@@ -0,0 +1,207 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class GelfBalancingSenderTest {
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, null, 1000L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    private static class RecordingSender implements GelfSender {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean failing;
+        volatile CountDownLatch gate;
+        volatile boolean closed;
+
+        public GelfSenderResult sendMessage(GelfMessage message) {
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                return new GelfSenderResult(GelfSenderResult.ERROR_CODE, null);
+            }
+            sent.add(message.getShortMessage());
+            return GelfSenderResult.OK;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testRoundRobinSpreadsMessages() {
+        RecordingSender a = new RecordingSender();
+        RecordingSender b = new RecordingSender();
+        RecordingSender c = new RecordingSender();
+        GelfBalancingSender sender = new GelfBalancingSender(Arrays.asList(a, b, c));
+        for (int i = 0; i < 9; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        assertThat(a.sent, is(Arrays.asList("m0", "m3", "m6")));
+        assertThat(b.sent, is(Arrays.asList("m1", "m4", "m7")));
+        assertThat(c.sent, is(Arrays.asList("m2", "m5", "m8")));
+
+        sender.close();
+        assertTrue(a.closed && b.closed && c.closed);
+    }
+
+    @Test
+    public void testFailingEndpointIsEjectedAndReinstated() throws Exception {
+        RecordingSender a = new RecordingSender();
+        RecordingSender b = new RecordingSender();
+        final boolean[] reachable = {false};
+        GelfBalancingSender sender = new GelfBalancingSender(Arrays.asList(a, b), GelfBalancingPolicy.ROUND_ROBIN, 2, 10) {
+            @Override
+            protected boolean probe(GelfSender endpoint) {
+                synchronized (reachable) {
+                    return reachable[0];
+                }
+            }
+        };
+        a.failing = true;
+        for (int i = 0; i < 6; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        // the messages of the failing endpoint went to the other one
+        assertThat(b.sent.size(), is(6));
+        assertThat(sender.getFailoverCount(), is(2L));
+        assertThat(sender.getEjectedCount(), is(1L));
+        assertThat(sender.getAvailableCount(), is(1));
+
+        a.failing = false;
+        Thread.sleep(50);
+        assertThat(sender.getAvailableCount(), is(1));
+        synchronized (reachable) {
+            reachable[0] = true;
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getAvailableCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sender.getAvailableCount(), is(2));
+        for (int i = 0; i < 4; i++) {
+            sender.sendMessage(message("n" + i));
+        }
+        assertThat(a.sent.size(), is(2));
+        sender.close();
+    }
+
+    @Test
+    public void testAllEndpointsEjected() {
+        RecordingSender a = new RecordingSender();
+        a.failing = true;
+        GelfBalancingSender sender = new GelfBalancingSender(Collections.singletonList(a), GelfBalancingPolicy.ROUND_ROBIN, 1, 60000);
+        assertThat(sender.sendMessage(message("m0")).getCode(), is(GelfSenderResult.ERROR_CODE));
+        GelfSenderResult result = sender.sendMessage(message("m1"));
+        assertThat(result.getCode(), is(GelfSenderResult.ERROR_CODE));
+        assertTrue(result.getException() != null);
+        sender.close();
+    }
+
+    @Test
+    public void testLeastOutstandingBytesAvoidsBusyEndpoint() throws Exception {
+        RecordingSender slow = new RecordingSender();
+        RecordingSender fast = new RecordingSender();
+        slow.gate = new CountDownLatch(1);
+        final GelfBalancingSender sender = new GelfBalancingSender(Arrays.asList(slow, fast),
+                GelfBalancingPolicy.LEAST_OUTSTANDING_BYTES, 3, 60000);
+
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                sender.sendMessage(message("stuck"));
+            }
+        };
+        blocked.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (blocked.getState() != Thread.State.WAITING && blocked.getState() != Thread.State.TIMED_WAITING
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        assertThat(fast.sent.size(), is(5));
+
+        slow.gate.countDown();
+        blocked.join(5000);
+        assertThat(slow.sent, is(Collections.singletonList("stuck")));
+        sender.close();
+    }
+
+    @Test
+    public void testStalledEndpointQueueDoesNotHoldUpTheOthers() throws Exception {
+        RecordingSender a = new RecordingSender();
+        RecordingSender b = new RecordingSender();
+        CountDownLatch stalled = new CountDownLatch(1);
+        a.gate = stalled;
+        GelfAsyncSender queueA = new GelfAsyncSender(a, 2, 1, GelfWaitStrategy.PARK, GelfOverflowPolicy.DROP_NEWEST);
+        GelfAsyncSender queueB = new GelfAsyncSender(b, 2, 1, GelfWaitStrategy.PARK, GelfOverflowPolicy.DROP_NEWEST);
+        GelfBalancingSender sender = new GelfBalancingSender(Arrays.<GelfSender>asList(queueA, queueB),
+                GelfBalancingPolicy.ROUND_ROBIN, 100, 60000);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+            // let b keep up, so only a's queue fills
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queueB.getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        assertTrue(System.currentTimeMillis() - start < 4000);
+        // a holds at most one message and queues two, the others went to b
+        assertThat(a.sent.size(), is(0));
+        assertTrue(b.sent.size() >= 17);
+        assertTrue(sender.getFailoverCount() > 0);
+
+        stalled.countDown();
+        sender.close();
+        assertThat(a.sent.size() + b.sent.size(), is(20));
+    }
+
+    @Test
+    public void testReportedFailureEjectsEndpoint() {
+        RecordingSender a = new RecordingSender();
+        RecordingSender b = new RecordingSender();
+        GelfBalancingSender sender = new GelfBalancingSender(Arrays.asList(a, b), GelfBalancingPolicy.ROUND_ROBIN, 3, 60000);
+        // a failure the queue of an endpoint reports after it accepted the message
+        sender.reportFailure(a);
+        for (int i = 0; i < 4; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        assertThat(a.sent.size(), is(0));
+        assertThat(b.sent.size(), is(4));
+        assertThat(sender.getEjectedCount(), is(1L));
+        sender.close();
+    }
+
+    @Test
+    public void testInvalidMessagesAreNotFailedOver() {
+        RecordingSender a = new RecordingSender();
+        GelfBalancingSender sender = new GelfBalancingSender(Collections.singletonList(a));
+        assertThat(sender.sendMessage(new GelfMessage()), is(GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN));
+        assertThat(sender.getAvailableCount(), is(1));
+        sender.close();
+    }
+}
@@ -0,0 +1,84 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class GelfChunkIdsTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 500000;
+
+    @Test
+    public void testIdsAreUniqueAcrossThreads() throws InterruptedException {
+        final long[][] ids = new long[THREADS][IDS_PER_THREAD];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final long[] own = ids[t];
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < own.length; i++) {
+                        own[i] = GelfChunkIds.next();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - began;
+
+        long[] all = new long[THREADS * IDS_PER_THREAD];
+        for (int t = 0; t < THREADS; t++) {
+            System.arraycopy(ids[t], 0, all, t * IDS_PER_THREAD, IDS_PER_THREAD);
+        }
+        Arrays.sort(all);
+        for (int i = 1; i < all.length; i++) {
+            if (all[i] == all[i - 1]) {
+                throw new AssertionError("Duplicate chunk id " + Long.toHexString(all[i]));
+            }
+        }
+        // generating is cheap enough to never hold up chunking, even on a loaded machine
+        assertTrue(all.length / (elapsedNanos / 1e9) > 1000000);
+    }
+
+    @Test
+    public void testMixSpreadsConsecutiveNumbers() {
+        // consecutive sequence numbers must spread over all bytes of the id
+        long first = GelfChunkIds.mix(0L);
+        long second = GelfChunkIds.mix(1L);
+        assertTrue(first != second);
+        assertTrue(Long.bitCount(first ^ second) > 16);
+    }
+
+    @Test
+    public void testChunkedMessagesGetDistinctIds() {
+        StringBuilder text = new StringBuilder();
+        java.util.Random random = new java.util.Random(42);
+        for (int i = 0; i < 4000; i++) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        GelfMessage message = new GelfMessage(text.toString(), text.toString(), 1L, "6");
+        message.setHost("localhost");
+
+        ByteBuffer first = message.toUDPChunks(GelfCompressor.DEFAULT)[0][0];
+        ByteBuffer second = message.toUDPChunks(GelfCompressor.DEFAULT)[0][0];
+        assertThat(first.remaining(), is(12));
+        assertThat(first.getLong(first.position() + 2) == second.getLong(second.position() + 2), is(false));
+    }
+}
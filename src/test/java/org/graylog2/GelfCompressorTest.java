@@ -0,0 +1,119 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class GelfCompressorTest {
+
+    private static byte[] payload() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("line ").append(i).append(" of a rather repetitive message\n");
+        }
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGzipRoundTrip() throws IOException {
+        byte[] data = payload();
+        GelfCompressor compressor = new GelfCompressor(GelfCompression.GZIP, Deflater.BEST_SPEED);
+        for (int i = 0; i < 3; i++) {
+            byte[] compressed = compressor.compress(data, 0, data.length);
+            assertThat(compressed.length < data.length, is(true));
+            assertArrayEquals(data, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+        }
+    }
+
+    @Test
+    public void testZlibRoundTrip() throws IOException {
+        byte[] data = payload();
+        byte[] compressed = new GelfCompressor(GelfCompression.ZLIB, Deflater.BEST_COMPRESSION).compress(data, 10, 100);
+        assertThat(compressed[0], is((byte) 0x78));
+
+        byte[] expected = new byte[100];
+        System.arraycopy(data, 10, expected, 0, 100);
+        assertArrayEquals(expected, readFully(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void testNoCompression() throws IOException {
+        byte[] data = payload();
+        assertArrayEquals(data, new GelfCompressor(GelfCompression.NONE, 0).compress(data, 0, data.length));
+    }
+
+    @Test
+    public void testEmptyPayload() throws IOException {
+        byte[] compressed = GelfCompressor.DEFAULT.compress(new byte[0], 0, 0);
+        assertThat(readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))).length, is(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new GelfCompressor(GelfCompression.GZIP, 10);
+    }
+
+    @Test
+    public void testParseCompression() {
+        assertThat(GelfCompression.fromString(null), is(GelfCompression.GZIP));
+        assertThat(GelfCompression.fromString(" zlib "), is(GelfCompression.ZLIB));
+        assertThat(GelfCompression.fromString("None"), is(GelfCompression.NONE));
+    }
+
+    @Test
+    public void testAdaptiveCompression() throws IOException {
+        GelfCompressor compressor = new GelfCompressor(GelfCompression.GZIP, Deflater.DEFAULT_COMPRESSION, true, 0.75);
+
+        GelfJsonEncoder small = new GelfJsonEncoder();
+        small.writeString("short line");
+        assertArrayEquals(small.toByteArray(), compressor.compressDatagramPayload(small, 1420));
+
+        byte[] data = payload();
+        GelfJsonEncoder large = new GelfJsonEncoder();
+        large.writeBytes(data);
+        byte[] compressed = compressor.compressDatagramPayload(large, 1420);
+        assertArrayEquals(data, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+        byte[] random = new byte[3000];
+        new Random(42).nextBytes(random);
+        GelfJsonEncoder incompressible = new GelfJsonEncoder();
+        incompressible.writeBytes(random);
+        assertArrayEquals(random, compressor.compressDatagramPayload(incompressible, 1420));
+
+        assertThat(compressor.getSmallUncompressedCount(), is(1L));
+        assertThat(compressor.getCompressedCount(), is(1L));
+        assertThat(compressor.getIneffectiveCompressionCount(), is(1L));
+    }
+
+    @Test
+    public void testSmallMessageIsSentPlainInAdaptiveMode() {
+        GelfMessage message = new GelfMessage("Short", "Long", 1L, "1");
+        GelfCompressor compressor = new GelfCompressor(GelfCompression.GZIP, Deflater.DEFAULT_COMPRESSION, true, 0.75);
+        ByteBuffer[] datagrams = message.toUDPBuffers(compressor);
+
+        assertThat(datagrams.length, is(1));
+        assertThat(datagrams[0].get(0), is((byte) '{'));
+    }
+}
@@ -0,0 +1,139 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfEndpointResolverTest {
+
+    private static InetAddress address(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    /**
+     * Answers lookups with the addresses last set; they are static as the first lookup runs
+     * in the constructor.
+     */
+    private static class FakeDns extends GelfEndpointResolver {
+        private static volatile InetAddress[] records;
+
+        static FakeDns create(long ttlMillis, InetAddress... initial) throws UnknownHostException {
+            records = initial;
+            return new FakeDns(ttlMillis);
+        }
+
+        private FakeDns(long ttlMillis) throws UnknownHostException {
+            super("graylog.example.com", 12201, ttlMillis);
+        }
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+            InetAddress[] current = records;
+            if (current == null) {
+                throw new UnknownHostException(host);
+            }
+            return current;
+        }
+    }
+
+    @Test
+    public void testAddressesAreTakenInTurn() throws Exception {
+        FakeDns resolver = FakeDns.create(0, address("10.0.0.1"), address("10.0.0.2"), address("10.0.0.1"));
+        assertThat(resolver.getAddresses().size(), is(2));
+        Set<InetSocketAddress> seen = new HashSet<InetSocketAddress>();
+        for (int i = 0; i < 4; i++) {
+            seen.add(resolver.next());
+        }
+        assertThat(seen, is((Set<InetSocketAddress>) new HashSet<InetSocketAddress>(Arrays.asList(
+                new InetSocketAddress(address("10.0.0.1"), 12201), new InetSocketAddress(address("10.0.0.2"), 12201)))));
+        resolver.close();
+    }
+
+    @Test
+    public void testRefreshReplacesChangedAddressesOnly() throws Exception {
+        FakeDns resolver = FakeDns.create(0, address("10.0.0.1"), address("10.0.0.2"));
+        InetSocketAddress[] first = resolver.current();
+
+        FakeDns.records = new InetAddress[]{address("10.0.0.2"), address("10.0.0.1")};
+        resolver.refresh();
+        assertTrue(resolver.current() == first);
+
+        FakeDns.records = null;
+        resolver.refresh();
+        assertTrue(resolver.current() == first);
+        assertThat(resolver.getFailureCount(), is(1L));
+
+        FakeDns.records = new InetAddress[]{address("10.0.0.3")};
+        resolver.refresh();
+        assertThat(resolver.getAddresses(), is(Arrays.asList(new InetSocketAddress(address("10.0.0.3"), 12201))));
+        assertThat(resolver.getRefreshCount(), is(2L));
+        resolver.close();
+    }
+
+    @Test
+    public void testAddressesAreRefreshedInTheBackground() throws Exception {
+        FakeDns resolver = FakeDns.create(10, address("10.0.0.1"));
+        FakeDns.records = new InetAddress[]{address("10.0.0.4")};
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!resolver.next().getAddress().equals(address("10.0.0.4")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(resolver.next().getAddress(), is(address("10.0.0.4")));
+        resolver.close();
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void testUnresolvableHostFailsRightAway() throws Exception {
+        FakeDns.create(0);
+    }
+
+    @Test
+    public void testUdpMessagesAreSpreadOverAllAddresses() throws Exception {
+        DatagramSocket first = new DatagramSocket(0, address("127.0.0.1"));
+        DatagramSocket second = new DatagramSocket(first.getLocalPort(), address("127.0.0.2"));
+        first.setSoTimeout(5000);
+        second.setSoTimeout(5000);
+        try {
+            FakeDns.records = new InetAddress[]{address("127.0.0.1")};
+            GelfEndpointResolver resolver = new GelfEndpointResolver("graylog.example.com", first.getLocalPort(), 0) {
+                @Override
+                protected InetAddress[] lookup(String host) {
+                    return FakeDns.records;
+                }
+            };
+            GelfUDPSender sender = new GelfUDPSender(resolver, new GelfCompressor(GelfCompression.NONE, 0), 0, 0);
+
+            // a node added to DNS gets its share once the resolver saw it
+            FakeDns.records = new InetAddress[]{address("127.0.0.1"), address("127.0.0.2")};
+            resolver.refresh();
+            for (int i = 0; i < 4; i++) {
+                GelfMessage message = new GelfMessage("m" + i, null, 1000L, "6");
+                message.setHost("localhost");
+                assertThat(sender.sendMessage(message), is(GelfSenderResult.OK));
+            }
+            for (DatagramSocket socket : new DatagramSocket[]{first, second}) {
+                for (int i = 0; i < 2; i++) {
+                    DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+                    socket.receive(packet);
+                    assertThat(new String(packet.getData(), 0, packet.getLength()), containsString("short_message"));
+                }
+            }
+            sender.close();
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
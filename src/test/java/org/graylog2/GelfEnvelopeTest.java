@@ -0,0 +1,63 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GelfEnvelopeTest {
+
+    private static Map<String, String> staticFields() {
+        Map<String, String> fields = new HashMap<String, String>();
+        fields.put("environment", "prod");
+        fields.put("id", "ignored");
+        fields.put("region", "eu/west \"1\"");
+        return fields;
+    }
+
+    @Test
+    public void testEnvelopeMatchesPlainMessage() {
+        GelfMessage plain = new GelfMessage("Short", "Long", 1234567L, "3");
+        plain.setHost("app-01");
+        plain.setFacility("billing");
+        plain.setAdditonalFields(new HashMap<String, Object>(staticFields()));
+        plain.addField("thread", "main");
+
+        GelfMessage enveloped = new GelfMessage("Short", "Long", 1234567L, "3");
+        enveloped.setEnvelope(new GelfEnvelope("app-01", "billing", staticFields()));
+        enveloped.addField("thread", "main");
+
+        assertThat(JSONValue.parse(enveloped.toJson()), is(JSONValue.parse(plain.toJson())));
+        assertThat(enveloped.getHost(), is("app-01"));
+        assertThat(enveloped.isValid(), is(true));
+        assertThat((String) enveloped.getAdditonalFields().get("environment"), is("prod"));
+    }
+
+    @Test
+    public void testDefaultFacility() {
+        GelfMessage enveloped = new GelfMessage("Short", "Long", 1L, "3");
+        enveloped.setEnvelope(new GelfEnvelope("app-01", null, null));
+
+        Map resultingMap = (Map) JSONValue.parse(enveloped.toJson());
+        assertThat((String) resultingMap.get("facility"), is("gelf-java"));
+        assertThat((String) resultingMap.get("version"), is("1.1"));
+    }
+
+    @Test
+    public void testChangingHostDetachesEnvelope() {
+        GelfMessage message = new GelfMessage("Short", "Long", 1L, "3");
+        message.setEnvelope(new GelfEnvelope("app-01", "billing", staticFields()));
+        message.setHost("app-02");
+
+        assertThat(message.getEnvelope(), is(nullValue()));
+        Map resultingMap = (Map) JSONValue.parse(message.toJson());
+        assertThat((String) resultingMap.get("host"), is("app-02"));
+        assertThat((String) resultingMap.get("facility"), is("billing"));
+        assertThat((String) resultingMap.get("_environment"), is("prod"));
+    }
+}
@@ -0,0 +1,244 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfFailoverSenderTest {
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, null, 1000L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    private static class RecordingSender implements GelfSender {
+        final List<GelfMessage> received = Collections.synchronizedList(new ArrayList<GelfMessage>());
+        volatile boolean failing;
+        volatile long delayMillis;
+        volatile boolean closed;
+
+        public GelfSenderResult sendMessage(GelfMessage message) {
+            received.add(message);
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return failing ? new GelfSenderResult(GelfSenderResult.ERROR_CODE, null) : GelfSenderResult.OK;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    public void testFailedMessageIsPassedOnEncodedOnce() {
+        RecordingSender tcp = new RecordingSender();
+        RecordingSender udp = new RecordingSender();
+        RecordingSender amqp = new RecordingSender();
+        tcp.failing = true;
+        udp.failing = true;
+        GelfFailoverSender sender = new GelfFailoverSender(Arrays.asList(tcp, udp, amqp));
+
+        GelfMessage message = message("m0");
+        assertThat(sender.sendMessage(message), is(GelfSenderResult.OK));
+        assertTrue(tcp.received.get(0) == message);
+        GelfMessage passedOn = udp.received.get(0);
+        assertTrue(passedOn.getEncoded() != null);
+        assertTrue(amqp.received.get(0) == passedOn);
+        assertThat(passedOn.toJson(), containsString("\"short_message\":\"m0\""));
+        assertThat(passedOn.getHost(), is("localhost"));
+        assertThat(sender.getFailoverCount(), is(2L));
+        assertThat(sender.getActiveIndex(), is(2));
+
+        // later messages go straight to the active sender
+        assertThat(sender.sendMessage(message("m1")), is(GelfSenderResult.OK));
+        assertThat(tcp.received.size(), is(1));
+        assertThat(amqp.received.size(), is(2));
+
+        sender.close();
+        assertTrue(tcp.closed && udp.closed && amqp.closed);
+    }
+
+    @Test
+    public void testPrimaryIsUsedAgainOnceHealthy() throws Exception {
+        RecordingSender primary = new RecordingSender();
+        RecordingSender fallback = new RecordingSender();
+        primary.failing = true;
+        GelfFailoverSender sender = new GelfFailoverSender(Arrays.asList(primary, fallback), 0, 20);
+
+        sender.sendMessage(message("m0"));
+        assertThat(sender.getActiveIndex(), is(1));
+        Thread.sleep(30);
+        // still failing, the fallback stays active and takes the message
+        assertThat(sender.sendMessage(message("m1")), is(GelfSenderResult.OK));
+        assertThat(primary.received.size(), is(2));
+        assertThat(sender.getActiveIndex(), is(1));
+        assertThat(sender.sendMessage(message("m2")), is(GelfSenderResult.OK));
+        assertThat(primary.received.size(), is(2));
+
+        primary.failing = false;
+        Thread.sleep(30);
+        assertThat(sender.sendMessage(message("m3")), is(GelfSenderResult.OK));
+        assertThat(sender.getActiveIndex(), is(0));
+        assertThat(fallback.received.size(), is(3));
+        sender.sendMessage(message("m4"));
+        assertThat(primary.received.size(), is(4));
+        sender.close();
+    }
+
+    @Test
+    public void testSlowSenderIsLeft() {
+        RecordingSender primary = new RecordingSender();
+        RecordingSender fallback = new RecordingSender();
+        primary.delayMillis = 30;
+        GelfFailoverSender sender = new GelfFailoverSender(Arrays.asList(primary, fallback), 10, 60000);
+
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        assertThat(sender.getSlowCount(), is(1L));
+        assertThat(sender.getActiveIndex(), is(1));
+        assertThat(fallback.received.size(), is(0));
+        sender.sendMessage(message("m1"));
+        assertThat(fallback.received.size(), is(1));
+        sender.close();
+    }
+
+    @Test
+    public void testMessagesHeldByTCPAreNotPassedOn() throws Exception {
+        FrameServer server = new FrameServer(0);
+        int port = server.socket.getLocalPort();
+        final Set<String> acceptedByTCP = Collections.synchronizedSet(new HashSet<String>());
+        GelfTCPSender tcp = new GelfTCPSender("127.0.0.1", port, GelfTCPSender.DEFAULT_BUFFER_SIZE, 0,
+                GelfSocketOptions.DEFAULT, 100, 20, 100) {
+            @Override
+            public GelfSenderResult sendMessage(GelfMessage message) {
+                GelfSenderResult result = super.sendMessage(message);
+                if (GelfSenderResult.OK.equals(result)) {
+                    acceptedByTCP.add(message.getShortMessage());
+                }
+                return result;
+            }
+        };
+        RecordingSender fallback = new RecordingSender();
+        GelfFailoverSender sender = new GelfFailoverSender(Arrays.asList(tcp, fallback), 0, 60000);
+        // connected in the background, passed over until then
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!tcp.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sender.sendMessage(message("first")), is(GelfSenderResult.OK));
+        server.awaitFrames(1);
+        server.close();
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+            Thread.sleep(20);
+        }
+        assertThat(tcp.isConnected(), is(false));
+        assertThat(sender.getActiveIndex(), is(1));
+        // every message went to exactly one of them
+        Set<String> passedOn = new HashSet<String>();
+        for (GelfMessage message : fallback.received) {
+            passedOn.add(message.getShortMessage());
+            assertTrue(!acceptedByTCP.contains(message.getShortMessage()));
+        }
+        assertThat(passedOn.size(), is(fallback.received.size()));
+        assertThat(passedOn.size() + acceptedByTCP.size(), is(21));
+
+        // what the TCP sender held arrives once it is connected again
+        int held = tcp.getBacklogSize();
+        server = new FrameServer(port);
+        server.awaitFrames(held);
+        for (String frame : server.frames) {
+            String text = frame.replaceAll(".*\"short_message\":\"([^\"]*)\".*", "$1");
+            assertTrue(acceptedByTCP.contains(text));
+        }
+        sender.close();
+        server.close();
+    }
+
+    /**
+     * Accepts one connection and collects the null terminated frames.
+     */
+    private static class FrameServer extends Thread {
+        final ServerSocket socket = new ServerSocket();
+        final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+        volatile Socket client;
+
+        FrameServer(int port) throws IOException {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress("127.0.0.1", port));
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                client = socket.accept();
+                InputStream in = client.getInputStream();
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b == 0) {
+                        frames.add(frame.toString("UTF-8"));
+                        frame.reset();
+                    } else {
+                        frame.write(b);
+                    }
+                }
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }
+
+        void awaitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (frames.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(frames.size(), is(count));
+        }
+
+        void close() throws IOException {
+            socket.close();
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testFailureOfLastSenderIsReturned() {
+        RecordingSender primary = new RecordingSender();
+        RecordingSender fallback = new RecordingSender();
+        primary.failing = true;
+        fallback.failing = true;
+        GelfFailoverSender sender = new GelfFailoverSender(Arrays.asList(primary, fallback));
+
+        assertThat(sender.sendMessage(message("m0")).getCode(), is(GelfSenderResult.ERROR_CODE));
+        assertThat(sender.getActiveIndex(), is(1));
+        assertThat(sender.sendMessage(new GelfMessage()), is(GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN));
+        sender.close();
+    }
+}
@@ -0,0 +1,362 @@
+package org.graylog2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfHTTPSenderTest {
+
+    private HTTPServer server;
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, null, 1000L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    /**
+     * A GELF HTTP input on one connection at a time, which reads requests as they come and
+     * answers them in order.
+     */
+    private static class HTTPServer extends Thread {
+        final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> encodings = Collections.synchronizedList(new ArrayList<String>());
+        final ServerSocket socket;
+        final AtomicInteger connections = new AtomicInteger();
+        // requests read before the first response is written
+        volatile int answerAfter = 1;
+        volatile int maxUnanswered;
+        volatile int status = 202;
+        volatile boolean dropFirstRequest;
+
+        HTTPServer() throws IOException {
+            this(0);
+        }
+
+        HTTPServer(int port) throws IOException {
+            socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(port));
+            setDaemon(true);
+            start();
+        }
+
+        String url() {
+            return "http://localhost:" + socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                connections.incrementAndGet();
+                try {
+                    serve(client);
+                } catch (IOException e) {
+                    // client gone
+                } finally {
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        // closed anyway
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket client) throws IOException {
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            OutputStream out = client.getOutputStream();
+            int unanswered = 0;
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                assertThat(requestLine, is("POST /gelf HTTP/1.1"));
+                int length = 0;
+                String encoding = "identity";
+                String line;
+                while ((line = readLine(in)).length() > 0) {
+                    if (line.startsWith("Content-Length: ")) {
+                        length = Integer.parseInt(line.substring(16));
+                    } else if (line.startsWith("Content-Encoding: ")) {
+                        encoding = line.substring(18);
+                    }
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                if (dropFirstRequest) {
+                    dropFirstRequest = false;
+                    return;
+                }
+                InputStream decoded = new ByteArrayInputStream(body);
+                if ("gzip".equals(encoding)) {
+                    decoded = new GZIPInputStream(decoded);
+                }
+                ByteArrayOutputStream text = new ByteArrayOutputStream();
+                int b;
+                while ((b = decoded.read()) >= 0) {
+                    text.write(b);
+                }
+                bodies.add(text.toString("UTF-8"));
+                encodings.add(encoding);
+
+                unanswered++;
+                maxUnanswered = Math.max(maxUnanswered, unanswered);
+                if (unanswered >= answerAfter) {
+                    for (; unanswered > 0; unanswered--) {
+                        out.write(("HTTP/1.1 " + status + " Status\r\nContent-Length: 2\r\n\r\nok").getBytes("US-ASCII"));
+                    }
+                    out.flush();
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+
+        void awaitBodies(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (bodies.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        void shutdown() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static void awaitUnanswered(GelfHTTPSender sender, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getUnansweredCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static void awaitConnected(GelfHTTPSender sender) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sender.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(sender.isConnected());
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testMessagesArePostedInCompressedBatches() throws Exception {
+        server = new HTTPServer();
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), GelfCompressor.DEFAULT, 65536, 60000, 4, 5000);
+        for (int i = 0; i < 10; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        sender.close();
+        assertThat(server.bodies.size(), is(1));
+        assertThat(server.encodings.get(0), is("gzip"));
+        String[] lines = server.bodies.get(0).split("\n");
+        assertThat(lines.length, is(10));
+        assertThat(lines[9], containsString("\"short_message\":\"m9\""));
+        assertThat(sender.getRequestCount(), is(1L));
+    }
+
+    @Test
+    public void testBatchIsPostedWhenFullOrDue() throws Exception {
+        server = new HTTPServer();
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), new GelfCompressor(GelfCompression.NONE, Deflater.DEFAULT_COMPRESSION),
+                300, 20, 4, 5000);
+        for (int i = 0; i < 6; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        server.awaitBodies(3);
+        for (String body : server.bodies) {
+            assertTrue(body.length() <= 300);
+        }
+        // the last one has lingered
+        assertThat(server.bodies.get(server.bodies.size() - 1), containsString("\"short_message\":\"m5\""));
+        assertThat(server.encodings.get(0), is("identity"));
+        sender.close();
+    }
+
+    @Test
+    public void testRequestsArePipelined() throws Exception {
+        server = new HTTPServer();
+        server.answerAfter = 3;
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), GelfCompressor.DEFAULT, 65536, 0, 3, 5000);
+        for (int i = 0; i < 6; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        server.awaitBodies(6);
+        awaitUnanswered(sender, 0);
+        assertThat(server.maxUnanswered, is(3));
+        assertThat(server.connections.get(), is(1));
+        sender.close();
+    }
+
+    @Test
+    public void testUnansweredRequestIsPostedAgain() throws Exception {
+        server = new HTTPServer();
+        server.dropFirstRequest = true;
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), GelfCompressor.DEFAULT, 65536, 0, 4, 5000);
+        awaitConnected(sender);
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getRetriedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // the lost request is posted again, before the new one
+        assertThat(sender.sendMessage(message("m1")), is(GelfSenderResult.OK));
+        server.awaitBodies(2);
+        assertThat(server.bodies.get(0), containsString("\"short_message\":\"m0\""));
+        assertThat(server.bodies.get(1), containsString("\"short_message\":\"m1\""));
+        assertThat(sender.getRetriedCount(), is(1L));
+        assertThat(server.connections.get(), is(2));
+        sender.close();
+    }
+
+    @Test
+    public void testRejectedBatchIsCountedAndReported() throws Exception {
+        server = new HTTPServer();
+        server.status = 400;
+        final List<GelfSenderResult> failures = Collections.synchronizedList(new ArrayList<GelfSenderResult>());
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), GelfCompressor.DEFAULT, 65536, 0, 4, 5000) {
+            @Override
+            protected void onSendFailure(int messages, GelfSenderResult result) {
+                assertThat(messages, is(1));
+                failures.add(result);
+            }
+        };
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        awaitUnanswered(sender, 0);
+        assertThat(sender.getRejectedCount(), is(1L));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (failures.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(failures.size(), is(1));
+        assertThat(failures.get(0).getException().getMessage(), containsString("400"));
+        // a later message is not failed for it, which would have it sent elsewhere as well
+        assertThat(sender.sendMessage(message("m1")), is(GelfSenderResult.OK));
+        sender.close();
+    }
+
+    @Test
+    public void testBatchesAreKeptWhileTheInputIsDown() throws Exception {
+        server = new HTTPServer();
+        int port = server.socket.getLocalPort();
+        GelfHTTPSender sender = new GelfHTTPSender(server.url(), GelfCompressor.DEFAULT, 65536, 0, 4, 5000);
+        awaitConnected(sender);
+        server.dropFirstRequest = true;
+        server.shutdown();
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.isReachable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sender.isReachable(), is(false));
+
+        // accepted without waiting for a connection
+        long start = System.currentTimeMillis();
+        assertThat(sender.sendMessage(message("m1")), is(GelfSenderResult.OK));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertThat(sender.getUnansweredCount(), is(2));
+
+        server = new HTTPServer(port);
+        server.awaitBodies(2);
+        assertThat(server.bodies.get(0), containsString("\"short_message\":\"m0\""));
+        assertThat(server.bodies.get(1), containsString("\"short_message\":\"m1\""));
+        awaitUnanswered(sender, 0);
+        assertThat(sender.isReachable(), is(true));
+        sender.close();
+    }
+
+    @Test
+    public void testInputDownAtStartupIsWaitedFor() throws Exception {
+        server = new HTTPServer();
+        int port = server.socket.getLocalPort();
+        String url = server.url();
+        server.shutdown();
+        server = null;
+
+        // created and accepting messages without a connection
+        GelfHTTPSender sender = new GelfHTTPSender(url, GelfCompressor.DEFAULT, 65536, 0, 4, 5000);
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.isReachable() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sender.isReachable(), is(false));
+
+        server = new HTTPServer(port);
+        server.awaitBodies(1);
+        assertThat(server.bodies.get(0), containsString("\"short_message\":\"m0\""));
+        awaitUnanswered(sender, 0);
+        sender.close();
+    }
+
+    @Test
+    public void testPostingToAnInputThatDoesNotReadTimesOut() throws Exception {
+        // connections are taken by the listen backlog, nothing is ever read from them
+        ServerSocket stalled = new ServerSocket(0);
+        try {
+            GelfHTTPSender sender = new GelfHTTPSender("http://localhost:" + stalled.getLocalPort(),
+                    new GelfCompressor(GelfCompression.NONE, Deflater.DEFAULT_COMPRESSION), 65536, 0, 4, 300);
+            awaitConnected(sender);
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 16 * 1024 * 1024) {
+                text.append("no one reads this ");
+            }
+
+            long start = System.currentTimeMillis();
+            assertThat(sender.sendMessage(message(text.toString())), is(GelfSenderResult.OK));
+            assertTrue(System.currentTimeMillis() - start < 3000);
+            // kept to be posted again
+            assertThat(sender.getUnansweredCount(), is(1));
+            sender.close();
+        } finally {
+            stalled.close();
+        }
+    }
+}
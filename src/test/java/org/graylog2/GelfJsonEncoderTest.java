@@ -0,0 +1,163 @@
+package org.graylog2;
+
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+public class GelfJsonEncoderTest {
+
+    @Test
+    public void testEscapingMatchesJsonSimple() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 0; c < 0x300; c++) {
+            sb.append(c);
+        }
+        sb.append("\u2000\u20ff\u2100 \ud83d\ude00 \ud800x\udc00 \uffff");
+        String value = sb.toString();
+
+        GelfJsonEncoder encoder = new GelfJsonEncoder(16);
+        encoder.writeString(value);
+
+        byte[] expected = ("\"" + JSONValue.escape(value) + "\"").getBytes("UTF-8");
+        assertArrayEquals(expected, encoder.toByteArray());
+    }
+
+    @Test
+    public void testValuesMatchJsonSimple() throws Exception {
+        Map<String, Object> nested = new LinkedHashMap<String, Object>();
+        nested.put("a", "b\"c");
+        nested.put("n", null);
+
+        Object[] values = new Object[]{null, "text", 1, -42L, Long.MIN_VALUE, (short) 7, (byte) -1, 6.0, 1.5f,
+                Double.NaN, Float.POSITIVE_INFINITY, true, false, Arrays.asList(1, "two", null), nested,
+                new java.math.BigDecimal("1.50")};
+        for (Object value : values) {
+            GelfJsonEncoder encoder = new GelfJsonEncoder();
+            encoder.writeValue(value);
+            assertThat(String.valueOf(value), encoder.toString(), is(JSONValue.toJSONString(value)));
+        }
+    }
+
+    @Test
+    public void testMessageMatchesJsonSimple() {
+        GelfMessage message = new GelfMessage("Short \u00e9", "Long\n\tmessage", 1234567890123L, "3", "42", "Foo.java");
+        message.setHost("localhost");
+        message.setFacility("facility/test");
+        message.addField("id", "ignored").addField("one", "two").addField("three", 4).addField("five", 6.0);
+
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("version", message.getVersion());
+        map.put("host", message.getHost());
+        map.put("short_message", message.getShortMessage());
+        map.put("full_message", message.getFullMessage());
+        map.put("timestamp", message.getTimestamp());
+        map.put("facility", message.getFacility());
+        map.put("level", 3L);
+        map.put("file", "Foo.java");
+        map.put("line", 42L);
+        map.put("_one", "two");
+        map.put("_three", 4);
+        map.put("_five", 6.0);
+
+        assertThat(JSONValue.parse(message.toJson()), is(JSONValue.parse(JSONValue.toJSONString(map))));
+    }
+
+    @Test
+    public void testInvalidLineAndLevel() {
+        GelfMessage message = new GelfMessage("Short", null, 1L, "WARNING", "n/a", null);
+        Map resultingMap = (Map) JSONValue.parse(message.toJson());
+
+        assertThat((Long) resultingMap.get("level"), is(6L));
+        assertThat((Long) resultingMap.get("line"), is(-1L));
+        assertThat(resultingMap.containsKey("file"), is(false));
+        assertThat(resultingMap.containsKey("full_message"), is(true));
+    }
+
+    @Test
+    public void testBufferIsReused() {
+        GelfMessage message = new GelfMessage("Short", "Long", 1L, "1");
+        GelfJsonEncoder encoder = new GelfJsonEncoder();
+        byte[] first = encoder.encode(message).toByteArray();
+        byte[] buffer = encoder.buffer();
+        byte[] second = encoder.reset().encode(message).toByteArray();
+
+        assertArrayEquals(first, second);
+        assertThat(encoder.buffer() == buffer, is(true));
+    }
+
+    @Test
+    public void testNestedAcquireReturnsSeparateEncoder() {
+        GelfJsonEncoder outer = GelfJsonEncoder.acquire();
+        try {
+            GelfJsonEncoder inner = GelfJsonEncoder.acquire();
+            assertThat(inner == outer, is(false));
+            inner.release();
+        } finally {
+            outer.release();
+        }
+        GelfJsonEncoder again = GelfJsonEncoder.acquire();
+        assertThat(again == outer, is(true));
+        again.release();
+    }
+
+    @Test
+    public void testTCPFrameIsNullDelimited() throws Exception {
+        GelfMessage message = new GelfMessage("Short", "Long", 1L, "1");
+        GelfJsonEncoder encoder = message.writeTCPFrame(new GelfJsonEncoder());
+
+        assertThat(encoder.buffer()[encoder.size() - 1], is((byte) 0));
+        assertThat(new String(encoder.buffer(), 0, encoder.size() - 1, "UTF-8"), is(message.toJson()));
+        assertArrayEquals(encoder.toByteArray(), message.toTCPBuffer().array());
+    }
+
+    @Test
+    public void testBufferIsSizedFromRecentMessages() {
+        StringBuilder trace = new StringBuilder();
+        while (trace.length() < 8000) {
+            trace.append("\tat org.graylog2.Foo.bar(Foo.java:42)\n");
+        }
+        GelfMessage message = new GelfMessage("Short", trace.toString(), 1L, "1");
+        GelfJsonEncoder encoder = new GelfJsonEncoder();
+        for (int i = 0; i < 50; i++) {
+            encoder.reset().encode(message);
+        }
+        int size = encoder.size();
+        encoder.reset();
+
+        assertThat(encoder.getEstimatedSize() > size * 9 / 10, is(true));
+        assertThat(encoder.buffer().length >= size, is(true));
+    }
+
+    @Test
+    public void testTimestampMatchesBigDecimal() {
+        long[] values = new long[]{0L, 1L, 10L, 999L, 1000L, 1500L, 1230L, 1234567890123L, 1234567890100L,
+                -1L, -1500L, -1000L, System.currentTimeMillis()};
+        for (long millis : values) {
+            String expected = new BigDecimal(millis).divide(new BigDecimal(1000)).toPlainString();
+            assertThat(GelfJsonEncoder.formatTimestamp(millis, -1), is(expected));
+        }
+    }
+
+    @Test
+    public void testTimestampWithMicroseconds() {
+        assertThat(GelfJsonEncoder.formatTimestamp(1234567890123L, 456), is("1234567890.123456"));
+        assertThat(GelfJsonEncoder.formatTimestamp(1234567890123L, 400), is("1234567890.1234"));
+        assertThat(GelfJsonEncoder.formatTimestamp(1234567890000L, 1), is("1234567890.000001"));
+        assertThat(GelfJsonEncoder.formatTimestamp(1000L, 0), is("1"));
+        assertThat(GelfJsonEncoder.formatTimestamp(-1L, 500), is("-0.0005"));
+
+        GelfMessage message = new GelfMessage("Short", "Long", 1500L, "1");
+        message.setMicrosOfMillisecond(250);
+        Map resultingMap = (Map) JSONValue.parse(message.toJson());
+        assertThat((String) resultingMap.get("timestamp"), is("1.50025"));
+    }
+}
@@ -0,0 +1,271 @@
+package org.graylog2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.json.simple.JSONValue;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class GelfMessageFactoryTest {
+
+    private static final GelfMessageProvider PROVIDER = provider(false, false);
+
+    private static GelfMessageProvider provider(final boolean extractStacktrace, final boolean microsecondPrecision) {
+        return new GelfMessageProvider() {
+            public boolean isExtractStacktrace() {
+                return extractStacktrace;
+            }
+
+            public GelfStackTraceRenderer getStackTraceRenderer() {
+                return null;
+            }
+
+            public String getOriginHost() {
+                return "app-01";
+            }
+
+            public String getFacility() {
+                return "billing";
+            }
+
+            public Map<String, String> getFields() {
+                return Collections.singletonMap("environment", "prod");
+            }
+
+            public boolean isAddExtendedInformation() {
+                return true;
+            }
+
+            public boolean isIncludeLocation() {
+                return false;
+            }
+
+            public boolean isMicrosecondPrecision() {
+                return microsecondPrecision;
+            }
+
+            public Object transformExtendedField(String field, Object object) {
+                return object != null ? object.toString() : null;
+            }
+        };
+    }
+
+    private static LogEvent event(Message message, Map<String, String> mdc) {
+        return new Log4jLogEvent("org.example.Billing", null, "fqcn", Level.WARN, message, null,
+                mdc, ThreadContext.EMPTY_STACK, "worker-1", null, 1234567890123L);
+    }
+
+    @Test
+    public void testReusableMessageMatchesPlainMessage() {
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-42");
+        LogEvent event = event(new SimpleMessage("Invoice \"7\" failed"), mdc);
+        GelfEnvelope envelope = GelfMessageFactory.makeEnvelope(PROVIDER);
+
+        String plain = GelfMessageFactory.makeMessage(null, event, PROVIDER, envelope).toJson();
+        ReusableGelfMessage reusable = new ReusableGelfMessage();
+        String first = GelfMessageFactory.makeReusableMessage(reusable, null, event, PROVIDER, envelope).toJson();
+        GelfMessageFactory.makeReusableMessage(reusable, null, event(new SimpleMessage("other"), null), PROVIDER, envelope);
+        String refilled = GelfMessageFactory.makeReusableMessage(reusable, null, event, PROVIDER, envelope).toJson();
+
+        assertThat(JSONValue.parse(first), is(JSONValue.parse(plain)));
+        assertThat(refilled, is(first));
+    }
+
+    @Test
+    public void testContextFieldOverridesStaticField() {
+        LogEvent event = event(new SimpleMessage("m"), Collections.singletonMap("environment", "staging"));
+        GelfEnvelope envelope = GelfMessageFactory.makeEnvelope(PROVIDER);
+
+        String plain = GelfMessageFactory.makeMessage(null, event, PROVIDER, envelope).toJson();
+        String reusable = GelfMessageFactory.makeReusableMessage(new ReusableGelfMessage(), null, event, PROVIDER, envelope).toJson();
+        for (String json : new String[]{plain, reusable}) {
+            assertThat(json.indexOf("\"_environment\""), is(json.lastIndexOf("\"_environment\"")));
+            assertThat((String) ((Map) JSONValue.parse(json)).get("_environment"), is("staging"));
+        }
+        // the envelope is intact for the next event
+        String next = GelfMessageFactory.makeMessage(null, event(new SimpleMessage("m"), null), PROVIDER, envelope).toJson();
+        assertThat((String) ((Map) JSONValue.parse(next)).get("_environment"), is("prod"));
+    }
+
+    @Test
+    public void testContextDataIsReadInPlace() {
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-42");
+        mdc.put("user", "alice");
+        GelfEnvelope envelope = GelfMessageFactory.makeEnvelope(PROVIDER);
+
+        String plain = GelfMessageFactory.makeMessage(null, event(new SimpleMessage("m"), mdc), PROVIDER, envelope).toJson();
+        ContextDataEvent event = new ContextDataEvent(new SimpleMessage("m"), mdc);
+        String reusable = GelfMessageFactory.makeReusableMessage(new ReusableGelfMessage(), null, event, PROVIDER, envelope).toJson();
+
+        assertThat(JSONValue.parse(reusable), is(JSONValue.parse(plain)));
+        assertThat(event.contextMapCopies, is(0));
+    }
+
+    @Test
+    public void testMessageFormattedIntoBuilder() {
+        LogEvent event = event(new BuilderMessage("formatted"), null);
+        GelfMessage message = GelfMessageFactory.makeReusableMessage(new ReusableGelfMessage(), null, event, PROVIDER, null);
+
+        Map resultingMap = (Map) JSONValue.parse(message.toJson());
+        assertThat((String) resultingMap.get("short_message"), is("formatted into builder"));
+        assertThat((String) resultingMap.get("_environment"), is("prod"));
+    }
+
+    @Test
+    public void testFailedFormattingLeavesNoPartialText() {
+        Message failing = new BuilderMessage("fallback") {
+            @Override
+            public void formatTo(StringBuilder buffer) {
+                buffer.append("partial");
+                throw new IllegalStateException("formatting failed");
+            }
+        };
+        LogEvent event = new Log4jLogEvent("org.example.Billing", null, "fqcn", Level.WARN, failing,
+                new IllegalArgumentException("thrown"), null, ThreadContext.EMPTY_STACK, "worker-1", null, 1234567890123L);
+        GelfMessage message = GelfMessageFactory.makeReusableMessage(new ReusableGelfMessage(), null, event, provider(true, false), null);
+
+        Map resultingMap = (Map) JSONValue.parse(message.toJson());
+        assertTrue(((String) resultingMap.get("full_message")).startsWith("fallback\n\rjava.lang.IllegalArgumentException: thrown"));
+    }
+
+    @Test
+    public void testSteadyStateDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("request", "r-42");
+        mdc.put("user", "alice");
+        ContextDataEvent event = new ContextDataEvent(new BuilderMessage("steady"), mdc);
+        // with the precision of the log4j version on the class path
+        GelfMessageProvider provider = provider(false, true);
+        GelfEnvelope envelope = GelfMessageFactory.makeEnvelope(provider);
+        ReusableGelfMessage message = new ReusableGelfMessage();
+
+        for (int i = 0; i < 20000; i++) {
+            encode(message, event, provider, envelope);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            encode(message, event, provider, envelope);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        assertThat(event.contextMapCopies, is(0));
+    }
+
+    private static void encode(ReusableGelfMessage message, LogEvent event, GelfMessageProvider provider,
+                               GelfEnvelope envelope) {
+        GelfMessageFactory.makeReusableMessage(message, null, event, provider, envelope);
+        GelfJsonEncoder encoder = GelfJsonEncoder.acquire();
+        try {
+            message.writeTCPFrame(encoder);
+        } finally {
+            encoder.release();
+        }
+    }
+
+    /**
+     * Mirrors a log4j 2.7+ event, whose getContextMap() copies the context data into a new map.
+     */
+    private static class ContextDataEvent extends Log4jLogEvent {
+        private final IndexedContextData contextData;
+        int contextMapCopies;
+
+        ContextDataEvent(Message message, Map<String, String> mdc) {
+            super("org.example.Billing", null, "fqcn", Level.WARN, message, null,
+                    mdc, ThreadContext.EMPTY_STACK, "worker-1", null, 1234567890123L);
+            contextData = new IndexedContextData(mdc);
+        }
+
+        public IndexedContextData getContextData() {
+            return contextData;
+        }
+
+        @Override
+        public Map<String, String> getContextMap() {
+            contextMapCopies++;
+            return new HashMap<String, String>(super.getContextMap());
+        }
+    }
+
+    /**
+     * Mirrors the index based accessors of log4j 2.8+ context data.
+     */
+    private static class IndexedContextData {
+        private final String[] keys;
+        private final Object[] values;
+
+        IndexedContextData(Map<String, String> mdc) {
+            keys = mdc.keySet().toArray(new String[mdc.size()]);
+            values = new Object[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = mdc.get(keys[i]);
+            }
+        }
+
+        public int size() {
+            return keys.length;
+        }
+
+        public String getKeyAt(int index) {
+            return keys[index];
+        }
+
+        public Object getValueAt(int index) {
+            return values[index];
+        }
+    }
+
+    /**
+     * Mirrors the formatTo method newer log4j versions add to their messages.
+     */
+    private static class BuilderMessage implements Message {
+        private final String text;
+
+        BuilderMessage(String text) {
+            this.text = text;
+        }
+
+        public void formatTo(StringBuilder buffer) {
+            buffer.append(text).append(" into builder");
+        }
+
+        public String getFormattedMessage() {
+            return text;
+        }
+
+        public String getFormat() {
+            return text;
+        }
+
+        public Object[] getParameters() {
+            return null;
+        }
+
+        public Throwable getThrowable() {
+            return null;
+        }
+    }
+}
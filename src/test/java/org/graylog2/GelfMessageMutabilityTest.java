@@ -1,6 +1,7 @@
 package org.graylog2;
 
 import com.google.common.collect.ImmutableMap;
+import org.json.simple.JSONValue;
 import org.junit.Test;
 
 import java.util.Collections;
@@ -56,4 +57,24 @@ public class GelfMessageMutabilityTest {
 
         assertThat("Modifying original map doesn't modify message map", message.getAdditonalFields().size(), is(4));
     }
+
+    @Test
+    public void testChangesToAdditionalFieldsAreSent() {
+        GelfMessage message = new GelfMessage("Short", "Long", new Date().getTime(), "1");
+        message.setEnvelope(new GelfEnvelope("app-01", "billing", Collections.singletonMap("environment", "prod")));
+        message.setReusableField("thread", "main");
+        message.setContextFields(Collections.singletonMap("request", "r-42"));
+
+        Map<String, Object> fields = message.getAdditonalFields();
+        assertThat(fields.size(), is(3));
+        fields.remove("environment");
+        fields.put("added", "yes");
+
+        Map json = (Map) JSONValue.parse(message.toJson());
+        assertThat(json.containsKey("_environment"), is(false));
+        assertThat((String) json.get("_added"), is("yes"));
+        assertThat((String) json.get("_thread"), is("main"));
+        assertThat((String) json.get("_request"), is("r-42"));
+        assertThat((String) json.get("host"), is("app-01"));
+    }
 }
@@ -52,12 +52,50 @@ public class GelfMessageTest {
         }
     }
 
+    @Test
+    public void testUDPChunksSliceCompressedPayload() throws Exception {
+        String longString = "01234567890123456789 ";
+        for (int i = 0; i < 15; i++) {
+            longString += longString;
+        }
+        GelfMessage message = new GelfMessage("Long", longString, new Date().getTime(), "1");
+        message.setHost("localhost");
+        ByteBuffer[][] chunks = message.toUDPChunks();
+        assertEquals(2, chunks.length);
+
+        byte[] payload = chunks[0][1].array();
+        for (int idx = 0; idx < chunks.length; idx++) {
+            ByteBuffer header = chunks[idx][0];
+            assertEquals(12, header.remaining());
+            assertEquals(0x1e, header.get(header.position()));
+            assertEquals(0x0f, header.get(header.position() + 1));
+            assertEquals(idx, header.get(header.position() + 10));
+            assertEquals(chunks.length, header.get(header.position() + 11));
+            assertSame("Slices share the compressed payload", payload, chunks[idx][1].array());
+        }
+        for (int i = 2; i < 10; i++) {
+            assertEquals(chunks[0][0].get(i), chunks[1][0].get(12 + i));
+        }
+    }
+
     private void skipHeader(ByteBuffer src) {
         for (int i = 0; i < 12; i++) {
             src.get();
         }
     }
 
+    @Test
+    public void testShortMessageFromPrefixOfMessageText() {
+        GelfMessage message = new GelfMessage(null, null, 1000L, "3");
+        message.setHost("localhost");
+        StringBuilder text = new StringBuilder("failed\n\rjava.lang.IllegalStateException");
+        message.setMessageText(text, "failed".length());
+
+        Map json = (Map) JSONValue.parse(message.toJson());
+        assertThat((String) json.get("short_message"), is("failed"));
+        assertThat((String) json.get("full_message"), is("failed\n\rjava.lang.IllegalStateException"));
+    }
+
     @Test
     public void testSimpleMessage() throws Exception {
         GelfMessage message = new GelfMessage("Short", "Long", new Date().getTime(), "1");
@@ -0,0 +1,209 @@
+package org.graylog2;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String text) {
+        return text.getBytes();
+    }
+
+    private static boolean append(GelfSpool spool, String text) throws IOException {
+        byte[] record = bytes(text);
+        return spool.append(record, 0, record.length);
+    }
+
+    private static String poll(GelfSpool spool) {
+        byte[] record = spool.peek();
+        if (record == null) {
+            return null;
+        }
+        spool.advance();
+        return new String(record);
+    }
+
+    @Test
+    public void testRecordsAreReadInOrderAcrossSegments() throws IOException {
+        GelfSpool spool = new GelfSpool(folder.getRoot(), 64, 64 * 8);
+        assertTrue(spool.isEmpty());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(append(spool, "record-" + i));
+        }
+        assertThat(spool.getSegmentCount() > 1, is(true));
+
+        for (int i = 0; i < 20; i++) {
+            assertThat(poll(spool), is("record-" + i));
+        }
+        assertThat(spool.peek() == null, is(true));
+        assertTrue(spool.isEmpty());
+        assertThat(spool.getSegmentCount(), is(1));
+        spool.close();
+    }
+
+    @Test
+    public void testSizeIsBounded() throws IOException {
+        GelfSpool spool = new GelfSpool(folder.getRoot(), 64, 128);
+        int appended = 0;
+        while (append(spool, "0123456789")) {
+            appended++;
+        }
+        // two segments of four 14 byte records
+        assertThat(appended, is(8));
+        assertThat(spool.append(new byte[100], 0, 100), is(false));
+
+        poll(spool);
+        assertThat(append(spool, "0123456789"), is(false));
+        for (int i = 0; i < 4; i++) {
+            poll(spool);
+        }
+        assertThat(append(spool, "0123456789"), is(true));
+        spool.close();
+    }
+
+    @Test
+    public void testReadingResumesAfterReopen() throws IOException {
+        GelfSpool spool = new GelfSpool(folder.getRoot(), 64, 64 * 8);
+        for (int i = 0; i < 10; i++) {
+            append(spool, "record-" + i);
+        }
+        for (int i = 0; i < 6; i++) {
+            poll(spool);
+        }
+        // not closed, as after a crash of the process
+
+        GelfSpool reopened = new GelfSpool(folder.getRoot(), 64, 64 * 8);
+        append(reopened, "record-10");
+        for (int i = 6; i <= 10; i++) {
+            assertThat(poll(reopened), is("record-" + i));
+        }
+        assertTrue(reopened.isEmpty());
+        reopened.close();
+    }
+
+    @Test
+    public void testRecordCutShortIsIgnored() throws IOException {
+        GelfSpool spool = new GelfSpool(folder.getRoot(), 64, 128);
+        append(spool, "complete");
+        spool.close();
+
+        // a record whose payload was written but not its length
+        RandomAccessFile file = new RandomAccessFile(new File(folder.getRoot(), "gelf-spool-00000000000000000000.seg"), "rw");
+        file.seek(16);
+        file.write(bytes("garbage"));
+        file.close();
+
+        GelfSpool reopened = new GelfSpool(folder.getRoot(), 64, 128);
+        append(reopened, "x");
+        assertThat(poll(reopened), is("complete"));
+        assertThat(poll(reopened), is("x"));
+        assertThat(reopened.peek() == null, is(true));
+        reopened.close();
+    }
+
+    @Test
+    public void testSpoolingSenderReplaysAfterRecovery() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        final boolean[] available = {false};
+        GelfSender flaky = new GelfSender() {
+            public GelfSenderResult sendMessage(GelfMessage message) {
+                synchronized (available) {
+                    if (!available[0]) {
+                        return new GelfSenderResult(GelfSenderResult.ERROR_CODE, null);
+                    }
+                }
+                sent.add(message.toJson());
+                return GelfSenderResult.OK;
+            }
+
+            public void close() {
+            }
+        };
+        GelfSpoolingSender sender = new GelfSpoolingSender(flaky, new GelfSpool(folder.getRoot()), 10);
+        for (int i = 0; i < 5; i++) {
+            GelfMessage message = new GelfMessage("m" + i, null, 1000L + i, "6");
+            message.setHost("localhost");
+            assertThat(sender.sendMessage(message), is(GelfSenderResult.OK));
+        }
+        assertThat(sender.getSpooledCount(), is(5L));
+        synchronized (available) {
+            available[0] = true;
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(sent.size(), is(5));
+        for (int i = 0; i < 5; i++) {
+            assertThat(sent.get(i), containsString("\"short_message\":\"m" + i + "\""));
+        }
+        assertThat(sender.getReplayedCount(), is(5L));
+        sender.close();
+    }
+
+    @Test
+    public void testSpooledRecordKeepsTimestamp() {
+        GelfMessage message = GelfSpoolingSender.readRecord(bytes("1234 {\"version\":\"1.1\"}"));
+        assertThat(message.getJavaTimestamp(), is(1234L));
+        assertThat(message.toJson(), is("{\"version\":\"1.1\"}"));
+        assertThat(GelfSpoolingSender.readRecord(bytes("corrupt")) == null, is(true));
+    }
+
+    @Test
+    public void testSpooledMessageKeepsHostFacilityAndMicros() throws Exception {
+        final List<GelfMessage> replayed = Collections.synchronizedList(new ArrayList<GelfMessage>());
+        final boolean[] available = {false};
+        GelfSender flaky = new GelfSender() {
+            public GelfSenderResult sendMessage(GelfMessage message) {
+                synchronized (available) {
+                    if (!available[0]) {
+                        return new GelfSenderResult(GelfSenderResult.ERROR_CODE, null);
+                    }
+                }
+                replayed.add(message);
+                return GelfSenderResult.OK;
+            }
+
+            public void close() {
+            }
+        };
+        GelfSpoolingSender sender = new GelfSpoolingSender(flaky, new GelfSpool(folder.getRoot()), 10);
+        GelfMessage message = new GelfMessage("m", null, 1000L, "6");
+        message.setHost("app \"01\"");
+        message.setFacility("billing");
+        message.setMicrosOfMillisecond(123);
+        assertThat(sender.sendMessage(message), is(GelfSenderResult.OK));
+        synchronized (available) {
+            available[0] = true;
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (replayed.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        sender.close();
+        assertThat(replayed.size(), is(1));
+        assertThat(replayed.get(0).getHost(), is("app \"01\""));
+        assertThat(replayed.get(0).getFacility(), is("billing"));
+        assertThat(replayed.get(0).getMicrosOfMillisecond(), is(123));
+        assertThat(replayed.get(0).getJavaTimestamp(), is(1000L));
+        assertThat(replayed.get(0).toJson(), is(message.toJson()));
+    }
+}
@@ -0,0 +1,96 @@
+package org.graylog2;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfStackTraceRendererTest {
+
+    private static StackTraceElement frame(String className, int line) {
+        return new StackTraceElement(className, "run", className.substring(className.lastIndexOf('.') + 1) + ".java", line);
+    }
+
+    private static Throwable chainedException() {
+        IllegalStateException cause = new IllegalStateException("cause");
+        cause.setStackTrace(new StackTraceElement[]{
+                frame("org.example.Dao", 12),
+                frame("org.springframework.Proxy", 3),
+                frame("org.example.Service", 40),
+                frame("org.example.Main", 7)
+        });
+        RuntimeException exception = new RuntimeException("top \"level\"", cause);
+        exception.setStackTrace(new StackTraceElement[]{
+                frame("org.example.Service", 41),
+                frame("org.springframework.Proxy", 3),
+                frame("org.springframework.Invoker", 9),
+                new StackTraceElement("sun.misc.Unsafe", "park", null, -2),
+                new StackTraceElement("org.example.Generated", "call", null, -1),
+                frame("org.example.Main", 7)
+        });
+        return exception;
+    }
+
+    private static String printStackTrace(Throwable throwable) {
+        StringWriter sw = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(sw));
+        return sw.toString().replace(System.getProperty("line.separator"), "\n");
+    }
+
+    @Test
+    public void testDefaultMatchesPrintStackTrace() {
+        Throwable exception = chainedException();
+
+        assertThat(GelfStackTraceRenderer.DEFAULT.render(exception), is(printStackTrace(exception)));
+    }
+
+    @Test
+    public void testAppendsToExistingText() {
+        StringBuilder builder = new StringBuilder("message\n\r");
+        new GelfStackTraceRenderer(0, null, 20).appendTo(chainedException(), builder);
+
+        assertThat(builder.toString(), is("message\n\rjava.lang.RuntimeExc\n\t... truncated"));
+    }
+
+    @Test
+    public void testMaxDepth() {
+        String rendered = new GelfStackTraceRenderer(2, null, 0).render(chainedException());
+
+        assertThat(rendered, containsString("\tat org.springframework.Proxy.run(Proxy.java:3)\n\t... 4 omitted\nCaused by:"));
+        assertThat(rendered, containsString("\tat org.springframework.Proxy.run(Proxy.java:3)\n\t... 1 omitted\n\t... 1 more\n"));
+    }
+
+    @Test
+    public void testFilteredPackages() {
+        String[] packages = GelfStackTraceRenderer.parsePackages(" org.springframework., ,sun.");
+        String rendered = new GelfStackTraceRenderer(0, packages, 0).render(chainedException());
+
+        assertThat(packages.length, is(2));
+        assertThat(rendered, not(containsString("springframework")));
+        assertThat(rendered, containsString("\tat org.example.Service.run(Service.java:41)\n\t... 3 filtered\n\tat org.example.Generated.call(Unknown Source)\n"));
+        assertThat(rendered, containsString("\tat org.example.Dao.run(Dao.java:12)\n\t... 1 filtered\n\tat org.example.Service.run(Service.java:40)\n\t... 1 more\n"));
+    }
+
+    @Test
+    public void testMaxLength() {
+        String rendered = new GelfStackTraceRenderer(0, null, 100).render(chainedException());
+
+        assertThat(rendered.length(), is(100 + "\n\t... truncated".length()));
+        assertTrue(rendered.endsWith("\n\t... truncated"));
+    }
+
+    @Test
+    public void testCircularCause() {
+        IllegalStateException first = new IllegalStateException("first");
+        IllegalArgumentException second = new IllegalArgumentException("second", first);
+        first.initCause(second);
+
+        assertThat(GelfStackTraceRenderer.DEFAULT.render(first), containsString("\t[CIRCULAR REFERENCE: java.lang.IllegalStateException: first]\n"));
+    }
+}
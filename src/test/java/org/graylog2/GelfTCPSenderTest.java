@@ -0,0 +1,285 @@
+package org.graylog2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfTCPSenderTest {
+
+    private FrameReader reader;
+
+    @Before
+    public void setUp() throws IOException {
+        reader = new FrameReader();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, text, 1L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    @Test
+    public void testFramesAreWrittenImmediately() throws Exception {
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", reader.getPort());
+        for (int i = 0; i < 3; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+
+        reader.await(3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(reader.frames.get(i), containsString("\"short_message\":\"m" + i + "\""));
+        }
+        sender.close();
+    }
+
+    @Test
+    public void testLingerCoalescesFrames() throws Exception {
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", reader.getPort(), GelfTCPSender.DEFAULT_BUFFER_SIZE, 200,
+                new GelfSocketOptions(0, true, true));
+        awaitConnect(sender);
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            sender.sendMessage(message("m" + i));
+        }
+
+        reader.await(10);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertThat(reader.reads <= 2, is(true));
+        sender.close();
+    }
+
+    @Test
+    public void testFrameLargerThanBuffer() throws Exception {
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", reader.getPort(), 64, 10000, GelfSocketOptions.DEFAULT);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append('x');
+        }
+        sender.sendMessage(message("small"));
+        sender.sendMessage(message(text.toString()));
+
+        reader.await(2);
+        assertThat(reader.frames.get(0), containsString("\"short_message\":\"small\""));
+        assertThat(reader.frames.get(1), containsString(text.toString()));
+        sender.close();
+    }
+
+    @Test
+    public void testCloseFlushesPendingFrames() throws Exception {
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", reader.getPort(), GelfTCPSender.DEFAULT_BUFFER_SIZE, 60000,
+                GelfSocketOptions.DEFAULT);
+        sender.sendMessage(message("pending"));
+        sender.close();
+
+        reader.await(1);
+        assertThat(reader.frames.get(0), containsString("\"short_message\":\"pending\""));
+        assertThat(sender.sendMessage(message("late")), is(GelfSenderResult.MESSAGE_NOT_VALID_OR_SHUTTING_DOWN));
+    }
+
+    @Test
+    public void testBacklogIsReplayedInOrderAfterReconnect() throws Exception {
+        int port = reader.getPort();
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", port, GelfTCPSender.DEFAULT_BUFFER_SIZE, 0,
+                GelfSocketOptions.DEFAULT, 100, 20, 100);
+        awaitConnect(sender);
+        reader.await(0);
+        reader.close();
+        awaitDisconnect(sender);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            assertThat(sender.sendMessage(message("b" + i)), is(GelfSenderResult.OK));
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        int held = sender.getBacklogSize();
+
+        reader = new FrameReader(port);
+        reader.await(held);
+        for (int i = 0; i < 10; i++) {
+            assertThat(reader.frames.get(held - 10 + i), containsString("\"short_message\":\"b" + i + "\""));
+        }
+        assertThat(sender.getBacklogSize(), is(0));
+        assertThat(sender.sendMessage(message("after")), is(GelfSenderResult.OK));
+        reader.await(held + 1);
+        sender.close();
+    }
+
+    @Test
+    public void testInputDownAtStartupIsWaitedFor() throws Exception {
+        int port = reader.getPort();
+        reader.close();
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", port, GelfTCPSender.DEFAULT_BUFFER_SIZE, 0,
+                GelfSocketOptions.DEFAULT, 100, 20, 100);
+        assertThat(sender.isConnected(), is(false));
+        for (int i = 0; i < 3; i++) {
+            assertThat(sender.sendMessage(message("s" + i)), is(GelfSenderResult.OK));
+        }
+
+        reader = new FrameReader(port);
+        reader.await(3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(reader.frames.get(i), containsString("\"short_message\":\"s" + i + "\""));
+        }
+        sender.close();
+    }
+
+    @Test
+    public void testFullBacklogDropsMessages() throws Exception {
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", reader.getPort(), GelfTCPSender.DEFAULT_BUFFER_SIZE, 0,
+                GelfSocketOptions.DEFAULT, 2, 60000, 60000);
+        awaitConnect(sender);
+        reader.await(0);
+        reader.await(0);
+        reader.close();
+        awaitDisconnect(sender);
+
+        // the frame that hit the broken connection is already held
+        assertThat(sender.sendMessage(message("kept")), is(GelfSenderResult.OK));
+        assertThat(sender.sendMessage(message("dropped")), is(GelfSenderResult.MESSAGE_DROPPED));
+        assertThat(sender.getDroppedCount(), is(1L));
+        assertThat(sender.getBacklogSize(), is(2));
+        sender.close();
+    }
+
+    @Test
+    public void testLingeringFramesSurviveLostConnection() throws Exception {
+        int port = reader.getPort();
+        GelfTCPSender sender = new GelfTCPSender("127.0.0.1", port, GelfTCPSender.DEFAULT_BUFFER_SIZE, 100,
+                GelfSocketOptions.DEFAULT, 100, 20, 100);
+        awaitConnect(sender);
+        reader.await(0);
+        reader.close();
+        // the first write to the closed peer still succeeds and only makes it reset the connection
+        sender.sendMessage(message("probe"));
+        Thread.sleep(300);
+        assertThat(sender.isConnected(), is(true));
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(sender.sendMessage(message("l" + i)), is(GelfSenderResult.OK));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(sender.isConnected(), is(false));
+
+        reader = new FrameReader(port);
+        reader.await(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(reader.frames.get(i), containsString("\"short_message\":\"l" + i + "\""));
+        }
+        assertThat(sender.getDroppedCount(), is(0L));
+        sender.close();
+    }
+
+    private static void awaitConnect(GelfTCPSender sender) throws InterruptedException {
+        // the first connection is made in the background
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sender.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(sender.isConnected(), is(true));
+    }
+
+    private static void awaitDisconnect(GelfTCPSender sender) throws InterruptedException {
+        // the first writes after the peer went away may still succeed, the one that fails is held
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.isConnected() && System.currentTimeMillis() < deadline) {
+            assertThat(sender.sendMessage(message("probe")), is(GelfSenderResult.OK));
+            Thread.sleep(20);
+        }
+        assertThat(sender.isConnected(), is(false));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeSendBufferSize() {
+        new GelfSocketOptions(-1, false, false);
+    }
+
+    /**
+     * Accepts one connection and splits what it reads at the null bytes.
+     */
+    private static class FrameReader implements Runnable {
+        private final ServerSocket server = new ServerSocket();
+        private final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+        private final Thread thread = new Thread(this, "gelf-tcp-test-reader");
+        private volatile Socket socket;
+        private volatile int reads;
+
+        FrameReader() throws IOException {
+            this(0);
+        }
+
+        FrameReader(int port) throws IOException {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress("127.0.0.1", port));
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return server.getLocalPort();
+        }
+
+        public void run() {
+            try {
+                socket = server.accept();
+                InputStream in = socket.getInputStream();
+                ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                byte[] chunk = new byte[65536];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    reads++;
+                    for (int i = 0; i < read; i++) {
+                        if (chunk[i] == 0) {
+                            frames.add(frame.toString("UTF-8"));
+                            frame.reset();
+                        } else {
+                            frame.write(chunk[i]);
+                        }
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                // closed by the test
+            }
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((socket == null || frames.size() < count) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(frames.size(), is(count));
+        }
+
+        void close() throws IOException {
+            server.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.graylog2;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.matchers.JUnitMatchers.containsString;
+
+public class GelfTLSChannelTest {
+
+    private TLSServer server;
+    private final List<IOException> connectFailures = Collections.synchronizedList(new ArrayList<IOException>());
+
+    private static String resource(String name) throws Exception {
+        return new File(GelfTLSChannelTest.class.getResource(name).toURI()).getPath();
+    }
+
+    private static GelfTLSOptions trusting(boolean verifyHostname) throws Exception {
+        return GelfTLSOptions.fromKeyStores(resource("gelf-tls-trust.p12"), "changeit", null, null, verifyHostname);
+    }
+
+    private static GelfMessage message(String text) {
+        GelfMessage message = new GelfMessage(text, null, 1000L, "6");
+        message.setHost("localhost");
+        return message;
+    }
+
+    /**
+     * Accepts one connection after the other and collects the null terminated frames.
+     */
+    private static class TLSServer extends Thread {
+        final List<String> frames = Collections.synchronizedList(new ArrayList<String>());
+        final SSLServerSocket socket;
+
+        TLSServer(String... protocols) throws Exception {
+            KeyStore keys = KeyStore.getInstance("PKCS12");
+            InputStream in = new FileInputStream(resource("gelf-tls-server.p12"));
+            try {
+                keys.load(in, "changeit".toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keys, "changeit".toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            socket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+            if (protocols.length > 0) {
+                socket.setEnabledProtocols(protocols);
+            }
+            setDaemon(true);
+            start();
+        }
+
+        int port() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                Socket client;
+                try {
+                    client = socket.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                try {
+                    ((SSLSocket) client).startHandshake();
+                    InputStream in = client.getInputStream();
+                    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = in.read()) >= 0) {
+                        if (b == 0) {
+                            frames.add(frame.toString("UTF-8"));
+                            frame.reset();
+                        } else {
+                            frame.write(b);
+                        }
+                    }
+                } catch (IOException e) {
+                    // rejected handshake or connection closed
+                } finally {
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        // closed anyway
+                    }
+                }
+            }
+        }
+
+        void awaitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (frames.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+
+        void shutdown() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A sender without a backlog, once it connected or failed to.
+     */
+    private GelfTCPSender sender(String host, long lingerMillis, GelfTLSOptions tls) throws Exception {
+        connectFailures.clear();
+        GelfTCPSender sender = new GelfTCPSender(new GelfEndpointResolver(host, server.port(), 0), GelfTCPSender.DEFAULT_BUFFER_SIZE,
+                lingerMillis, GelfSocketOptions.DEFAULT, 0, 500, 500, tls) {
+            @Override
+            protected void onConnectFailure(InetSocketAddress address, IOException e) {
+                connectFailures.add(e);
+            }
+        };
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sender.isConnected() && connectFailures.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        return sender;
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void testFramesAreSentEncrypted() throws Exception {
+        server = new TLSServer();
+        GelfTCPSender sender = sender("localhost", 0, trusting(true));
+        for (int i = 0; i < 3; i++) {
+            assertThat(sender.sendMessage(message("m" + i)), is(GelfSenderResult.OK));
+        }
+        server.awaitFrames(3);
+        assertThat(server.frames.size(), is(3));
+        assertThat(server.frames.get(2), containsString("\"short_message\":\"m2\""));
+        sender.close();
+    }
+
+    @Test
+    public void testLingeringFramesAreEncryptedTogether() throws Exception {
+        server = new TLSServer();
+        GelfTCPSender sender = sender("localhost", 60000, trusting(true));
+        char[] padding = new char[500];
+        Arrays.fill(padding, 'x');
+        // more than one TLS record holds, flushed when the buffer fills up and on close
+        for (int i = 0; i < 200; i++) {
+            assertThat(sender.sendMessage(message(i + new String(padding))), is(GelfSenderResult.OK));
+        }
+        sender.close();
+        server.awaitFrames(200);
+        assertThat(server.frames.size(), is(200));
+        assertThat(server.frames.get(199), containsString("\"short_message\":\"199x"));
+    }
+
+    @Test
+    public void testSessionIsResumed() throws Exception {
+        server = new TLSServer("TLSv1.2");
+        GelfTLSOptions tls = trusting(true);
+        byte[][] ids = new byte[2][];
+        for (int i = 0; i < 2; i++) {
+            SocketChannel socket = SocketChannel.open(new InetSocketAddress("localhost", server.port()));
+            GelfTLSChannel channel = new GelfTLSChannel(socket, tls.createEngine("localhost", server.port()), 5000);
+            channel.write(ByteBuffer.wrap("{}\0".getBytes("UTF-8")));
+            ids[i] = channel.getSession().getId();
+            channel.close();
+        }
+        server.awaitFrames(2);
+        assertTrue(ids[0].length > 0);
+        assertTrue(Arrays.equals(ids[0], ids[1]));
+    }
+
+    @Test
+    public void testUntrustedServerIsRejected() throws Exception {
+        server = new TLSServer();
+        GelfTCPSender sender = sender("localhost", 0, GelfTLSOptions.fromKeyStores(null, null, null, null, true));
+        assertTrue("connected to a server with a self-signed certificate", !sender.isConnected());
+        assertTrue(connectFailures.get(0) instanceof SSLException);
+        sender.close();
+    }
+
+    @Test
+    public void testHostnameIsVerified() throws Exception {
+        server = new TLSServer();
+        GelfTCPSender rejecting = sender("127.0.0.1", 0, trusting(true));
+        assertTrue("accepted a certificate issued for another host", !rejecting.isConnected());
+        assertTrue(connectFailures.get(0) instanceof SSLException);
+        rejecting.close();
+
+        GelfTCPSender sender = sender("127.0.0.1", 0, trusting(false));
+        assertThat(sender.sendMessage(message("m0")), is(GelfSenderResult.OK));
+        server.awaitFrames(1);
+        assertThat(server.frames.size(), is(1));
+        sender.close();
+    }
+}
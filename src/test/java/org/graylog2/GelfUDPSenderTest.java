@@ -4,7 +4,13 @@ import junit.framework.TestCase;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -34,4 +40,159 @@ public class GelfUDPSenderTest extends TestCase {
         assertThat(gelfUDPSender.getChannel().isOpen(), is(true));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testChunksAreSentAsSingleDatagrams() throws IOException {
+        DatagramSocket server = new DatagramSocket(0);
+        server.setSoTimeout(5000);
+        try {
+            GelfUDPSender gelfUDPSender = new GelfUDPSender("localhost", server.getLocalPort(),
+                    new GelfCompressor(GelfCompression.NONE, 0));
+
+            StringBuilder longString = new StringBuilder();
+            while (longString.length() < 3000) {
+                longString.append("0123456789");
+            }
+            GelfMessage message = new GelfMessage("Short", longString.toString(), new Date().getTime(), "1");
+            message.setHost("localhost");
+
+            assertThat(gelfUDPSender.sendMessage(message), is(GelfSenderResult.OK));
+
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            server.receive(packet);
+            assertThat(packet.getLength(), is(12 + 1420));
+            assertThat(packet.getData()[0], is((byte) 0x1e));
+            assertThat(packet.getData()[12], is((byte) '{'));
+            gelfUDPSender.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    private static GelfMessage chunkedMessage() {
+        return chunkedMessage(4000);
+    }
+
+    private static GelfMessage chunkedMessage(int length) {
+        StringBuilder longString = new StringBuilder();
+        while (longString.length() < length) {
+            longString.append("0123456789");
+        }
+        GelfMessage message = new GelfMessage("Short", longString.toString(), new Date().getTime(), "1");
+        message.setHost("localhost");
+        return message;
+    }
+
+    /**
+     * Sends the first datagrams it is given, then reports a full send buffer for a number
+     * of writes.
+     */
+    private static class FullBufferSender extends GelfUDPSender {
+        private int room;
+        private int fullWrites;
+        private int sent;
+
+        FullBufferSender(long sendTimeoutMillis, int room, int fullWrites) throws IOException {
+            super("localhost", 1234, new GelfCompressor(GelfCompression.NONE, 0), 0, sendTimeoutMillis);
+            this.room = room;
+            this.fullWrites = fullWrites;
+        }
+
+        @Override
+        long writeDatagram(DatagramChannel channel, ByteBuffer[] datagram) {
+            if (room > 0) {
+                room--;
+            } else if (fullWrites > 0) {
+                fullWrites--;
+                return 0;
+            }
+            sent++;
+            return 1;
+        }
+    }
+
+    @Test
+    public void testMessagesAreDroppedWhenTheBufferIsFull() throws IOException {
+        FullBufferSender sender = new FullBufferSender(0, 0, Integer.MAX_VALUE);
+        assertThat(sender.sendMessage(chunkedMessage()), is(GelfSenderResult.MESSAGE_DROPPED));
+        assertThat(sender.getDroppedCount(), is(1L));
+        assertThat(sender.getPartialCount(), is(0L));
+        assertThat(sender.sent, is(0));
+        sender.close();
+    }
+
+    @Test
+    public void testMessagesCutShortAreCountedAsPartial() throws IOException {
+        FullBufferSender sender = new FullBufferSender(5, 1, Integer.MAX_VALUE);
+        long started = System.nanoTime();
+        assertThat(sender.sendMessage(chunkedMessage()), is(GelfSenderResult.MESSAGE_DROPPED));
+        assertThat(System.nanoTime() - started >= 5000000L, is(true));
+        assertThat(sender.getDroppedCount(), is(0L));
+        assertThat(sender.getPartialCount(), is(1L));
+        assertThat(sender.sent, is(1));
+        sender.close();
+    }
+
+    @Test
+    public void testSendWaitsForRoomInTheBuffer() throws IOException {
+        FullBufferSender sender = new FullBufferSender(1000, 1, 5);
+        assertThat(sender.sendMessage(chunkedMessage()), is(GelfSenderResult.OK));
+        assertThat(sender.sent, is(3));
+        assertThat(sender.getDroppedCount() + sender.getPartialCount(), is(0L));
+        sender.close();
+    }
+
+    @Test
+    public void testMessageLargerThanTheSendBufferIsNotStarted() throws IOException {
+        final int[] written = {0};
+        GelfUDPSender sender = new GelfUDPSender("localhost", 1234, new GelfCompressor(GelfCompression.NONE, 0), 4096, 0) {
+            @Override
+            long writeDatagram(DatagramChannel channel, ByteBuffer[] datagram) {
+                written[0]++;
+                return 1;
+            }
+        };
+        int capacity = sender.getChannel().socket().getSendBufferSize();
+        assertThat(sender.sendMessage(chunkedMessage(capacity + 1000)), is(GelfSenderResult.MESSAGE_DROPPED));
+        assertThat(written[0], is(0));
+        assertThat(sender.getDroppedCount(), is(1L));
+        assertThat(sender.getPartialCount(), is(0L));
+        sender.close();
+    }
+
+    @Test
+    public void testRetryContinuesAfterTheChunksSent() throws IOException {
+        final List<String> chunks = new ArrayList<String>();
+        final boolean[] failed = {false};
+        GelfUDPSender sender = new GelfUDPSender("localhost", 1234, new GelfCompressor(GelfCompression.NONE, 0), 0, 0) {
+            @Override
+            long writeDatagram(DatagramChannel channel, ByteBuffer[] datagram) throws IOException {
+                if (chunks.size() == 1 && !failed[0]) {
+                    failed[0] = true;
+                    throw new IOException("transient");
+                }
+                // the chunk number, and the bytes the write would consume
+                int length = datagram[0].remaining() + datagram[1].remaining();
+                chunks.add(datagram[0].get(datagram[0].position() + 10) + ":" + length);
+                for (ByteBuffer buffer : datagram) {
+                    buffer.position(buffer.limit());
+                }
+                return length;
+            }
+        };
+        assertThat(sender.sendMessage(chunkedMessage()), is(GelfSenderResult.OK));
+        assertThat(chunks.size(), is(3));
+        for (int i = 0; i < 3; i++) {
+            assertThat(chunks.get(i).startsWith(i + ":"), is(true));
+            assertThat(Integer.parseInt(chunks.get(i).substring(2)) > 12, is(true));
+        }
+        sender.close();
+    }
+
+    @Test
+    public void testSendBufferSizeIsApplied() throws IOException {
+        GelfUDPSender sender = new GelfUDPSender("localhost", 1234, GelfCompressor.DEFAULT, 65536, 0);
+        assertThat(sender.getChannel().socket().getSendBufferSize() >= 65536, is(true));
+        sender.close();
+    }
+
+}
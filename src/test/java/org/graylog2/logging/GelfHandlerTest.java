@@ -1,6 +1,10 @@
 package org.graylog2.logging;
 
+import org.graylog2.GelfMessage;
+import org.graylog2.GelfSenderResult;
+import org.graylog2.GelfUDPSender;
 import org.hamcrest.CoreMatchers;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -8,9 +12,20 @@ import org.junit.rules.ExpectedException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.ErrorManager;
 import java.util.logging.Level;
 import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -58,6 +73,7 @@ public class GelfHandlerTest
 
         Pattern regex = Pattern.compile("^.*java\\.lang\\.RuntimeException: test.*at org\\.graylog2\\.logging\\.GelfHandlerTest\\.handleStackTraces.*$", Pattern.MULTILINE | Pattern.DOTALL);
         assertTrue(regex.matcher(gelfSender.getLastMessage().getFullMessage()).matches());
+        assertEquals("test stacktrace:", gelfSender.getLastMessage().getShortMessage());
     }
 
     @Test
@@ -100,6 +116,102 @@ public class GelfHandlerTest
         assertEquals( gelfSender.getLastMessage().getFullMessage(), "" );
     }
 
+    @Test
+    public void testConcurrentPublish() throws InterruptedException {
+        final AtomicInteger created = new AtomicInteger();
+        final Set<String> received = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final GelfHandler gelfHandler = new GelfHandler() {
+            @Override
+            protected GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort) {
+                created.incrementAndGet();
+                return new GelfUDPSender() {
+                    @Override
+                    public GelfSenderResult sendMessage(GelfMessage message) {
+                        received.add(message.getShortMessage());
+                        return GelfSenderResult.OK;
+                    }
+                };
+            }
+        };
+        gelfHandler.setGraylogHost("localhost");
+
+        final int threadCount = 16;
+        final int perThread = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        gelfHandler.publish(new LogRecord(Level.INFO, "record " + thread + "/" + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, created.get());
+        assertEquals(threadCount * perThread, received.size());
+    }
+
+    @Test
+    public void testFieldsChangedWhilePublishing() throws InterruptedException {
+        final AtomicReference<GelfMessage> last = new AtomicReference<GelfMessage>();
+        final AtomicInteger errors = new AtomicInteger();
+        final GelfHandler gelfHandler = new GelfHandler() {
+            @Override
+            protected GelfUDPSender getGelfUDPSender(String udpGraylogHost, int graylogPort) {
+                return new GelfUDPSender() {
+                    @Override
+                    public GelfSenderResult sendMessage(GelfMessage message) {
+                        last.set(message);
+                        return GelfSenderResult.OK;
+                    }
+                };
+            }
+        };
+        gelfHandler.setErrorManager(new ErrorManager() {
+            @Override
+            public void error(String msg, Exception ex, int code) {
+                errors.incrementAndGet();
+            }
+        });
+        gelfHandler.setGraylogHost("localhost");
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread publisher = new Thread(new Runnable() {
+            public void run() {
+                while (!done.get()) {
+                    gelfHandler.publish(new LogRecord(Level.INFO, "record"));
+                }
+            }
+        });
+        publisher.start();
+        for (int i = 0; i < 200; i++) {
+            gelfHandler.setAdditionalField("field" + i + "=" + i);
+        }
+        done.set(true);
+        publisher.join();
+
+        // the envelope of the last change is the one in use
+        gelfHandler.publish(new LogRecord(Level.INFO, "after"));
+        Map<String, Object> fields = last.get().getAdditonalFields();
+        for (int i = 0; i < 200; i++) {
+            assertEquals(String.valueOf(i), fields.get("field" + i));
+        }
+        assertEquals(0, errors.get());
+    }
+
     @Test
     public void testSetAdditionalField() {
         GelfHandler gelfHandler = new GelfHandler();
@@ -110,4 +222,37 @@ public class GelfHandlerTest
         assertThat("No empty key exists", fields.get(""), CoreMatchers.nullValue());
     }
 
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFieldsAreReadOnly() {
+        GelfHandler gelfHandler = new GelfHandler();
+        gelfHandler.setAdditionalField("environment=prod");
+        gelfHandler.getFields().put("environment", "test");
+    }
+
+    @Test
+    public void testMicrosecondPrecisionDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        LogRecord record = new LogRecord(Level.INFO, "steady");
+        // records keep sub-millisecond time since Java 9
+        Assume.assumeTrue(GelfHandler.microsOfMillisecond(record) >= 0);
+
+        long sum = 0;
+        for (int i = 0; i < 20000; i++) {
+            sum += GelfHandler.microsOfMillisecond(record);
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            sum += GelfHandler.microsOfMillisecond(record);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+        assertTrue(sum >= 0);
+    }
+
 }